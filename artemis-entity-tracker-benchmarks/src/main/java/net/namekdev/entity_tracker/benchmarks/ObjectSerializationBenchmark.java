@@ -0,0 +1,164 @@
+package net.namekdev.entity_tracker.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.namekdev.entity_tracker.utils.sample.CyclicClass;
+import net.namekdev.entity_tracker.utils.sample.DeepArray;
+import net.namekdev.entity_tracker.utils.sample.EnumArrayTestClass;
+import net.namekdev.entity_tracker.utils.sample.GameObject;
+import net.namekdev.entity_tracker.utils.sample.GameState;
+import net.namekdev.entity_tracker.utils.serialization.NetworkDeserializer;
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization;
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer;
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer.SerializationResult;
+import net.namekdev.entity_tracker.utils.serialization.ObjectModelNode;
+import net.namekdev.entity_tracker.utils.serialization.ObjectTypeInspector;
+import net.namekdev.entity_tracker.utils.serialization.ValueTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of whole objects and their descriptions, both ways.
+ *
+ * <p>Benchmarks named {@code described} send descriptions as on a fresh connection,
+ * {@code referenced} ones only refer to descriptions sent before and
+ * {@code knownModel} ones skip descriptions at all, like component states do.</p>
+ *
+ * @author Namek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectSerializationBenchmark {
+	@Param({"GameState", "DeepArray", "CyclicClass", "EnumArrayTestClass"})
+	public String fixture;
+
+	@Param({"false", "true"})
+	public boolean compactEncoding;
+
+	private Object object;
+	private ObjectModelNode model;
+	private ObjectModelNode receivedModel;
+	private NetworkSerializer serializer;
+	private NetworkDeserializer deserializer;
+
+	private byte[] description;
+	private byte[] describedObject;
+	private byte[] referencedObject;
+	private byte[] knownModelObject;
+
+
+	@Setup
+	public void setup() {
+		object = createFixture(fixture);
+
+		serializer = NetworkSerialization.Companion.createSerializer(new ObjectTypeInspector());
+		serializer.setCompactEncoding(compactEncoding);
+		deserializer = new NetworkDeserializer();
+		deserializer.setCompactEncoding(compactEncoding);
+		model = serializer.getInspector().inspect(object.getClass());
+
+		description = copyResult(serializer.reset().addDataDescriptionOrRef(model));
+		serializer.forgetDescriptions();
+		describedObject = copyResult(serializer.reset().addObject(object));
+		referencedObject = copyResult(serializer.reset().addObject(object));
+		knownModelObject = copyResult(serializer.reset().addObject(model, object));
+
+		deserializer.setSource(description, 0, description.length);
+		receivedModel = deserializer.readDataDescription();
+		deserializer.forgetDescriptions();
+		deserializer.setSource(describedObject, 0, describedObject.length);
+		deserializer.readObject();
+	}
+
+	private static Object createFixture(String name) {
+		switch (name) {
+			case "GameState":
+				GameState gameState = new GameState();
+				gameState.objects = new GameObject[] { new GameObject(), new GameObject(), new GameObject() };
+				return gameState;
+
+			case "DeepArray":
+				return new DeepArray();
+
+			case "CyclicClass":
+				CyclicClass first = new CyclicClass();
+				CyclicClass second = new CyclicClass();
+				first.other = second;
+				second.other = first;
+				return first;
+
+			case "EnumArrayTestClass":
+				return new EnumArrayTestClass();
+
+			default:
+				throw new IllegalArgumentException("Unknown fixture: " + name);
+		}
+	}
+
+	private static byte[] copyResult(NetworkSerializer serializer) {
+		SerializationResult result = serializer.getResult();
+		return Arrays.copyOf(result.buffer, result.getSize());
+	}
+
+	@Benchmark
+	public NetworkSerializer addDataDescription() {
+		serializer.forgetDescriptions();
+		return serializer.reset().addDataDescriptionOrRef(model);
+	}
+
+	@Benchmark
+	public NetworkSerializer addObject_described() {
+		serializer.forgetDescriptions();
+		return serializer.reset().addObject(object);
+	}
+
+	@Benchmark
+	public NetworkSerializer addObject_referenced() {
+		return serializer.reset().addObject(object);
+	}
+
+	@Benchmark
+	public NetworkSerializer addObject_knownModel() {
+		return serializer.reset().addObject(model, object);
+	}
+
+	@Benchmark
+	public ObjectModelNode readDataDescription() {
+		deserializer.setSource(description, 0, description.length);
+		return deserializer.readDataDescription();
+	}
+
+	@Benchmark
+	public ValueTree readObject_described() {
+		deserializer.forgetDescriptions();
+		deserializer.setSource(describedObject, 0, describedObject.length);
+		return deserializer.readObject();
+	}
+
+	@Benchmark
+	public ValueTree readObject_referenced() {
+		deserializer.setSource(referencedObject, 0, referencedObject.length);
+		return deserializer.readObject();
+	}
+
+	@Benchmark
+	public ValueTree readObject_knownModel() {
+		deserializer.setSource(knownModelObject, 0, knownModelObject.length);
+		return deserializer.readObject(receivedModel);
+	}
+}
@@ -0,0 +1,117 @@
+package net.namekdev.entity_tracker.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.artemis.utils.BitVector;
+
+import net.namekdev.entity_tracker.utils.serialization.NetworkDeserializer;
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer;
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer.SerializationResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of bit vectors (entity components) and primitive arrays, both ways.
+ *
+ * @author Namek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveSerializationBenchmark {
+	@Param({"16", "1024"})
+	public int length;
+
+	@Param({"false", "true"})
+	public boolean compactEncoding;
+
+	private BitVector bitVector;
+	private int[] ints;
+	private float[] floats;
+	private NetworkSerializer serializer;
+	private NetworkDeserializer deserializer;
+
+	private byte[] serializedBitVector;
+	private byte[] serializedInts;
+	private byte[] serializedFloats;
+
+
+	@Setup
+	public void setup() {
+		Random random = new Random(123);
+
+		bitVector = new BitVector(length);
+		ints = new int[length];
+		floats = new float[length];
+		for (int i = 0; i < length; ++i) {
+			if (random.nextInt(3) == 0) {
+				bitVector.set(i);
+			}
+			// mostly small values, like ids and counters
+			ints[i] = random.nextInt(1000) - 100;
+			floats[i] = random.nextFloat() * 100;
+		}
+
+		serializer = new NetworkSerializer();
+		serializer.setCompactEncoding(compactEncoding);
+		deserializer = new NetworkDeserializer();
+		deserializer.setCompactEncoding(compactEncoding);
+
+		serializedBitVector = copyResult(serializer.reset().addBitVector(bitVector));
+		serializedInts = copyResult(serializer.reset().addArray(ints));
+		serializedFloats = copyResult(serializer.reset().addArray(floats));
+	}
+
+	private static byte[] copyResult(NetworkSerializer serializer) {
+		SerializationResult result = serializer.getResult();
+		return Arrays.copyOf(result.buffer, result.getSize());
+	}
+
+	@Benchmark
+	public NetworkSerializer addBitVector() {
+		return serializer.reset().addBitVector(bitVector);
+	}
+
+	@Benchmark
+	public NetworkSerializer addIntArray() {
+		return serializer.reset().addArray(ints);
+	}
+
+	@Benchmark
+	public NetworkSerializer addFloatArray() {
+		return serializer.reset().addArray(floats);
+	}
+
+	@Benchmark
+	public BitVector readBitVector() {
+		deserializer.setSource(serializedBitVector, 0, serializedBitVector.length);
+		return deserializer.readBitVector();
+	}
+
+	@Benchmark
+	public int[] readIntArray() {
+		deserializer.setSource(serializedInts, 0, serializedInts.length);
+		return deserializer.readPrimitiveIntArray();
+	}
+
+	@Benchmark
+	public float[] readFloatArray() {
+		deserializer.setSource(serializedFloats, 0, serializedFloats.length);
+		return deserializer.readPrimitiveFloatArray();
+	}
+}
@@ -4,6 +4,8 @@ import net.namekdev.entity_tracker.network.base.PersistentClient
 import net.namekdev.entity_tracker.network.base.Server
 import net.namekdev.entity_tracker.network.communicator.ExternalInterfaceCommunicator
 import net.namekdev.entity_tracker.ui.EntityTrackerMainWindow
+import net.namekdev.entity_tracker.utils.serialization.DiskModelCache
+import java.io.File
 
 object StandaloneMain {
 	@JvmStatic fun main(args: Array<String>) {
@@ -14,7 +16,8 @@ object StandaloneMain {
 
 	fun init(serverName: String, serverPort: Int) {
 		val window = EntityTrackerMainWindow(true)
-		val client = PersistentClient(ExternalInterfaceCommunicator(window))
+		val modelCache = DiskModelCache(File(System.getProperty("user.home"), ".artemis-entity-tracker/models"))
+		val client = PersistentClient(ExternalInterfaceCommunicator(window, modelCache))
 		client.connect(serverName, serverPort)
 	}
 }
\ No newline at end of file
@@ -28,7 +28,9 @@ import javax.swing.table.TableColumn
 import javax.swing.table.TableColumnModel
 
 import com.artemis.utils.BitVector
+import com.artemis.utils.IntBag
 import net.namekdev.entity_tracker.connectors.WorldController
+import net.namekdev.entity_tracker.connectors.WorldUpdateBatchListener
 import net.namekdev.entity_tracker.connectors.WorldUpdateInterfaceListener
 import net.namekdev.entity_tracker.connectors.WorldUpdateListener
 import net.namekdev.entity_tracker.model.ComponentTypeInfo
@@ -42,7 +44,7 @@ import net.namekdev.entity_tracker.ui.partials.EntityTable
 import net.namekdev.entity_tracker.ui.utils.AdjustableJTable
 import net.namekdev.entity_tracker.ui.utils.VerticalTableHeaderCellRenderer
 
-class EntityTrackerMainWindow(showWindowOnStart: Boolean, exitApplicationOnClose: Boolean) : WorldUpdateInterfaceListener {
+class EntityTrackerMainWindow(showWindowOnStart: Boolean, exitApplicationOnClose: Boolean) : WorldUpdateInterfaceListener, WorldUpdateBatchListener {
     protected val context = Context()
     protected lateinit var frame: JFrame
     private var entitiesTable: JTable? = null
@@ -183,12 +185,13 @@ class EntityTrackerMainWindow(showWindowOnStart: Boolean, exitApplicationOnClose
         _lastSelectedCol = modelCol
     }
 
-    override fun injectWorldController(worldController: WorldController) {
-        context.worldController = worldController
+    override fun injectWorldController(controller: WorldController) {
+        context.worldController = controller
     }
 
     override val listeningBitset: Int
-        get() = WorldUpdateListener.ENTITY_ADDED or WorldUpdateListener.ENTITY_DELETED or WorldUpdateListener.ENTITY_SYSTEM_STATS
+        get() = WorldUpdateListener.ENTITY_ADDED or WorldUpdateListener.ENTITY_DELETED or WorldUpdateListener.ENTITY_SYSTEM_STATS or
+            WorldUpdateListener.SYSTEM_TIMINGS
 
     override fun addedSystem(index: Int, name: String, allTypes: BitVector?, oneTypes: BitVector?, notTypes: BitVector?) {
         val hasAspect = allTypes != null || oneTypes != null || notTypes != null
@@ -219,18 +222,48 @@ class EntityTrackerMainWindow(showWindowOnStart: Boolean, exitApplicationOnClose
         }
     }
 
-    override fun updatedEntitySystem(systemIndex: Int, entitiesCount: Int, maxEntitiesCount: Int) {
-        SwingUtilities.invokeLater { entitySystemsTableModel!!.updateSystem(systemIndex, entitiesCount, maxEntitiesCount) }
+    override fun updatedEntitySystem(index: Int, entitiesCount: Int, maxEntitiesCount: Int) {
+        SwingUtilities.invokeLater { entitySystemsTableModel!!.updateSystem(index, entitiesCount, maxEntitiesCount) }
     }
 
-    override fun addedEntity(entityId: Int, components: BitVector) {
-        SwingUtilities.invokeLater { entitiesTableModel!!.addEntity(entityId, components) }
+    override fun updatedSystemTimings(p50: LongArray, p99: LongArray, max: LongArray) {
+        // arrays are reused by caller
+        val p50Copy = p50.copyOf()
+        val p99Copy = p99.copyOf()
+        val maxCopy = max.copyOf()
+
+        SwingUtilities.invokeLater {
+            for (i in p50Copy.indices) {
+                baseSystemsTableModel!!.updateTimings(i, p50Copy[i], p99Copy[i], maxCopy[i])
+                entitySystemsTableModel!!.updateTimings(i, p50Copy[i], p99Copy[i], maxCopy[i])
+            }
+        }
+    }
+
+    override fun addedComposition(compositionId: Int, components: BitVector) {
+        SwingUtilities.invokeLater { entitiesTableModel!!.addComposition(compositionId, components) }
+    }
+
+    override fun addedEntity(entityId: Int, compositionId: Int) {
+        SwingUtilities.invokeLater { entitiesTableModel!!.addEntity(entityId, compositionId) }
     }
 
     override fun deletedEntity(entityId: Int) {
         SwingUtilities.invokeLater { entitiesTableModel!!.removeEntity(entityId) }
     }
 
+    override fun updatedEntities(deletedEntityIds: IntBag, addedEntityIds: IntBag, addedCompositionIds: IntBag) {
+        // bags are reused by caller
+        val deleted = deletedEntityIds.data.copyOf(deletedEntityIds.size())
+        val added = addedEntityIds.data.copyOf(addedEntityIds.size())
+        val compositions = addedCompositionIds.data.copyOf(addedCompositionIds.size())
+
+        SwingUtilities.invokeLater {
+            entitiesTableModel!!.removeEntities(deleted)
+            entitiesTableModel!!.addEntities(added, compositions)
+        }
+    }
+
     override fun updatedComponentState(entityId: Int, componentIndex: Int, valueTree: Any) {
         context.eventBus.updatedComponentState(entityId, componentIndex, valueTree)
     }
@@ -8,13 +8,19 @@ import javax.swing.event.TableModelListener
 import net.namekdev.entity_tracker.ui.listener.ChangingSystemEnabledStateListener
 import net.namekdev.entity_tracker.ui.utils.ExtendedTableModel
 
-open class BaseSystemTableModel : ExtendedTableModel() {
+open class BaseSystemTableModel(hasTimings: Boolean = true) : ExtendedTableModel() {
     private val _listeners = ArrayList<ChangingSystemEnabledStateListener>()
 
     init {
         addColumn("")
         addColumn("system")
 
+        if (hasTimings) {
+            addColumn("p50 [ms]")
+            addColumn("p99 [ms]")
+            addColumn("max [ms]")
+        }
+
         addTableModelListener(TableModelListener { e ->
             if (e.column != 0) {
                 return@TableModelListener
@@ -39,6 +45,7 @@ open class BaseSystemTableModel : ExtendedTableModel() {
         when (columnIndex) {
             0 -> return Boolean::class.javaObjectType
             1 -> return String::class.java
+            COLUMN_P50, COLUMN_P99, COLUMN_MAX -> return Double::class.javaObjectType
             else -> return null
         }
     }
@@ -51,6 +58,25 @@ open class BaseSystemTableModel : ExtendedTableModel() {
         return rowIndex
     }
 
+    open fun getRowIndex(systemIndex: Int): Int {
+        return systemIndex
+    }
+
+    /**
+     * @param p50 time in nanoseconds
+     * @param p99 time in nanoseconds
+     * @param max time in nanoseconds
+     */
+    fun updateTimings(systemIndex: Int, p50: Long, p99: Long, max: Long) {
+        val rowIndex = getRowIndex(systemIndex)
+
+        if (rowIndex >= 0 && rowIndex < rowCount) {
+            setValueAt(p50 / NANOS_IN_MILLI, rowIndex, COLUMN_P50)
+            setValueAt(p99 / NANOS_IN_MILLI, rowIndex, COLUMN_P99)
+            setValueAt(max / NANOS_IN_MILLI, rowIndex, COLUMN_MAX)
+        }
+    }
+
     open fun setSystem(systemIndex: Int, name: String) {
         for (i in rowCount..systemIndex) {
             addRow(arrayOf(true, ""))
@@ -77,4 +103,12 @@ open class BaseSystemTableModel : ExtendedTableModel() {
     open fun clear() {
         rowCount = 0
     }
+
+    companion object {
+        const val COLUMN_P50 = 2
+        const val COLUMN_P99 = 3
+        const val COLUMN_MAX = 4
+
+        private const val NANOS_IN_MILLI = 1000000.0
+    }
 }
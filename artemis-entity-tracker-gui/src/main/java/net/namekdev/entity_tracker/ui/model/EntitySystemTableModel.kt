@@ -14,11 +14,15 @@ class EntitySystemTableModel : BaseSystemTableModel() {
 
     override fun getColumnClass(columnIndex: Int): Class<*>? {
         when (columnIndex) {
-            2, 3 -> return Int::class.javaObjectType
+            COLUMN_ENTITIES, COLUMN_MAX_ENTITIES -> return Int::class.javaObjectType
             else -> return super.getColumnClass(columnIndex)
         }
     }
 
+    override fun getRowIndex(systemIndex: Int): Int {
+        return _systemIndexMap.getLocalIndex(systemIndex)
+    }
+
     override fun getSystemIndex(rowIndex: Int): Int {
         return _systemIndexMap.getGlobalIndex(rowIndex)
     }
@@ -32,8 +36,8 @@ class EntitySystemTableModel : BaseSystemTableModel() {
         _systemIndexMap.set(rowIndex, systemIndex)
 
         super.setSystem(rowIndex, name)
-        setValueAt(0, rowIndex, 2)
-        setValueAt(0, rowIndex, 3)
+        setValueAt(0, rowIndex, COLUMN_ENTITIES)
+        setValueAt(0, rowIndex, COLUMN_MAX_ENTITIES)
     }
 
     /**
@@ -49,8 +53,8 @@ class EntitySystemTableModel : BaseSystemTableModel() {
 
     fun updateSystem(systemIndex: Int, entitiesCount: Int, maxEntitiesCount: Int) {
         val rowIndex = _systemIndexMap.getLocalIndex(systemIndex)
-        setValueAt(entitiesCount, rowIndex, 2)
-        setValueAt(maxEntitiesCount, rowIndex, 3)
+        setValueAt(entitiesCount, rowIndex, COLUMN_ENTITIES)
+        setValueAt(maxEntitiesCount, rowIndex, COLUMN_MAX_ENTITIES)
     }
 
     override fun getSystemName(systemIndex: Int): String {
@@ -62,4 +66,9 @@ class EntitySystemTableModel : BaseSystemTableModel() {
         val rowIndex = _systemIndexMap.getLocalIndex(systemIndex)
         return super.getSystemState(rowIndex)
     }
+
+    companion object {
+        const val COLUMN_ENTITIES = 5
+        const val COLUMN_MAX_ENTITIES = 6
+    }
 }
@@ -1,17 +1,20 @@
 package net.namekdev.entity_tracker.ui.model
 
 import java.util.HashMap
+import java.util.HashSet
 import java.util.Vector
 
 import javax.swing.table.DefaultTableModel
 
+import com.artemis.utils.Bag
 import com.artemis.utils.BitVector
 import net.namekdev.entity_tracker.model.ComponentTypeInfo
 import net.namekdev.entity_tracker.utils.AutoSizedArray as AutoSizedArray
 
 
 class EntityTableModel : DefaultTableModel(arrayOf<Array<Any>>(), arrayOf<Any>("  entity id  " as Any)) {
-    private val _entityComponents = HashMap<Int, BitVector>()
+    private val _compositions = Bag<BitVector>()
+    private val _entityCompositions = HashMap<Int, Int>()
     private val _componentTypes = AutoSizedArray<ComponentTypeInfo>(50)
 
 
@@ -26,21 +29,54 @@ class EntityTableModel : DefaultTableModel(arrayOf<Array<Any>>(), arrayOf<Any>("
         fireTableStructureChanged()
     }
 
-    fun addEntity(entityId: Int, components: BitVector) {
-        // TODO check if bitset isn't greater than before model header columns
+    fun addComposition(compositionId: Int, components: BitVector) {
+        _compositions.set(compositionId, components)
+    }
+
+    /**
+     * Row keeps only entity id, components are read from entity's composition.
+     */
+    fun addEntity(entityId: Int, compositionId: Int) {
+        _entityCompositions.put(entityId, compositionId)
 
-        val row = Vector<Any>(components.length() + 1)
+        val row = Vector<Any>(1)
         row.add(entityId)
+        this.addRow(row)
+    }
 
-        var i = 0
-        val n = components.length()
-        while (i < n) {
-            row.add(components.get(i))
-            ++i
+    fun addEntities(entityIds: IntArray, compositionIds: IntArray) {
+        if (entityIds.isEmpty()) {
+            return
         }
 
-        this.addRow(row)
-        _entityComponents.put(entityId, components)
+        // rows are not justified to column count, cells are read from compositions anyway
+        val rows = dataVector
+        val firstRow = rows.size
+        for (i in entityIds.indices) {
+            _entityCompositions.put(entityIds[i], compositionIds[i])
+
+            val row = Vector<Any>(1)
+            row.add(entityIds[i])
+            rows.add(row)
+        }
+
+        fireTableRowsInserted(firstRow, rows.size - 1)
+    }
+
+    fun removeEntities(entityIds: IntArray) {
+        if (entityIds.isEmpty()) {
+            return
+        }
+
+        val ids = HashSet<Int>(entityIds.size * 2)
+        for (entityId in entityIds) {
+            ids.add(entityId)
+            _entityCompositions.remove(entityId)
+        }
+
+        if (dataVector.removeIf { ids.contains((it as Vector<*>)[0] as Int) }) {
+            fireTableDataChanged()
+        }
     }
 
     fun removeEntity(entityId: Int) {
@@ -55,11 +91,17 @@ class EntityTableModel : DefaultTableModel(arrayOf<Array<Any>>(), arrayOf<Any>("
             }
             ++i
         }
-        _entityComponents.remove(entityId)
+        _entityCompositions.remove(entityId)
     }
 
     fun getEntityComponents(entityId: Int): BitVector {
-        return _entityComponents[entityId]!!
+        return _compositions.get(_entityCompositions[entityId]!!)
+    }
+
+    override fun getValueAt(row: Int, column: Int): Any? {
+        val entityId = super.getValueAt(row, 0) as Int
+
+        return if (column == 0) entityId else getEntityComponents(entityId).get(column - 1)
     }
 
     fun getComponentTypeInfo(index: Int): ComponentTypeInfo {
@@ -76,7 +118,8 @@ class EntityTableModel : DefaultTableModel(arrayOf<Array<Any>>(), arrayOf<Any>("
 
     fun clear() {
         _componentTypes.clear()
-        _entityComponents.clear()
+        _compositions.clear()
+        _entityCompositions.clear()
         rowCount = 0
 
         columnIdentifiers.setSize(1)
@@ -1,6 +1,6 @@
 package net.namekdev.entity_tracker.ui.model
 
-class ManagerTableModel : BaseSystemTableModel() {
+class ManagerTableModel : BaseSystemTableModel(false) {
     init {
         columnIdentifiers[1] = "manager"
     }
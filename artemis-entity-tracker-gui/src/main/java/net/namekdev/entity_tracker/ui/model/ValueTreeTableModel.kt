@@ -1,5 +1,7 @@
 package net.namekdev.entity_tracker.ui.model
 
+import java.util.ArrayList
+import javax.swing.event.TreeModelEvent
 import javax.swing.event.TreeModelListener
 import javax.swing.tree.TreePath
 
@@ -17,6 +19,8 @@ class ValueTreeTableModel(private var root: ValueTree) : TreeTableModel, ICellCl
         private val COL_VAL = 2
     }
 
+    private val listeners = ArrayList<TreeModelListener>()
+
 
     init {
         assert(root.model != null)
@@ -26,13 +30,25 @@ class ValueTreeTableModel(private var root: ValueTree) : TreeTableModel, ICellCl
         return root
     }
 
+    /**
+     * Tree updated in place keeps its structure, so only a new tree is announced to listeners.
+     */
     fun setRoot(tree: ValueTree) {
+        if (tree === root) {
+            return
+        }
+
         this.root = tree
+        val event = TreeModelEvent(this, TreePath(tree))
+
+        for (listener in listeners.toTypedArray()) {
+            listener.treeStructureChanged(event)
+        }
     }
 
     override fun getChild(parent: Any, index: Int): Any {
         val tree = parent as ValueTree
-        return tree.values[index]!!
+        return tree[index]!!
     }
 
     override fun getChildCount(parent: Any): Int {
@@ -48,7 +64,7 @@ class ValueTreeTableModel(private var root: ValueTree) : TreeTableModel, ICellCl
         }
 
         if (model.isArray) {
-            return tree.values.size
+            return tree.size
         }
 
         return if (model.children == null) 0 else model.children!!.size
@@ -75,7 +91,7 @@ class ValueTreeTableModel(private var root: ValueTree) : TreeTableModel, ICellCl
                 return null
             }
             else {
-                return node.values[0]
+                return node[0]
             }
         }
     }
@@ -89,7 +105,7 @@ class ValueTreeTableModel(private var root: ValueTree) : TreeTableModel, ICellCl
             if (parentNode is ValueTree) {
 
                 if (column == COL_VAL) {
-                    return parentNode.values[nodeIndex]
+                    return parentNode[nodeIndex]
                 }
                 else if (node != null) {
                     val name = parentNode.model!!.children!![nodeIndex].name
@@ -117,7 +133,7 @@ class ValueTreeTableModel(private var root: ValueTree) : TreeTableModel, ICellCl
                 }
             }
 
-            parentNode.values[nodeIndex] = value
+            parentNode[nodeIndex] = value
         }
     }
 
@@ -185,7 +201,11 @@ class ValueTreeTableModel(private var root: ValueTree) : TreeTableModel, ICellCl
         return 0
     }
 
-    override fun addTreeModelListener(listener: TreeModelListener) {}
+    override fun addTreeModelListener(listener: TreeModelListener) {
+        listeners.add(listener)
+    }
 
-    override fun removeTreeModelListener(listener: TreeModelListener) {}
+    override fun removeTreeModelListener(listener: TreeModelListener) {
+        listeners.remove(listener)
+    }
 }
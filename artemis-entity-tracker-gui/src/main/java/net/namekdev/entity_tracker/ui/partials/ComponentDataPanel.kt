@@ -11,6 +11,7 @@ import javax.swing.JCheckBox
 import javax.swing.JComponent
 import javax.swing.JPanel
 import javax.swing.JTextField
+import javax.swing.SwingUtilities
 
 import net.miginfocom.swing.MigLayout
 import net.namekdev.entity_tracker.connectors.DummyWorldUpdateListener
@@ -242,7 +243,13 @@ return null!!
                 return
             }
 
-            treeTableModel.setRoot(valueTree as ValueTree)
+            // network thread may have updated the shown tree in place, it's repainted anyway
+            val tree = valueTree as ValueTree
+
+            SwingUtilities.invokeLater {
+                treeTableModel.setRoot(tree)
+                treeTable.repaint()
+            }
             /*
 			for (int i = 0, n = values.length; i < n; ++i) {
 				Object value = values[i];
@@ -24,6 +24,8 @@ class EntityDetailsPanel(private val _appContext: Context, private val _entityTa
     var entityId = -1
         private set
     private var _currentComponentIndex = -1
+    private var _watchedEntityId = -1
+    private var _watchedComponentIndex = -1
     private val _componentIndices = IndexBiMap()
 
     private var _splitPane: JSplitPane? = null
@@ -110,8 +112,8 @@ class EntityDetailsPanel(private val _appContext: Context, private val _entityTa
             _componentsPanelContainer!!.removeAll()
             _componentsPanelContainer!!.add(ComponentDataPanel(_appContext, info, entityId), BorderLayout.PAGE_START)
 
-            _appContext.worldController!!.requestComponentState(this.entityId, componentTypeIndex)
         }
+        watchComponent(this.entityId, componentTypeIndex)
         _currentComponentIndex = componentTypeIndex
 
         revalidate()
@@ -119,6 +121,32 @@ class EntityDetailsPanel(private val _appContext: Context, private val _entityTa
 
     }
 
+    /**
+     * Shown component is watched so it's state is updated when it changes.
+     */
+    private fun watchComponent(entityId: Int, componentIndex: Int) {
+        val worldController = _appContext.worldController!!
+
+        if (entityId == _watchedEntityId && componentIndex == _watchedComponentIndex) {
+            // panel of the component was created again
+            if (componentIndex >= 0) {
+                worldController.requestComponentState(entityId, componentIndex)
+            }
+            return
+        }
+
+        if (_watchedComponentIndex >= 0) {
+            worldController.unwatchComponent(_watchedEntityId, _watchedComponentIndex)
+        }
+
+        if (componentIndex >= 0) {
+            worldController.watchComponent(entityId, componentIndex, WATCH_INTERVAL)
+        }
+
+        _watchedEntityId = entityId
+        _watchedComponentIndex = componentIndex
+    }
+
     fun selectComponent(entityId: Int, componentIndex: Int) {
         setup(entityId, componentIndex)
         val rowIndex = _componentIndices.getLocalIndex(componentIndex)
@@ -134,4 +162,9 @@ class EntityDetailsPanel(private val _appContext: Context, private val _entityTa
             }
         }
     }
+
+    companion object {
+        /** minimum time between updates of shown component, in milliseconds */
+        const val WATCH_INTERVAL = 100
+    }
 }
@@ -117,7 +117,7 @@ class InspectionTreeNode(
             return panel
         }
 
-        fun add_row(i: Int, node: Any?, model: ObjectModelNode?, parentPanel: JPanel, visitedObjIds: Stack<Short>) {
+        fun add_row(i: Int, node: Any?, model: ObjectModelNode?, parentPanel: JPanel, visitedObjIds: Stack<Int>) {
             val visitedObjIdsBeginSize = visitedObjIds.size
 
             if (node !is ValueTree) {
@@ -218,7 +218,7 @@ class InspectionTreeNode(
             }
         }
 
-        add_row(0, node, node.model!!, init_panel(this, true), Stack<Short>())
+        add_row(0, node, node.model!!, init_panel(this, true), Stack<Int>())
     }
 }
 
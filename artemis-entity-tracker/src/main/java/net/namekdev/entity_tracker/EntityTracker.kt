@@ -2,10 +2,12 @@ package net.namekdev.entity_tracker
 
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.*
 
+import java.util.Arrays
 import java.util.BitSet
 import java.util.HashMap
 
 import net.namekdev.entity_tracker.connectors.WorldController
+import net.namekdev.entity_tracker.connectors.WorldUpdateBatchListener
 import net.namekdev.entity_tracker.connectors.WorldUpdateListener
 import net.namekdev.entity_tracker.model.AspectInfo
 import net.namekdev.entity_tracker.model.ComponentTypeInfo
@@ -17,6 +19,7 @@ import net.namekdev.entity_tracker.utils.ReflectionUtils
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization
 import net.namekdev.entity_tracker.utils.serialization.ObjectModelNode
 import net.namekdev.entity_tracker.utils.serialization.ObjectTypeInspector
+import net.namekdev.entity_tracker.utils.serialization.ValueHasher
 
 import com.artemis.Aspect
 import com.artemis.BaseComponentMapper
@@ -31,6 +34,7 @@ import com.artemis.Entity
 import com.artemis.EntitySubscription
 import com.artemis.EntitySubscription.SubscriptionListener
 import com.artemis.Manager
+import com.artemis.SystemInvocationStrategy
 import com.artemis.utils.Bag
 import com.artemis.utils.BitVector
 import com.artemis.utils.ImmutableBag
@@ -44,7 +48,7 @@ import com.artemis.utils.reflect.ReflectionException
  * @author Namek
  */
 class EntityTracker @JvmOverloads constructor(
-    private val componentInspector: ObjectTypeInspector = ObjectTypeInspector(),
+    private val componentInspector: ObjectTypeInspector = ObjectTypeInspector.shared,
     listener: WorldUpdateListener? = null
 ) : Manager(), WorldController {
     private var updateListener: WorldUpdateListener? = null
@@ -65,9 +69,35 @@ class EntityTracker @JvmOverloads constructor(
 
 
     private var _notifiedComponentTypesCount = 0
+    private val _notifiedCompositions = BitSet()
+
+    // entities added and deleted during current tick, for batch listener
+    private val _addedEntities = IntBag()
+    private val _deletedEntities = IntBag()
+    private val _pendingAddedEntities = BitSet()
+    private val _addedCompositions = IntBag()
+    private var _sortedAddedEntities = LongArray(64)
+    private val _batchAddedEntities = IntBag()
+    private val _batchAddedCompositions = IntBag()
+
+    // timings of systems, when world is processed by ProfilingInvocationStrategy
+    private var _profiler: ProfilingInvocationStrategy? = null
+    private val _systemWorldIndices = IntBag()
+    private var _lastTimingsPublishTime = 0L
+    private lateinit var _timingsP50: LongArray
+    private lateinit var _timingsP99: LongArray
+    private lateinit var _timingsMax: LongArray
     private val _objectArrPool = ArrayPool(Any::class.java)
 
-    constructor(listener: WorldUpdateListener) : this(ObjectTypeInspector(), listener) {}
+    // components watched by clients, by entity id and component index, modified by network threads
+    private val _watches = HashMap<Long, ComponentWatch>()
+    // entities which can be watched, guarded by `_watches`
+    private val _aliveEntities = BitVector()
+    private val _requestedStates = Bag<ComponentWatch>()
+    private val _changedWatches = Bag<ComponentWatch>()
+    private val _valueHasher = ValueHasher(componentInspector)
+
+    constructor(listener: WorldUpdateListener) : this(ObjectTypeInspector.shared, listener) {}
 
     init {
         setUpdateListener(listener)
@@ -85,6 +115,12 @@ class EntityTracker @JvmOverloads constructor(
         allComponentTypes = ReflectionUtils.getHiddenFieldValue(ComponentTypeFactory::class.java, "types", typeFactory) as Bag<ComponentType>
 
         find42UnicornManagers()
+
+        _profiler = world.getInvocationStrategy<SystemInvocationStrategy>() as? ProfilingInvocationStrategy
+        _timingsP50 = LongArray(systemsInfo.size())
+        _timingsP99 = LongArray(systemsInfo.size())
+        _timingsMax = LongArray(systemsInfo.size())
+        _lastTimingsPublishTime = System.currentTimeMillis()
     }
 
     private fun find42UnicornManagers() {
@@ -122,6 +158,7 @@ class EntityTracker @JvmOverloads constructor(
 
                 val info = SystemInfo(index, systemName, system, aspect, aspectInfo, actives, subscription)
                 systemsInfo.add(info)
+                _systemWorldIndices.set(index, i)
                 systemsInfoByName.put(systemName, info)
 
                 if (subscription != null) {
@@ -180,6 +217,10 @@ class EntityTracker @JvmOverloads constructor(
     }
 
     override fun added(e: Entity?) {
+        synchronized(_watches) {
+            _aliveEntities.set(e!!.id)
+        }
+
         if (updateListener == null) {
             return
         }
@@ -188,6 +229,23 @@ class EntityTracker @JvmOverloads constructor(
             return
         }
 
+        val compositionId = e!!.compositionId
+
+        if (!_notifiedCompositions.get(compositionId)) {
+            notifyNewComposition(e, compositionId)
+        }
+
+        if (updateListener is WorldUpdateBatchListener) {
+            _addedEntities.add(e.id)
+            _addedCompositions.set(e.id, compositionId)
+            _pendingAddedEntities.set(e.id)
+        }
+        else {
+            updateListener!!.addedEntity(e.id, compositionId)
+        }
+    }
+
+    private fun notifyNewComposition(e: Entity, compositionId: Int) {
         var componentBitVector: BitVector? = null
         try {
             componentBitVector = entity_getComponentBits.invoke(e) as BitVector
@@ -200,15 +258,171 @@ class EntityTracker @JvmOverloads constructor(
             inspectNewComponentTypesAndNotify()
         }
 
-        updateListener!!.addedEntity(e!!.id, BitVector(componentBitVector))
+        updateListener!!.addedComposition(compositionId, BitVector(componentBitVector))
+        _notifiedCompositions.set(compositionId)
     }
 
     override fun deleted(e: Entity?) {
+        val entity = e!!
+        forgetWatches(entity.id)
+
         if (updateListener == null || updateListener!!.listeningBitset and WorldUpdateListener.ENTITY_DELETED == 0) {
             return
         }
 
-        updateListener!!.deletedEntity(e!!.id)
+        if (updateListener is WorldUpdateBatchListener) {
+            val entityId = entity.id
+
+            // entity which was added during this tick is not announced at all
+            if (_pendingAddedEntities.get(entityId)) {
+                _pendingAddedEntities.clear(entityId)
+            }
+            else {
+                _deletedEntities.add(entityId)
+            }
+        }
+        else {
+            updateListener!!.deletedEntity(entity.id)
+        }
+    }
+
+    override fun begin() {
+        flushEntityUpdates()
+        publishSystemTimings()
+        updateWatchedComponents()
+    }
+
+    /**
+     * Sends requested components, then samples watched components and sends the ones
+     * that changed since they were sent last time.
+     * Changes are found by hash of component's fields so unchanged components are not serialized.
+     */
+    private fun updateWatchedComponents() {
+        val now = System.currentTimeMillis()
+
+        synchronized(_watches) {
+            if (_watches.isEmpty() && _requestedStates.isEmpty) {
+                return
+            }
+
+            for (i in 0.._requestedStates.size() - 1) {
+                val request = _requestedStates.get(i)
+                val mapper = allComponentMappers.safeGet(request.componentIndex)
+
+                if (mapper != null && mapper.has(request.entityId)) {
+                    _changedWatches.add(request)
+                }
+            }
+            _requestedStates.clear()
+
+            for (watch in _watches.values) {
+                if (watch.isSent && now - watch.lastSentTime < watch.interval) {
+                    continue
+                }
+
+                val mapper = allComponentMappers.safeGet(watch.componentIndex)
+                if (mapper == null || !mapper.has(watch.entityId)) {
+                    continue
+                }
+
+                val model = allComponentTypesInfo.get(watch.componentIndex).model
+                val hash = _valueHasher.hash(model, mapper.get(watch.entityId))
+
+                if (!watch.isSent || hash != watch.hash) {
+                    watch.hash = hash
+                    watch.isSent = true
+                    watch.lastSentTime = now
+                    _changedWatches.add(watch)
+                }
+            }
+        }
+
+        // listener may block on network so it's called without holding the lock
+        for (i in 0.._changedWatches.size() - 1) {
+            val watch = _changedWatches.get(i)
+            val component = allComponentMappers.get(watch.componentIndex).get(watch.entityId)
+            updateListener!!.updatedComponentState(watch.entityId, watch.componentIndex, component)
+        }
+        _changedWatches.clear()
+    }
+
+    private fun forgetWatches(entityId: Int) {
+        synchronized(_watches) {
+            _aliveEntities.clear(entityId)
+
+            if (!_watches.isEmpty()) {
+                _watches.keys.removeIf { (it ushr 32).toInt() == entityId }
+            }
+        }
+    }
+
+    private fun publishSystemTimings() {
+        val profiler = _profiler ?: return
+
+        if (updateListener == null || updateListener!!.listeningBitset and WorldUpdateListener.SYSTEM_TIMINGS == 0) {
+            return
+        }
+
+        val now = System.currentTimeMillis()
+        if (now - _lastTimingsPublishTime < profiler.publishInterval) {
+            return
+        }
+        _lastTimingsPublishTime = now
+
+        for (i in 0..systemsInfo.size() - 1) {
+            val histogram = profiler.getHistogram(_systemWorldIndices.get(i))
+            _timingsP50[i] = histogram.valueAtPercentile(50.0)
+            _timingsP99[i] = histogram.valueAtPercentile(99.0)
+            _timingsMax[i] = histogram.max
+            histogram.reset()
+        }
+
+        updateListener!!.updatedSystemTimings(_timingsP50, _timingsP99, _timingsMax)
+    }
+
+    /**
+     * Notifies batch listener about entities added and deleted since last flush.
+     * It's called on every tick when this manager is processed, so events which happen
+     * later in the tick are sent with the next one, unless this is called at the end of tick.
+     */
+    fun flushEntityUpdates() {
+        val listener = updateListener as? WorldUpdateBatchListener ?: return
+
+        if (_addedEntities.isEmpty && _deletedEntities.isEmpty) {
+            return
+        }
+
+        // group added entities by composition, ids are sorted in groups to form ranges
+        if (_sortedAddedEntities.size < _addedEntities.size()) {
+            _sortedAddedEntities = LongArray(Integer.highestOneBit(_addedEntities.size()) shl 1)
+        }
+
+        val sorted = _sortedAddedEntities
+        var n = 0
+        for (i in 0..(_addedEntities.size() - 1)) {
+            val entityId = _addedEntities.get(i)
+
+            // skip entities deleted in the meantime and repeated ones
+            if (_pendingAddedEntities.get(entityId)) {
+                _pendingAddedEntities.clear(entityId)
+                sorted[n++] = (_addedCompositions.get(entityId).toLong() shl 32) or entityId.toLong()
+            }
+        }
+        Arrays.sort(sorted, 0, n)
+
+        _batchAddedEntities.clear()
+        _batchAddedCompositions.clear()
+        for (i in 0..n - 1) {
+            _batchAddedEntities.add(sorted[i].toInt())
+            _batchAddedCompositions.add((sorted[i] ushr 32).toInt())
+        }
+
+        Arrays.sort(_deletedEntities.data, 0, _deletedEntities.size())
+
+        listener.updatedEntities(_deletedEntities, _batchAddedEntities, _batchAddedCompositions)
+
+        _addedEntities.clear()
+        _deletedEntities.clear()
     }
 
     private fun inspectNewComponentTypesAndNotify() {
@@ -251,12 +465,53 @@ class EntityTracker @JvmOverloads constructor(
         info.manager.isEnabled = isOn
     }
 
+    /**
+     * State is sent on next tick, from the game thread, like states of watched components.
+     */
     override fun requestComponentState(entityId: Int, componentIndex: Int) {
-        val info = allComponentTypesInfo.get(componentIndex)
-        val mapper = allComponentMappers.get(componentIndex)
+        synchronized(_watches) {
+            _requestedStates.add(ComponentWatch(entityId, componentIndex))
+        }
+    }
 
-        val component = mapper.get(entityId)
-        updateListener!!.updatedComponentState(entityId, componentIndex, component)
+    override fun watchComponent(entityId: Int, componentIndex: Int, interval: Int): Boolean {
+        val key = (entityId.toLong() shl 32) or componentIndex.toLong()
+
+        synchronized(_watches) {
+            // watch of deleted entity would never end
+            if (!_aliveEntities.get(entityId)) {
+                return false
+            }
+
+            var watch = _watches[key]
+
+            if (watch == null) {
+                watch = ComponentWatch(entityId, componentIndex)
+                watch.interval = interval
+                _watches.put(key, watch)
+            }
+            else {
+                watch.interval = Math.min(watch.interval, interval)
+            }
+
+            // new watcher needs the whole state
+            ++watch.watcherCount
+            watch.isSent = false
+        }
+
+        return true
+    }
+
+    override fun unwatchComponent(entityId: Int, componentIndex: Int) {
+        val key = (entityId.toLong() shl 32) or componentIndex.toLong()
+
+        synchronized(_watches) {
+            val watch = _watches[key] ?: return
+
+            if (--watch.watcherCount == 0) {
+                _watches.remove(key)
+            }
+        }
     }
 
     override fun setComponentFieldValue(entityId: Int, componentIndex: Int, treePath: IntArray, value: Any) {
@@ -267,3 +522,11 @@ class EntityTracker @JvmOverloads constructor(
         info.model.setValue(component, treePath, value)
     }
 }
+
+private class ComponentWatch(val entityId: Int, val componentIndex: Int) {
+    var watcherCount = 0
+    var interval = 0
+    var isSent = false
+    var lastSentTime = 0L
+    var hash = 0L
+}
@@ -0,0 +1,57 @@
+package net.namekdev.entity_tracker
+
+import com.artemis.SystemInvocationStrategy
+import com.artemis.utils.Bag
+import net.namekdev.entity_tracker.utils.TimeHistogram
+
+/**
+ * Invokes systems the same way artemis' default `InvocationStrategy` does,
+ * measuring time of every system's `process()`.
+ *
+ * Profiling is opt-in: register this strategy in `WorldConfigurationBuilder`
+ * and [EntityTracker] will publish timings of systems.
+ *
+ * @author Namek
+ */
+class ProfilingInvocationStrategy @JvmOverloads constructor(
+    /** how often timings are published, in milliseconds */
+    val publishInterval: Long = DEFAULT_PUBLISH_INTERVAL
+) : SystemInvocationStrategy() {
+    private val _histograms = Bag<TimeHistogram>()
+
+
+    override fun process() {
+        val systems = systems.data
+        for (i in 0..this.systems.size() - 1) {
+            if (disabled.get(i)) {
+                continue
+            }
+
+            updateEntityStates()
+
+            val start = System.nanoTime()
+            systems[i].process()
+            getHistogram(i).record(System.nanoTime() - start)
+        }
+
+        updateEntityStates()
+    }
+
+    /**
+     * @param systemIndex index of system in `World.getSystems()`
+     */
+    fun getHistogram(systemIndex: Int): TimeHistogram {
+        var histogram = _histograms.safeGet(systemIndex)
+
+        if (histogram == null) {
+            histogram = TimeHistogram()
+            _histograms.set(systemIndex, histogram)
+        }
+
+        return histogram
+    }
+
+    companion object {
+        const val DEFAULT_PUBLISH_INTERVAL = 1000L
+    }
+}
@@ -0,0 +1,348 @@
+package net.namekdev.entity_tracker.connectors
+
+import com.artemis.utils.Bag
+import com.artemis.utils.BitVector
+import com.artemis.utils.IntBag
+import net.namekdev.entity_tracker.model.ComponentTypeInfo
+import net.namekdev.entity_tracker.utils.serialization.ObjectModelNode
+import net.namekdev.entity_tracker.utils.serialization.ObjectTypeInspector
+import net.namekdev.entity_tracker.utils.serialization.ValueCopier
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Hands events over from the game thread to a dedicated tracker thread which calls
+ * the target listener, so serialization and network I/O don't stall the game loop.
+ *
+ * Game thread only writes compact records into a preallocated single-producer
+ * single-consumer ring buffer, events have to be produced by a single thread
+ * (`EntityTracker` produces them while world is processed). When the buffer is full,
+ * next events are queued in a list until tracker thread catches up, so game thread never waits.
+ * Events are never dropped, because clients would lose track of the world.
+ * Exceptions thrown by target listener are printed and the next events are still delivered.
+ *
+ * Components are copied on game thread, so tracker thread serializes the state
+ * they had when it was sampled, while the game keeps modifying them.
+ *
+ * @param capacity number of records, rounded up to power of two
+ * @author Namek
+ */
+class AsyncWorldUpdateListener @JvmOverloads constructor(
+    val target: WorldUpdateListener,
+    capacity: Int = DEFAULT_CAPACITY
+) : WorldUpdateBatchListener {
+    val capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) shl 1
+    private val _mask = this.capacity - 1
+
+    // record is kind and up to 3 int arguments, object argument is kept separately
+    private val _ints = IntArray(this.capacity * RECORD_SIZE)
+    private val _objects = arrayOfNulls<Any>(this.capacity)
+
+    // count of records written, advanced by game thread
+    private val _head = AtomicLong()
+    private var _written = 0L
+
+    // count of records read, advanced by tracker thread
+    private val _tail = AtomicLong()
+    private var _cachedTail = 0L
+
+    // records which didn't fit into the buffer, they're newer than all the records in the buffer
+    // so buffer is not written until tracker thread takes them, guarded by itself
+    private val _overflow = ArrayList<OverflowRecord>()
+    @Volatile private var _isOverflowing = false
+
+    // count of all the events, including the ones which didn't fit into the buffer
+    private var _writtenEvents = 0L
+    private val _readEvents = AtomicLong()
+
+    @Volatile private var _isRunning = false
+    private var _thread: Thread? = null
+
+    // models of component types by index, used by game thread to copy components
+    private val _componentModels = Bag<ObjectModelNode>()
+    private val _copier = ValueCopier(ObjectTypeInspector.shared)
+
+    // batch of entities being read by tracker thread
+    private val _deletedEntities = IntBag()
+    private val _addedEntities = IntBag()
+    private val _addedCompositions = IntBag()
+
+    /**
+     * How many events didn't fit into the buffer and were queued in a list.
+     */
+    @Volatile var overflowCount = 0L
+        private set
+
+
+    fun start(): AsyncWorldUpdateListener {
+        if (_isRunning) {
+            throw IllegalStateException("Tracker thread is already running.")
+        }
+
+        _isRunning = true
+        _thread = Thread(Runnable { run() }, "entity-tracker")
+        _thread!!.isDaemon = true
+        _thread!!.start()
+
+        return this
+    }
+
+    /**
+     * Delivers events which are already in the buffer and stops tracker thread.
+     */
+    fun stop() {
+        _isRunning = false
+        _thread?.join()
+        _thread = null
+    }
+
+    /**
+     * Waits until tracker thread delivers all the events written so far.
+     */
+    fun flush() {
+        while (_readEvents.get() < _writtenEvents) {
+            checkThread()
+            LockSupport.parkNanos(WAIT_NANOS)
+        }
+    }
+
+    private fun checkThread() {
+        if (_thread == null || !_thread!!.isAlive) {
+            throw IllegalStateException("Tracker thread is not running.")
+        }
+    }
+
+
+    //////////////////////////////////////
+    // game thread
+
+    private fun write(kind: Int, a: Int, b: Int, c: Int, obj: Any?) {
+        val head = _written
+        ++_writtenEvents
+
+        if (_isOverflowing || head - _cachedTail >= capacity) {
+            _cachedTail = _tail.get()
+
+            if (_isOverflowing || head - _cachedTail >= capacity) {
+                synchronized(_overflow) {
+                    // tracker thread may have taken the list in the meantime
+                    if (_isOverflowing || head - _tail.get() >= capacity) {
+                        _overflow.add(OverflowRecord(kind, a, b, c, obj))
+                        _isOverflowing = true
+                        ++overflowCount
+                        return
+                    }
+                }
+            }
+        }
+
+        val slot = head.toInt() and _mask
+        val i = slot * RECORD_SIZE
+        _ints[i] = kind
+        _ints[i + 1] = a
+        _ints[i + 2] = b
+        _ints[i + 3] = c
+        _objects[slot] = obj
+
+        // publishes the record written above
+        _written = head + 1
+        _head.lazySet(_written)
+    }
+
+    override fun injectWorldController(controller: WorldController) {
+        target.injectWorldController(controller)
+    }
+
+    override val listeningBitset: Int
+        get() = target.listeningBitset
+
+    override fun addedSystem(index: Int, name: String, allTypes: BitVector?, oneTypes: BitVector?, notTypes: BitVector?) {
+        write(ADDED_SYSTEM, index, 0, 0, arrayOf(name, allTypes, oneTypes, notTypes))
+    }
+
+    override fun addedManager(name: String) {
+        write(ADDED_MANAGER, 0, 0, 0, name)
+    }
+
+    override fun addedComponentType(index: Int, info: ComponentTypeInfo) {
+        _componentModels.set(index, info.model)
+        write(ADDED_COMPONENT_TYPE, index, 0, 0, info)
+    }
+
+    override fun updatedEntitySystem(index: Int, entitiesCount: Int, maxEntitiesCount: Int) {
+        write(UPDATED_ENTITY_SYSTEM, index, entitiesCount, maxEntitiesCount, null)
+    }
+
+    override fun updatedSystemTimings(p50: LongArray, p99: LongArray, max: LongArray) {
+        // arrays are reused by caller
+        write(UPDATED_SYSTEM_TIMINGS, 0, 0, 0, SystemTimings(p50.copyOf(), p99.copyOf(), max.copyOf()))
+    }
+
+    override fun addedComposition(compositionId: Int, components: BitVector) {
+        write(ADDED_COMPOSITION, compositionId, 0, 0, components)
+    }
+
+    override fun addedEntity(entityId: Int, compositionId: Int) {
+        write(ADDED_ENTITY, entityId, compositionId, 0, null)
+    }
+
+    override fun deletedEntity(entityId: Int) {
+        write(DELETED_ENTITY, entityId, 0, 0, null)
+    }
+
+    override fun updatedEntities(deletedEntityIds: IntBag, addedEntityIds: IntBag, addedCompositionIds: IntBag) {
+        // bags are reused by caller so batch is written entity by entity
+        for (i in 0..deletedEntityIds.size() - 1) {
+            write(BATCH_DELETED_ENTITY, deletedEntityIds.get(i), 0, 0, null)
+        }
+        for (i in 0..addedEntityIds.size() - 1) {
+            write(BATCH_ADDED_ENTITY, addedEntityIds.get(i), addedCompositionIds.get(i), 0, null)
+        }
+        write(BATCH_END, 0, 0, 0, null)
+    }
+
+    override fun updatedComponentState(entityId: Int, componentIndex: Int, valueTree: Any) {
+        val model = _componentModels.safeGet(componentIndex)
+        val state = if (model != null) _copier.copy(model, valueTree) else valueTree
+        write(UPDATED_COMPONENT_STATE, entityId, componentIndex, 0, state)
+    }
+
+
+    //////////////////////////////////////
+    // tracker thread
+
+    private fun run() {
+        var tail = _tail.get()
+
+        while (true) {
+            // `stop()` is called after the last write so the last records are read too
+            val isRunning = _isRunning
+            val head = _head.get()
+
+            if (tail < head) {
+                while (tail < head) {
+                    val slot = tail.toInt() and _mask
+                    val i = slot * RECORD_SIZE
+                    val obj = _objects[slot]
+                    _objects[slot] = null
+
+                    read(_ints[i], _ints[i + 1], _ints[i + 2], _ints[i + 3], obj)
+                    ++tail
+                    _tail.lazySet(tail)
+                }
+                continue
+            }
+
+            if (_isOverflowing) {
+                readOverflow(tail)
+                continue
+            }
+
+            if (!isRunning) {
+                break
+            }
+
+            LockSupport.parkNanos(WAIT_NANOS)
+        }
+    }
+
+    private fun readOverflow(tail: Long) {
+        val records = synchronized(_overflow) {
+            // records which got into the buffer before it was full are read first
+            if (_head.get() != tail) {
+                return
+            }
+
+            val records = _overflow.toTypedArray()
+            _overflow.clear()
+            _isOverflowing = false
+            records
+        }
+
+        for (record in records) {
+            read(record.kind, record.a, record.b, record.c, record.obj)
+        }
+    }
+
+    private fun read(kind: Int, a: Int, b: Int, c: Int, obj: Any?) {
+        try {
+            dispatch(kind, a, b, c, obj)
+        }
+        catch (e: Exception) {
+            // failure of a single event (e.g. of one client) shouldn't stop delivering the next ones
+            e.printStackTrace()
+        }
+
+        _readEvents.lazySet(_readEvents.get() + 1)
+    }
+
+    private fun dispatch(kind: Int, a: Int, b: Int, c: Int, obj: Any?) {
+        when (kind) {
+            ADDED_SYSTEM -> {
+                val args = obj as Array<*>
+                target.addedSystem(a, args[0] as String, args[1] as BitVector?, args[2] as BitVector?, args[3] as BitVector?)
+            }
+            ADDED_MANAGER -> target.addedManager(obj as String)
+            ADDED_COMPONENT_TYPE -> target.addedComponentType(a, obj as ComponentTypeInfo)
+            UPDATED_ENTITY_SYSTEM -> target.updatedEntitySystem(a, b, c)
+            UPDATED_SYSTEM_TIMINGS -> {
+                val timings = obj as SystemTimings
+                target.updatedSystemTimings(timings.p50, timings.p99, timings.max)
+            }
+            ADDED_COMPOSITION -> target.addedComposition(a, obj as BitVector)
+            ADDED_ENTITY -> target.addedEntity(a, b)
+            DELETED_ENTITY -> target.deletedEntity(a)
+            BATCH_DELETED_ENTITY -> _deletedEntities.add(a)
+            BATCH_ADDED_ENTITY -> {
+                _addedEntities.add(a)
+                _addedCompositions.add(b)
+            }
+            BATCH_END -> readBatch()
+            UPDATED_COMPONENT_STATE -> target.updatedComponentState(a, b, obj!!)
+        }
+    }
+
+    private fun readBatch() {
+        val target = target
+
+        if (target is WorldUpdateBatchListener) {
+            target.updatedEntities(_deletedEntities, _addedEntities, _addedCompositions)
+        }
+        else {
+            for (i in 0.._deletedEntities.size() - 1) {
+                target.deletedEntity(_deletedEntities.get(i))
+            }
+            for (i in 0.._addedEntities.size() - 1) {
+                target.addedEntity(_addedEntities.get(i), _addedCompositions.get(i))
+            }
+        }
+
+        _deletedEntities.clear()
+        _addedEntities.clear()
+        _addedCompositions.clear()
+    }
+
+    private class OverflowRecord(val kind: Int, val a: Int, val b: Int, val c: Int, val obj: Any?)
+
+    private class SystemTimings(val p50: LongArray, val p99: LongArray, val max: LongArray)
+
+    companion object {
+        const val DEFAULT_CAPACITY = 1 shl 16
+
+        private const val RECORD_SIZE = 4
+        private const val WAIT_NANOS = 100000L
+
+        private const val ADDED_SYSTEM = 1
+        private const val ADDED_MANAGER = 2
+        private const val ADDED_COMPONENT_TYPE = 3
+        private const val UPDATED_ENTITY_SYSTEM = 4
+        private const val UPDATED_SYSTEM_TIMINGS = 5
+        private const val ADDED_COMPOSITION = 6
+        private const val ADDED_ENTITY = 7
+        private const val DELETED_ENTITY = 8
+        private const val BATCH_DELETED_ENTITY = 9
+        private const val BATCH_ADDED_ENTITY = 10
+        private const val BATCH_END = 11
+        private const val UPDATED_COMPONENT_STATE = 12
+    }
+}
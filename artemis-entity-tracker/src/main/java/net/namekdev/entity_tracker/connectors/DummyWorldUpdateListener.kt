@@ -17,9 +17,13 @@ open abstract class DummyWorldUpdateListener : WorldUpdateListener {
 
     override fun updatedEntitySystem(index: Int, entitiesCount: Int, maxEntitiesCount: Int) {}
 
-    override fun addedEntity(entityId: Int, components: BitVector) {}
+    override fun addedComposition(compositionId: Int, components: BitVector) {}
+
+    override fun addedEntity(entityId: Int, compositionId: Int) {}
 
     override fun deletedEntity(entityId: Int) {}
 
     override fun updatedComponentState(entityId: Int, componentIndex: Int, valueTree: Any) {}
+
+    override fun updatedSystemTimings(p50: LongArray, p99: LongArray, max: LongArray) {}
 }
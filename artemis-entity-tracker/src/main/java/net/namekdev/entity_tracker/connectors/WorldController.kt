@@ -4,5 +4,15 @@ interface WorldController {
     fun setSystemState(name: String, isOn: Boolean)
     fun setManagerState(name: String, isOn: Boolean)
     fun requestComponentState(entityId: Int, componentIndex: Int)
+
+    /**
+     * Subscribes to state of component. It's sent right away and then every time it changes,
+     * but not more often than every `interval` milliseconds. Watch ends with deletion of the entity.
+     *
+     * @return `false` when entity is already deleted, then the watch is not started
+     */
+    fun watchComponent(entityId: Int, componentIndex: Int, interval: Int): Boolean
+
+    fun unwatchComponent(entityId: Int, componentIndex: Int)
     fun setComponentFieldValue(entityId: Int, componentIndex: Int, treePath: IntArray, value: Any)
 }
@@ -0,0 +1,21 @@
+package net.namekdev.entity_tracker.connectors
+
+import com.artemis.utils.IntBag
+
+/**
+ * Listener which receives entity lifecycle events of a whole world tick at once,
+ * instead of [WorldUpdateListener.addedEntity] and [WorldUpdateListener.deletedEntity].
+ *
+ * @author Namek
+ */
+interface WorldUpdateBatchListener : WorldUpdateListener {
+	/**
+	 * Entities deleted and added since last call, deletions should be applied first.
+	 * Bags are reused, so they're valid only during the call.
+	 *
+	 * @param deletedEntityIds sorted ids
+	 * @param addedEntityIds ids sorted by composition first
+	 * @param addedCompositionIds composition ids of [addedEntityIds]
+	 */
+	fun updatedEntities(deletedEntityIds: IntBag, addedEntityIds: IntBag, addedCompositionIds: IntBag)
+}
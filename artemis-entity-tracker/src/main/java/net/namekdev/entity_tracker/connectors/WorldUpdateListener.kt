@@ -14,16 +14,28 @@ interface WorldUpdateListener {
 	fun addedManager(name: String)
 	fun addedComponentType(index: Int, info: ComponentTypeInfo)
 	fun updatedEntitySystem(index: Int, entitiesCount: Int, maxEntitiesCount: Int)
-	fun addedEntity(entityId: Int, components: BitVector)
+
+	/**
+	 * Called once for every distinct set of component types, before first entity of it is added.
+	 */
+	fun addedComposition(compositionId: Int, components: BitVector)
+	fun addedEntity(entityId: Int, compositionId: Int)
 	//	void changed(Entity e);
 	fun deletedEntity(entityId: Int)
 
 	fun updatedComponentState(entityId: Int, componentIndex: Int, valueTree: Any)
 
+	/**
+	 * Processing times of systems since last call, in nanoseconds, indexed by system index.
+	 * Arrays are reused, so they're valid only during the call.
+	 */
+	fun updatedSystemTimings(p50: LongArray, p99: LongArray, max: LongArray)
+
 	companion object {
 		const val ENTITY_ADDED = 1 shl 1
 		const val ENTITY_DELETED = 1 shl 2
 		//	const val CHANGED = 1 shl 3;
 		const val ENTITY_SYSTEM_STATS = 1 shl 4
+		const val SYSTEM_TIMINGS = 1 shl 5
 	}
 }
\ No newline at end of file
@@ -1,12 +1,14 @@
 package net.namekdev.entity_tracker.network
 
 import java.net.SocketAddress
-import java.util.HashMap
+import java.util.Arrays
 
 import com.artemis.Component
 import com.artemis.utils.Bag
 import com.artemis.utils.BitVector
+import com.artemis.utils.IntBag
 import net.namekdev.entity_tracker.connectors.WorldController
+import net.namekdev.entity_tracker.connectors.WorldUpdateBatchListener
 import net.namekdev.entity_tracker.connectors.WorldUpdateListener
 import net.namekdev.entity_tracker.model.AspectInfo
 import net.namekdev.entity_tracker.model.ComponentTypeInfo
@@ -14,7 +16,11 @@ import net.namekdev.entity_tracker.network.base.RawConnectionCommunicator
 import net.namekdev.entity_tracker.network.base.RawConnectionCommunicatorProvider
 import net.namekdev.entity_tracker.network.base.RawConnectionOutputListener
 import net.namekdev.entity_tracker.network.base.Server
+import net.namekdev.entity_tracker.network.communicator.Communicator
+import net.namekdev.entity_tracker.network.communicator.EncodedFrame
 import net.namekdev.entity_tracker.network.communicator.EntityTrackerCommunicator
+import net.namekdev.entity_tracker.network.communicator.FrameEncoder
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer
 import net.namekdev.entity_tracker.utils.tuple.Tuple3
 
 
@@ -24,17 +30,29 @@ import net.namekdev.entity_tracker.utils.tuple.Tuple3
 
  * @author Namek
  */
-class EntityTrackerServer @JvmOverloads constructor(listeningPort: Int = Server.DEFAULT_PORT) : Server(), WorldUpdateListener {
+class EntityTrackerServer @JvmOverloads constructor(listeningPort: Int = Server.DEFAULT_PORT) : Server(), WorldUpdateBatchListener {
     private lateinit var _worldController: WorldController
     private val _listeners = Bag<EntityTrackerCommunicator>()
 
     private val _managers = Bag<String>()
     private val _systems = Bag<Tuple3<Int, String, AspectInfo>>()
     private val _componentTypes = Bag<ComponentTypeInfo>()
-    private val _entities = HashMap<Int, BitVector>()
+    private val _compositions = Bag<BitVector>()
+
+    // composition id + 1 by entity id, 0 for no entity
+    private val _entities = IntBag()
     private val _entitySystemsEntitiesCount = Bag<Int>()
     private val _entitySystemsMaxEntitiesCount = Bag<Int>()
 
+    /**
+     * Compression used for clients which support it, see [EntityTrackerCommunicator.preferredCompression].
+     */
+    var preferredCompression = Communicator.FEATURE_FAST_COMPRESSION
+
+    // frequent events are encoded once for all clients of the same encoding
+    private val _encoder = FrameEncoder()
+    private val _frames = arrayOfNulls<EncodedFrame>(FrameEncoder.ENCODING_COUNT)
+
 
     override fun injectWorldController(controller: WorldController) {
         _worldController = controller
@@ -42,7 +60,8 @@ class EntityTrackerServer @JvmOverloads constructor(listeningPort: Int = Server.
 
     override // TODO
     val listeningBitset: Int
-        get() = WorldUpdateListener.ENTITY_ADDED or WorldUpdateListener.ENTITY_DELETED or WorldUpdateListener.ENTITY_SYSTEM_STATS
+        get() = WorldUpdateListener.ENTITY_ADDED or WorldUpdateListener.ENTITY_DELETED or WorldUpdateListener.ENTITY_SYSTEM_STATS or
+            WorldUpdateListener.SYSTEM_TIMINGS
 
     override fun addedSystem(index: Int, name: String, allTypes: BitVector?, oneTypes: BitVector?, notTypes: BitVector?) {
         var i = 0
@@ -77,40 +96,76 @@ class EntityTrackerServer @JvmOverloads constructor(listeningPort: Int = Server.
         _componentTypes.set(index, info)
     }
 
-    override fun updatedEntitySystem(systemIndex: Int, entitiesCount: Int, maxEntitiesCount: Int) {
-        var i = 0
-        val n = _listeners.size()
-        while (i < n) {
-            val communicator = _listeners.get(i)
-            communicator.updatedEntitySystem(systemIndex, entitiesCount, maxEntitiesCount)
-            ++i
+    override fun updatedEntitySystem(index: Int, entitiesCount: Int, maxEntitiesCount: Int) {
+        broadcast(Communicator.TYPE_UPDATED_ENTITY_SYSTEM) {
+            EntityTrackerCommunicator.writeUpdatedEntitySystem(it, index, entitiesCount, maxEntitiesCount)
         }
-        _entitySystemsEntitiesCount.set(systemIndex, entitiesCount)
-        _entitySystemsMaxEntitiesCount.set(systemIndex, maxEntitiesCount)
+        _entitySystemsEntitiesCount.set(index, entitiesCount)
+        _entitySystemsMaxEntitiesCount.set(index, maxEntitiesCount)
     }
 
-    override fun addedEntity(entityId: Int, components: BitVector) {
+    override fun updatedSystemTimings(p50: LongArray, p99: LongArray, max: LongArray) {
+        broadcast(Communicator.TYPE_UPDATED_SYSTEM_TIMINGS) {
+            EntityTrackerCommunicator.writeUpdatedSystemTimings(it, p50, p99, max)
+        }
+    }
+
+    override fun addedComposition(compositionId: Int, components: BitVector) {
+        broadcast(Communicator.TYPE_ADDED_COMPOSITION) {
+            EntityTrackerCommunicator.writeAddedComposition(it, compositionId, components)
+        }
+        _compositions.set(compositionId, components)
+    }
+
+    override fun addedEntity(entityId: Int, compositionId: Int) {
+        broadcast(Communicator.TYPE_ADDED_ENTITY) {
+            EntityTrackerCommunicator.writeAddedEntity(it, entityId, compositionId)
+        }
+        _entities.set(entityId, compositionId + 1)
+    }
+
+    override fun deletedEntity(entityId: Int) {
         var i = 0
         val n = _listeners.size()
         while (i < n) {
-            val communicator = _listeners.get(i)
-            communicator.addedEntity(entityId, components)
+            _listeners.get(i).forgetComponentStates(entityId)
             ++i
         }
-        _entities.put(entityId, components)
+
+        broadcast(Communicator.TYPE_DELETED_ENTITY) {
+            EntityTrackerCommunicator.writeDeletedEntity(it, entityId)
+        }
+        if (entityId >= 0 && entityId < _entities.size()) {
+            _entities.set(entityId, 0)
+        }
     }
 
-    override fun deletedEntity(entityId: Int) {
+    override fun updatedEntities(deletedEntityIds: IntBag, addedEntityIds: IntBag, addedCompositionIds: IntBag) {
         var i = 0
         val n = _listeners.size()
         while (i < n) {
-            val communicator = _listeners.get(i)
-            communicator.deletedEntity(entityId)
+            _listeners.get(i).forgetComponentStates(deletedEntityIds)
             ++i
         }
-        _entities.remove(entityId)
+
+        broadcast(Communicator.TYPE_UPDATED_ENTITIES) {
+            EntityTrackerCommunicator.writeUpdatedEntities(it, deletedEntityIds, addedEntityIds, addedCompositionIds)
+        }
+
+        for (j in 0..deletedEntityIds.size() - 1) {
+            val entityId = deletedEntityIds.get(j)
+            if (entityId >= 0 && entityId < _entities.size()) {
+                _entities.set(entityId, 0)
+            }
+        }
+        for (j in 0..addedEntityIds.size() - 1) {
+            _entities.set(addedEntityIds.get(j), addedCompositionIds.get(j) + 1)
+        }
     }
 
+    /**
+     * Every communicator sends the state only if it's client watches or requested the component.
+     */
     override fun updatedComponentState(entityId: Int, componentIndex: Int, valueTree: Any) {
         // `valueTree` is going to be serialized in next layer
         assert(valueTree is Component)
@@ -124,6 +179,44 @@ class EntityTrackerServer @JvmOverloads constructor(listeningPort: Int = Server.
         }
     }
 
+    /**
+     * Encodes packet once for every encoding used by clients and sends the same frame to all of them.
+     * Failure of one client doesn't stop sending to the others.
+     */
+    private inline fun broadcast(packetType: Byte, write: (NetworkSerializer) -> Unit) {
+        try {
+            var i = 0
+            val n = _listeners.size()
+            while (i < n) {
+                val communicator = _listeners.get(i)
+                val encoding = communicator.frameEncoding
+                var frame = _frames[encoding]
+
+                if (frame == null) {
+                    write(_encoder.beginPacket(encoding, packetType))
+                    frame = _encoder.endPacket(encoding)
+                    _frames[encoding] = frame
+                }
+
+                try {
+                    communicator.sendFrame(frame)
+                }
+                catch (e: Exception) {
+                    e.printStackTrace()
+                }
+
+                ++i
+            }
+        }
+        finally {
+            // frames cached for this packet can't be sent with the next one
+            for (encoding in _frames.indices) {
+                _frames[encoding]?.release()
+                _frames[encoding] = null
+            }
+        }
+    }
+
     private val _communicatorProvider = object : RawConnectionCommunicatorProvider {
         override fun getListener(remoteName: String): RawConnectionCommunicator {
             // Server requests communicator for given remote.
@@ -132,8 +225,10 @@ class EntityTrackerServer @JvmOverloads constructor(listeningPort: Int = Server.
                 override fun connected(remoteAddress: SocketAddress, output: RawConnectionOutputListener) {
                     super.connected(remoteAddress, output)
                     injectWorldController(_worldController)
+                    preferredCompression = this@EntityTrackerServer.preferredCompression
+                }
 
-
+                override fun handshakeAccepted() {
                     run {
                         var i = 0
                         val n = _systems.size()
@@ -174,21 +269,61 @@ class EntityTrackerServer @JvmOverloads constructor(listeningPort: Int = Server.
                         ++i
                     }
 
-                    for ((key, value) in _entities) {
-                        addedEntity(key, value)
+                    i = 0
+                    while (i < _compositions.size()) {
+                        val components = _compositions.get(i)
+                        if (components != null) {
+                            addedComposition(i, components)
+                        }
+                        ++i
                     }
+
+                    sendAllEntities(this)
+
+                    _listeners.add(this)
                 }
 
                 override fun disconnected() {
                     _listeners.remove(this)
+                    unwatchAllComponents()
                 }
             }
-            _listeners.add(newCommunicator)
 
             return newCommunicator
         }
     }
 
+    /**
+     * Sends all entities as a single batch, grouped by composition.
+     */
+    private fun sendAllEntities(communicator: EntityTrackerCommunicator) {
+        var count = 0
+        for (i in 0.._entities.size() - 1) {
+            if (_entities.get(i) != 0) {
+                ++count
+            }
+        }
+
+        val sorted = LongArray(count)
+        var n = 0
+        for (i in 0.._entities.size() - 1) {
+            val composition = _entities.get(i)
+            if (composition != 0) {
+                sorted[n++] = ((composition - 1).toLong() shl 32) or i.toLong()
+            }
+        }
+        Arrays.sort(sorted)
+
+        val entityIds = IntBag(count)
+        val compositionIds = IntBag(count)
+        for (key in sorted) {
+            entityIds.add(key.toInt())
+            compositionIds.add((key ushr 32).toInt())
+        }
+
+        communicator.updatedEntities(IntBag(0), entityIds, compositionIds)
+    }
+
     init {
         super.clientListenerProvider = _communicatorProvider
         super.listeningPort = listeningPort
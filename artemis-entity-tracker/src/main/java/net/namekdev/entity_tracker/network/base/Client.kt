@@ -6,6 +6,7 @@ import java.io.OutputStream
 import java.net.Socket
 import java.net.SocketException
 import java.net.UnknownHostException
+import java.nio.ByteBuffer
 import java.util.Arrays
 
 /**
@@ -22,10 +23,21 @@ open class Client {
     protected lateinit var output: OutputStream
 
     protected var _isRunning: Boolean = false
-    private val _buffer = ByteArray(10240)
+    private var _buffer = ByteArray(10240)
     private var _incomingSize = -1
+    private var _isIncomingContinued = false
+    private var _receivedSize = 0
+    private var _receivedPartsSize = 0
+    private val _incomingHeader = ByteArray(IntegerBYTES)
+    private var _transferBuffer: ByteArray? = null
     private var _lastHeartbeatTime = System.currentTimeMillis()
 
+    // packets and heartbeats are written by different threads, they can't interleave
+    private val _outputLock = Any()
+
+    // output of connection accepted by server is queued, see [QueuedOutputStream]
+    private var _maxQueuedBytes = 0
+
     lateinit var connectionListener: RawConnectionCommunicator
 
     /**
@@ -33,6 +45,12 @@ open class Client {
      */
     var heartbeatDelay = 1000
 
+    /**
+     * Received packets bigger than that break the connection, so corrupted or malicious
+     * size doesn't make the buffer grow without limit.
+     */
+    var maxPacketSize = DEFAULT_MAX_PACKET_SIZE
+
 
     constructor() {}
 
@@ -40,9 +58,10 @@ open class Client {
         this.connectionListener = connectionListener
     }
 
-    internal constructor(socket: Socket, connectionListener: RawConnectionCommunicator) {
+    internal constructor(socket: Socket, connectionListener: RawConnectionCommunicator, maxQueuedBytes: Int) {
         this.socket = socket
         this.connectionListener = connectionListener
+        _maxQueuedBytes = maxQueuedBytes
         _isRunning = socket.isConnected && !socket.isClosed
     }
 
@@ -90,7 +109,11 @@ open class Client {
         try {
             socket!!.tcpNoDelay = true
             input = socket!!.inputStream
-            output = socket!!.outputStream
+            output =
+                if (_maxQueuedBytes > 0)
+                    QueuedOutputStream(socket!!, _maxQueuedBytes)
+                else
+                    socket!!.outputStream
             _isRunning = true
 
             connectionListener!!.connected(socket!!.remoteSocketAddress, outputListener)
@@ -108,7 +131,11 @@ open class Client {
      * This method can be run manually or used through [.startThread].
      */
     fun update(): Boolean {
-        if (_isRunning && isConnected) {
+        if (_isRunning && !isConnected) {
+            // socket was closed, e.g. by queued output of client which didn't receive data fast enough
+            _isRunning = false
+        }
+        else if (_isRunning) {
             var n = 0
             try {
                 n = input.available()
@@ -119,22 +146,53 @@ open class Client {
                     if (currentTime - _lastHeartbeatTime > heartbeatDelay) {
                         _lastHeartbeatTime = currentTime
 
-                        output.write(heartbeat, 0, heartbeat.size)
-                        output.flush()
+                        synchronized(_outputLock) {
+                            output.write(heartbeat, 0, heartbeat.size)
+                            output.flush()
+                        }
                     }
                 }
                 else
                     do {
-                        if (_incomingSize <= 0 && n >= IntegerBYTES) {
-                            input.read(_buffer, 0, IntegerBYTES)
-                            _incomingSize = readRawInt(_buffer, 0)
+                        if (_incomingSize <= 0) {
+                            if (n < IntegerBYTES) {
+                                break
+                            }
+
+                            input.read(_incomingHeader, 0, IntegerBYTES)
+                            val header = readRawInt(_incomingHeader, 0)
+                            _incomingSize = header and PART_LENGTH_MASK
+                            _isIncomingContinued = header and PART_CONTINUED != 0
+                            _receivedSize = 0
                             n -= IntegerBYTES
+
+                            if (header == PART_ABORTED) {
+                                _receivedPartsSize = 0
+                                continue
+                            }
+
+                            val packetSize = _receivedPartsSize + _incomingSize
+                            if (packetSize > maxPacketSize || packetSize < 0) {
+                                throw IOException("Packet of $packetSize bytes exceeds the limit of $maxPacketSize bytes.")
+                            }
+                            if (packetSize > _buffer.size) {
+                                _buffer = Arrays.copyOf(_buffer, Integer.highestOneBit(packetSize - 1) shl 1)
+                            }
                             continue
                         }
 
-                        if (_incomingSize > 0 && n >= _incomingSize) {
-                            input.read(_buffer, 0, _incomingSize)
-                            connectionListener.bytesReceived(_buffer, 0, _incomingSize)
+                        // big packets don't fit into the socket's buffer so they are gathered in parts
+                        val offset = _receivedPartsSize + _receivedSize
+                        _receivedSize += input.read(_buffer, offset, Math.min(n, _incomingSize - _receivedSize))
+
+                        if (_receivedSize == _incomingSize) {
+                            if (_isIncomingContinued) {
+                                _receivedPartsSize += _incomingSize
+                            }
+                            else {
+                                connectionListener.bytesReceived(_buffer, 0, _receivedPartsSize + _incomingSize)
+                                _receivedPartsSize = 0
+                            }
                             _incomingSize = 0
                         }
 
@@ -181,7 +239,7 @@ open class Client {
     }
 
     internal val threadRunnable: Runnable = Runnable {
-        while (_isRunning && !socket!!.isClosed) {
+        while (_isRunning) {
             if (!update()) {
                 connectionListener!!.disconnected()
                 break
@@ -205,22 +263,96 @@ open class Client {
     private val outputListener = object : RawConnectionOutputListener {
         override fun send(buffer: ByteArray, offset: Int, length: Int) {
             try {
-                output.write(length shr 24 and 0xFF)
-                output.write(length shr 16 and 0xFF)
-                output.write(length shr 8 and 0xFF)
-                output.write(length and 0xFF)
-                output.write(buffer, offset, length)
-                output.flush()
+                synchronized(_outputLock) {
+                    writeHeader(length)
+                    output.write(buffer, offset, length)
+                    output.flush()
+                }
+            }
+            catch (e: IOException) {
+                throw RuntimeException(e)
+            }
+        }
+
+        override fun send(buffers: Array<ByteBuffer>, count: Int, length: Int) {
+            sendWithHeader(buffers, count, length)
+        }
+
+        override fun sendPart(buffers: Array<ByteBuffer>, count: Int, length: Int) {
+            sendWithHeader(buffers, count, length or PART_CONTINUED)
+        }
+
+        override fun abortParts() {
+            try {
+                synchronized(_outputLock) {
+                    writeHeader(PART_ABORTED)
+                    output.flush()
+                }
+            }
+            catch (e: IOException) {
+                throw RuntimeException(e)
+            }
+        }
+
+        private fun sendWithHeader(buffers: Array<ByteBuffer>, count: Int, header: Int) {
+            try {
+                synchronized(_outputLock) {
+                    writeHeader(header)
+
+                    for (i in 0..count - 1) {
+                        writeBuffer(buffers[i])
+                    }
+
+                    output.flush()
+                }
             }
             catch (e: IOException) {
                 throw RuntimeException(e)
             }
         }
+
+        private fun writeHeader(header: Int) {
+            output.write(header shr 24 and 0xFF)
+            output.write(header shr 16 and 0xFF)
+            output.write(header shr 8 and 0xFF)
+            output.write(header and 0xFF)
+        }
+
+        private fun writeBuffer(buffer: ByteBuffer) {
+            if (buffer.hasArray()) {
+                output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+                buffer.position(buffer.limit())
+            }
+            else {
+                // direct buffers can't be written to stream without copying them
+                if (_transferBuffer == null) {
+                    _transferBuffer = ByteArray(4096)
+                }
+                val transferBuffer = _transferBuffer!!
+
+                while (buffer.hasRemaining()) {
+                    val n = Math.min(buffer.remaining(), transferBuffer.size)
+                    buffer.get(transferBuffer, 0, n)
+                    output.write(transferBuffer, 0, n)
+                }
+            }
+        }
     }
 
     companion object {
         private val IntegerBYTES = Integer.SIZE / 8
 
+        /**
+         * Highest bit of packet header marks a part of a packet which is continued
+         * in the next one, other bits are length of the part. Header of zero length is a heartbeat,
+         * continued part of zero length drops the parts received so far.
+         */
+        const val PART_CONTINUED = 1 shl 31
+        const val PART_LENGTH_MASK = PART_CONTINUED.inv()
+        const val PART_ABORTED = PART_CONTINUED
+
+        const val DEFAULT_MAX_PACKET_SIZE = 64 * 1024 * 1024
+
         private val heartbeat: ByteArray
 
         init {
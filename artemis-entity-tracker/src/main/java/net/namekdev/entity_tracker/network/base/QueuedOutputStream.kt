@@ -0,0 +1,141 @@
+package net.namekdev.entity_tracker.network.base
+
+import java.io.IOException
+import java.io.OutputStream
+import java.net.Socket
+
+/**
+ * Output of a socket which doesn't block the caller. Written bytes are queued and a separate
+ * thread writes them to the socket when they're flushed. When the other side doesn't receive
+ * them fast enough and more than `maxQueuedBytes` wait, the socket is closed and the rest
+ * is dropped, so a single slow client doesn't stall sending events to the others.
+ *
+ * @author Namek
+ */
+internal class QueuedOutputStream(
+    private val socket: Socket,
+    private val maxQueuedBytes: Int
+) : OutputStream() {
+    private val _target = socket.outputStream
+    private val _lock = Object()
+
+    // bytes written by the caller, they're swapped with the ones being sent by writer thread
+    private var _queued = ByteArray(INITIAL_SIZE)
+    private var _queuedSize = 0
+    private var _sending = ByteArray(INITIAL_SIZE)
+    private var _isFlushRequested = false
+    private var _isClosed = false
+
+    private val _thread = Thread(Runnable { run() }, "entity-tracker-output")
+
+
+    init {
+        _thread.isDaemon = true
+        _thread.start()
+    }
+
+    override fun write(b: Int) {
+        synchronized(_lock) {
+            if (reserve(1)) {
+                _queued[_queuedSize++] = b.toByte()
+            }
+        }
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        synchronized(_lock) {
+            if (reserve(len)) {
+                System.arraycopy(b, off, _queued, _queuedSize, len)
+                _queuedSize += len
+            }
+        }
+    }
+
+    override fun flush() {
+        synchronized(_lock) {
+            _isFlushRequested = true
+            _lock.notifyAll()
+        }
+    }
+
+    override fun close() {
+        synchronized(_lock) {
+            _isClosed = true
+            _lock.notifyAll()
+        }
+
+        try {
+            socket.close()
+        }
+        catch (e: IOException) {
+        }
+    }
+
+    /**
+     * Makes place for `length` bytes, or closes the connection when too much is queued.
+     */
+    private fun reserve(length: Int): Boolean {
+        if (_isClosed) {
+            return false
+        }
+
+        val size = _queuedSize + length
+
+        if (size > maxQueuedBytes) {
+            // reader of the socket notices it's closed and tells that client is disconnected
+            _isClosed = true
+            _lock.notifyAll()
+
+            try {
+                socket.close()
+            }
+            catch (e: IOException) {
+            }
+
+            return false
+        }
+
+        if (size > _queued.size) {
+            _queued = _queued.copyOf(Integer.highestOneBit(size - 1) shl 1)
+        }
+
+        return true
+    }
+
+    private fun run() {
+        while (true) {
+            val size = synchronized(_lock) {
+                while (!_isFlushRequested && !_isClosed) {
+                    _lock.wait()
+                }
+
+                if (_isClosed) {
+                    return
+                }
+
+                val bytes = _queued
+                val size = _queuedSize
+                _queued = _sending
+                _queuedSize = 0
+                _sending = bytes
+                _isFlushRequested = false
+                size
+            }
+
+            try {
+                _target.write(_sending, 0, size)
+                _target.flush()
+            }
+            catch (e: IOException) {
+                close()
+                return
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_QUEUED_BYTES = 32 * 1024 * 1024
+
+        private const val INITIAL_SIZE = 8192
+    }
+}
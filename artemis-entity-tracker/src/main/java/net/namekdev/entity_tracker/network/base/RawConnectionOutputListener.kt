@@ -1,5 +1,23 @@
 package net.namekdev.entity_tracker.network.base
 
+import java.nio.ByteBuffer
+
 interface RawConnectionOutputListener {
     fun send(buffer: ByteArray, offset: Int, length: Int)
+
+    /**
+     * Sends remaining content of first `count` buffers as a single packet of `length` bytes.
+     */
+    fun send(buffers: Array<ByteBuffer>, count: Int, length: Int)
+
+    /**
+     * Sends part of a packet which is still being written. Parts are joined by the other side,
+     * the packet ends with the part sent through one of `send()` methods.
+     */
+    fun sendPart(buffers: Array<ByteBuffer>, count: Int, length: Int)
+
+    /**
+     * Tells the other side to drop parts sent so far, when the packet can't be finished.
+     */
+    fun abortParts()
 }
@@ -20,6 +20,12 @@ open class Server : Runnable {
 
     protected lateinit var clientListenerProvider: RawConnectionCommunicatorProvider
 
+    /**
+     * Bytes which may wait to be sent to a single client. Client which doesn't receive them
+     * fast enough is disconnected, so it doesn't stall sending to the others.
+     */
+    var maxQueuedBytes = QueuedOutputStream.DEFAULT_MAX_QUEUED_BYTES
+
 
     constructor(clientListenerProvider: RawConnectionCommunicatorProvider) {
         this.clientListenerProvider = clientListenerProvider
@@ -105,7 +111,7 @@ open class Server : Runnable {
 
     protected fun createSocketListener(socket: Socket): Client {
         val connectionListener = clientListenerProvider!!.getListener(socket.remoteSocketAddress.toString())
-        return Client(socket, connectionListener)
+        return Client(socket, connectionListener, maxQueuedBytes)
     }
 
     companion object {
@@ -1,12 +1,18 @@
 package net.namekdev.entity_tracker.network.communicator
 
 import java.net.SocketAddress
+import java.nio.ByteBuffer
+import java.util.Arrays
 
+import net.namekdev.entity_tracker.model.ComponentTypeInfo
 import net.namekdev.entity_tracker.network.base.RawConnectionCommunicator
 import net.namekdev.entity_tracker.network.base.RawConnectionOutputListener
+import net.namekdev.entity_tracker.network.compression.FrameCompression
 import net.namekdev.entity_tracker.utils.serialization.NetworkDeserializer
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer
+import net.namekdev.entity_tracker.utils.serialization.ObjectModelNode
+import net.namekdev.entity_tracker.utils.serialization.ObjectTypeInspector
 
 /**
  * Defines basics of network protocol for communication between EntityTracker Manager and external UI.
@@ -15,40 +21,250 @@ import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer
  */
 abstract class Communicator : RawConnectionCommunicator {
     protected lateinit var _output: RawConnectionOutputListener
-    protected val _serializer = NetworkSerialization.createSerializer()
+    protected val _serializer = NetworkSerialization.createSerializer(ObjectTypeInspector.shared)
     protected val _deserializer = NetworkSerialization.createDeserializer()
 
+    /**
+     * Features of protocol accepted by both sides, see [SUPPORTED_FEATURES].
+     */
+    protected var _features = 0
+
+    /**
+     * Set when any compression is negotiated, then every packet is sent as compression frames.
+     */
+    protected var _compression: FrameCompression? = null
+    private val _frameBuffers = arrayOf(ByteBuffer.allocate(0))
+
+    // set when packet is begun and cleared when it's sent, so the packet which failed is known
+    private var _isPacketWritten = false
+    private var _isPacketStreamed = false
+
+    /**
+     * Held while a packet is written and sent. Packets can be sent both by the thread which reports
+     * events and by the thread which reads requests, and they share the serializer and compression.
+     */
+    protected val _sendLock = Any()
+
+    // received packet set as source of deserializer, after decompression
+    private var _sourceBytes = ByteArray(0)
+    private var _sourceOffset = 0
+    private var _sourceLength = 0
+
 
     override fun connected(remoteAddress: SocketAddress, output: RawConnectionOutputListener) {
         _output = output
+
+        // big packets are sent in parts while they're still being serialized
+        _serializer.streamListener = object : NetworkSerializer.StreamListener {
+            override fun partWritten(buffers: Array<ByteBuffer>, count: Int, length: Int) {
+                val compression = _compression
+                _isPacketStreamed = true
+
+                if (compression == null) {
+                    _output.sendPart(buffers, count, length)
+                }
+                else {
+                    val frame = compression.compress(buffers, count, length)
+                    _frameBuffers[0] = frame
+                    _output.sendPart(_frameBuffers, 1, frame.remaining())
+                }
+            }
+        }
+
+        _isPacketWritten = false
+        _isPacketStreamed = false
+
+        // every connection starts with the basic protocol, until handshake is done
+        enableFeatures(0)
+
+        // data descriptions are sent once per connection
+        _serializer.forgetDescriptions()
+        _deserializer.forgetDescriptions()
+    }
+
+    protected open fun enableFeatures(features: Int) {
+        _features = features
+
+        val isCompact = features and FEATURE_COMPACT_ENCODING != 0
+        _serializer.isCompactEncoding = isCompact
+        _deserializer.isCompactEncoding = isCompact
+
+        val isTrustedSchema = features and FEATURE_TRUSTED_SCHEMA != 0
+        _serializer.isTrustedSchema = isTrustedSchema
+        _deserializer.isTrustedSchema = isTrustedSchema
+
+        val isStringDictionaryEnabled = features and FEATURE_STRING_DICTIONARY != 0
+        _serializer.isStringDictionaryEnabled = isStringDictionaryEnabled
+        _deserializer.isStringDictionaryEnabled = isStringDictionaryEnabled
+
+        _compression =
+            if (features and FEATURE_DEFLATE_COMPRESSION != 0)
+                FrameCompression(FrameCompression.CODEC_DEFLATE)
+            else if (features and FEATURE_FAST_COMPRESSION != 0)
+                FrameCompression(FrameCompression.CODEC_FAST_LZ)
+            else
+                null
+    }
+
+    /**
+     * Encoding of packets which don't depend on state of connection, like string dictionary.
+     * Such packets are the same for all connections of the same encoding, see [FrameEncoder].
+     */
+    val frameEncoding: Int
+        get() = _features and FEATURE_COMPACT_ENCODING
+
+    /**
+     * Sends packet encoded by [FrameEncoder] for [frameEncoding] of this connection.
+     * Frame is not released here.
+     */
+    fun sendFrame(frame: EncodedFrame) {
+        synchronized(_sendLock) {
+            abortFailedPacket()
+            val compression = _compression
+
+            if (compression == null) {
+                _output.send(frame.bytes, 0, frame.size)
+            }
+            else {
+                val compressedFrame = compression.compress(frame.bytes, frame.size)
+                _frameBuffers[0] = compressedFrame
+                _output.send(_frameBuffers, 1, compressedFrame.remaining())
+            }
+        }
+    }
+
+    /**
+     * Sets received packet as source of [_deserializer], decompressing it if needed.
+     */
+    protected fun setSource(bytes: ByteArray, offset: Int, length: Int) {
+        val compression = _compression
+
+        if (compression == null) {
+            _sourceBytes = bytes
+            _sourceOffset = offset
+            _sourceLength = length
+        }
+        else {
+            val packet = compression.decompress(bytes, offset, length)
+            _sourceBytes = packet.buffer
+            _sourceOffset = 0
+            _sourceLength = packet.size
+        }
+
+        _deserializer.setSource(_sourceBytes, _sourceOffset, _sourceLength)
+    }
+
+    /**
+     * Copy of the packet set by [setSource], already decompressed, so it can be read later
+     * by [NetworkDeserializer.setSource]. Buffer of received packet is reused for next packets.
+     */
+    protected fun copySource(): ByteArray {
+        return Arrays.copyOfRange(_sourceBytes, _sourceOffset, _sourceOffset + _sourceLength)
+    }
+
+    /**
+     * Adds names of component type and it's fields to dictionary of compression.
+     * Both sides have to call it for the same types at the same moment of communication.
+     */
+    protected fun addToCompressionDictionary(info: ComponentTypeInfo) {
+        val compression = _compression ?: return
+
+        compression.addDictionaryWord(info.name)
+        addToCompressionDictionary(compression, info.model, 0)
+    }
+
+    private fun addToCompressionDictionary(compression: FrameCompression, model: ObjectModelNode, depth: Int) {
+        model.name?.let { compression.addDictionaryWord(it) }
+
+        if (depth < MAX_DICTIONARY_MODEL_DEPTH) {
+            model.children?.forEach { addToCompressionDictionary(compression, it, depth + 1) }
+        }
     }
 
     override fun disconnected() {}
 
+    /**
+     * Sends the packet or the rest of it, if it was already sent in parts.
+     */
     protected fun send(serializer: NetworkSerializer) {
-        val data = serializer.result
-        _output.send(data.buffer, 0, data.size)
+        val compression = _compression
+        _isPacketWritten = false
+        _isPacketStreamed = false
+
+        if (compression == null) {
+            _output.send(serializer.flipChunks(), serializer.chunkCount, serializer.size)
+        }
+        else {
+            val frame = compression.compress(serializer.flipChunks(), serializer.chunkCount, serializer.size)
+            _frameBuffers[0] = frame
+            _output.send(_frameBuffers, 1, frame.remaining())
+        }
     }
 
     protected fun beginPacket(packetType: Byte): NetworkSerializer {
+        abortFailedPacket()
+        _isPacketWritten = true
         return _serializer.reset().addRawByte(packetType)
     }
 
+    /**
+     * Cleans up after a packet which was begun but not sent, because writing it has thrown.
+     * Parts of it could be already sent and the other side would join them with the next packet.
+     */
+    private fun abortFailedPacket() {
+        if (!_isPacketWritten) {
+            return
+        }
+
+        if (_isPacketStreamed) {
+            _output.abortParts()
+        }
+
+        _serializer.abortPacket()
+        _isPacketWritten = false
+        _isPacketStreamed = false
+    }
+
     companion object {
+        // protocol negotiation, always sent with basic encoding
+        const val TYPE_HANDSHAKE: Byte = 1
+        const val TYPE_HANDSHAKE_ACCEPTED: Byte = 2
+
+        // features of protocol, negotiated by handshake
+        const val FEATURE_COMPACT_ENCODING = 1 shl 0
+        const val FEATURE_TRUSTED_SCHEMA = 1 shl 1
+        const val FEATURE_STRING_DICTIONARY = 1 shl 2
+        const val FEATURE_FAST_COMPRESSION = 1 shl 3
+        const val FEATURE_DEFLATE_COMPRESSION = 1 shl 4
+        const val FEATURE_MODEL_FINGERPRINTS = 1 shl 5
+
+        const val COMPRESSION_FEATURES = FEATURE_FAST_COMPRESSION or FEATURE_DEFLATE_COMPRESSION
+        const val SUPPORTED_FEATURES = FEATURE_COMPACT_ENCODING or FEATURE_TRUSTED_SCHEMA or FEATURE_STRING_DICTIONARY or
+            COMPRESSION_FEATURES or FEATURE_MODEL_FINGERPRINTS
+
+        private const val MAX_DICTIONARY_MODEL_DEPTH = 3
 
         // tracker events
         const val TYPE_ADDED_ENTITY_SYSTEM: Byte = 60
         const val TYPE_ADDED_MANAGER: Byte = 61
         const val TYPE_ADDED_COMPONENT_TYPE: Byte = 63
+        const val TYPE_ADDED_COMPONENT_TYPE_FINGERPRINT: Byte = 65
         const val TYPE_UPDATED_ENTITY_SYSTEM: Byte = 64
+        const val TYPE_UPDATED_SYSTEM_TIMINGS: Byte = 66
         const val TYPE_ADDED_ENTITY: Byte = 68
+        const val TYPE_ADDED_COMPOSITION: Byte = 69
+        const val TYPE_UPDATED_ENTITIES: Byte = 70
         const val TYPE_DELETED_ENTITY: Byte = 73
         const val TYPE_UPDATED_COMPONENT_STATE: Byte = 104
+        const val TYPE_UPDATED_COMPONENT_STATE_DELTA: Byte = 105
 
         // UI requests
         const val TYPE_SET_SYSTEM_STATE: Byte = 90
         const val TYPE_SET_MANAGER_STATE: Byte = 94
         const val TYPE_REQUEST_COMPONENT_STATE: Byte = 103
+        const val TYPE_REQUEST_COMPONENT_TYPE: Byte = 108
+        const val TYPE_WATCH_COMPONENT: Byte = 110
+        const val TYPE_UNWATCH_COMPONENT: Byte = 111
         const val TYPE_SET_COMPONENT_FIELD_VALUE: Byte = 113
     }
 }
@@ -0,0 +1,102 @@
+package net.namekdev.entity_tracker.network.communicator
+
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer
+import net.namekdev.entity_tracker.utils.serialization.ObjectTypeInspector
+import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Packet encoded once and sent through many connections, see [Communicator.sendFrame].
+ * It's not modified once encoded. Every holder of the frame has to [release] it,
+ * then it goes back to it's [FrameEncoder] to be reused.
+ */
+class EncodedFrame internal constructor(private val _encoder: FrameEncoder) {
+    var bytes = ByteArray(INITIAL_CAPACITY)
+        private set
+
+    var size = 0
+        private set
+
+    private val _refCount = AtomicInteger()
+
+
+    internal fun setup(serializer: NetworkSerializer) {
+        val size = serializer.size
+        if (bytes.size < size) {
+            bytes = ByteArray(Integer.highestOneBit(size) shl 1)
+        }
+
+        val chunks = serializer.flipChunks()
+        var pos = 0
+        for (i in 0..serializer.chunkCount - 1) {
+            val n = chunks[i].remaining()
+            chunks[i].get(bytes, pos, n)
+            pos += n
+        }
+
+        this.size = size
+        _refCount.set(1)
+    }
+
+    fun retain(): EncodedFrame {
+        _refCount.incrementAndGet()
+        return this
+    }
+
+    fun release() {
+        val refCount = _refCount.decrementAndGet()
+        assert(refCount >= 0)
+
+        if (refCount == 0) {
+            _encoder.free(this)
+        }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 64
+    }
+}
+
+/**
+ * Encodes packets which don't depend on state of connection, once for every encoding,
+ * see [Communicator.frameEncoding]. Encoding has to be done by a single thread,
+ * frames may be released by any.
+ */
+class FrameEncoder {
+    private val _serializers = Array(ENCODING_COUNT, { encoding ->
+        val serializer = NetworkSerialization.createSerializer(ObjectTypeInspector.shared)
+        serializer.isCompactEncoding = encoding and Communicator.FEATURE_COMPACT_ENCODING != 0
+        serializer
+    })
+
+    private val _freeFrames = ArrayDeque<EncodedFrame>()
+
+
+    fun beginPacket(encoding: Int, packetType: Byte): NetworkSerializer {
+        return _serializers[encoding].reset().addRawByte(packetType)
+    }
+
+    /**
+     * @return frame held by caller, it has to be released
+     */
+    fun endPacket(encoding: Int): EncodedFrame {
+        val frame = synchronized(_freeFrames) {
+            _freeFrames.pollLast()
+        } ?: EncodedFrame(this)
+
+        frame.setup(_serializers[encoding])
+        return frame
+    }
+
+    internal fun free(frame: EncodedFrame) {
+        synchronized(_freeFrames) {
+            _freeFrames.addLast(frame)
+        }
+    }
+
+    companion object {
+        /** encodings are indexed by [Communicator.FEATURE_COMPACT_ENCODING] flag */
+        const val ENCODING_COUNT = Communicator.FEATURE_COMPACT_ENCODING + 1
+    }
+}
@@ -1,12 +1,18 @@
 package net.namekdev.entity_tracker.network.communicator
 
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.*
+import com.artemis.utils.Bag
 import com.artemis.utils.BitVector
+import com.artemis.utils.IntBag
 import net.namekdev.entity_tracker.connectors.WorldController
+import net.namekdev.entity_tracker.connectors.WorldUpdateBatchListener
 import net.namekdev.entity_tracker.connectors.WorldUpdateListener
 import net.namekdev.entity_tracker.model.ComponentTypeInfo
 import net.namekdev.entity_tracker.utils.AutoSizedArray
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer
+import net.namekdev.entity_tracker.utils.serialization.ObjectModelNode
+import net.namekdev.entity_tracker.utils.serialization.ValueTreeSnapshot
+import java.util.*
 
 /**
  * Deserializes data from network and serializes data sent to the network.
@@ -16,34 +22,93 @@ import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer
 
  * @author Namek
  */
-open class EntityTrackerCommunicator : Communicator(), WorldUpdateListener {
+open class EntityTrackerCommunicator : Communicator(), WorldUpdateBatchListener {
     private lateinit var _worldController: WorldController
     private val _componentTypes = AutoSizedArray<ComponentTypeInfo>()
 
+    // values of components last sent to the client, by entity id and then by component index
+    private val _componentSnapshots = HashMap<Int, Bag<ValueTreeSnapshot>>()
+
+    // components requested by the client which are sent whole, by entity id and component index
+    private val _requestedComponents = Collections.synchronizedSet(HashSet<Long>())
+
+    // components watched by the client, by entity id and component index
+    private val _watchedComponents = Collections.synchronizedSet(HashSet<Long>())
+
+    /**
+     * Compression chosen when client supports it, otherwise fast compression is used if possible.
+     * See [Communicator.FEATURE_FAST_COMPRESSION] and [Communicator.FEATURE_DEFLATE_COMPRESSION],
+     * `0` disables compression. Deflate is used only when it's preferred, because it takes
+     * much more time of the thread which sends events.
+     */
+    var preferredCompression = Communicator.FEATURE_FAST_COMPRESSION
+
 
     override fun bytesReceived(bytes: ByteArray, offset: Int, length: Int) {
-        _deserializer.setSource(bytes, offset, length)
+        setSource(bytes, offset, length)
 
         val packetType = _deserializer.readRawByte()
 
         when (packetType) {
+            Communicator.TYPE_HANDSHAKE -> {
+                var features = _deserializer.readInt() and Communicator.SUPPORTED_FEATURES
+                features = features and Communicator.COMPRESSION_FEATURES.inv() or
+                    chooseCompression(features and Communicator.COMPRESSION_FEATURES)
+
+                synchronized(_sendLock) {
+                    send(
+                        beginPacket(Communicator.TYPE_HANDSHAKE_ACCEPTED)
+                            .addInt(features)
+                    )
+
+                    enableFeatures(features)
+                }
+                handshakeAccepted()
+            }
             Communicator.TYPE_SET_SYSTEM_STATE -> {
                 val systemName = _deserializer.readString()!!
                 val isSystemOn = _deserializer.readBoolean()
                 _worldController.setSystemState(systemName, isSystemOn)
             }
+            Communicator.TYPE_REQUEST_COMPONENT_TYPE -> {
+                val index = _deserializer.readInt()
+                sendComponentTypeDescription(index, _componentTypes.get(index))
+            }
             Communicator.TYPE_REQUEST_COMPONENT_STATE -> {
                 val entityId = _deserializer.readInt()
                 val componentIndex = _deserializer.readInt()
+                _requestedComponents.add((entityId.toLong() shl 32) or componentIndex.toLong())
                 _worldController.requestComponentState(entityId, componentIndex)
             }
+            Communicator.TYPE_WATCH_COMPONENT -> {
+                val entityId = _deserializer.readInt()
+                val componentIndex = _deserializer.readInt()
+                val interval = _deserializer.readInt()
+                val key = (entityId.toLong() shl 32) or componentIndex.toLong()
+
+                // watch of entity which was just deleted would be never released, so it's refused,
+                // and it's forgotten with the entity only when it was accepted
+                synchronized(_watchedComponents) {
+                    if (!_watchedComponents.contains(key) && _worldController.watchComponent(entityId, componentIndex, interval)) {
+                        _watchedComponents.add(key)
+                    }
+                }
+            }
+            Communicator.TYPE_UNWATCH_COMPONENT -> {
+                val entityId = _deserializer.readInt()
+                val componentIndex = _deserializer.readInt()
+
+                if (_watchedComponents.remove((entityId.toLong() shl 32) or componentIndex.toLong())) {
+                    _worldController.unwatchComponent(entityId, componentIndex)
+                }
+            }
             Communicator.TYPE_SET_COMPONENT_FIELD_VALUE -> {
                 val entityId = _deserializer.readInt()
                 val componentIndex = _deserializer.readInt()
                 val value = _deserializer.readSomething(true)
 
                 val size = _deserializer.beginArray(DataType.Int, true)
-                val treePath = intArrayOf(size)
+                val treePath = IntArray(size)
 
                 for (i in 0..size - 1) {
                     treePath[i] = _deserializer.readInt()
@@ -56,73 +121,334 @@ open class EntityTrackerCommunicator : Communicator(), WorldUpdateListener {
         }
     }
 
+    private fun chooseCompression(offered: Int): Int {
+        if (preferredCompression == 0 || offered and preferredCompression != 0) {
+            return offered and preferredCompression
+        }
+
+        return offered and Communicator.FEATURE_FAST_COMPRESSION
+    }
+
+    /**
+     * Called when protocol is negotiated with client, no events should be sent before.
+     */
+    protected open fun handshakeAccepted() {}
+
     override fun injectWorldController(controller: WorldController) {
         _worldController = controller
     }
 
 
     override val listeningBitset: Int
-        get() = WorldUpdateListener.ENTITY_ADDED or WorldUpdateListener.ENTITY_DELETED or WorldUpdateListener.ENTITY_SYSTEM_STATS
+        get() = WorldUpdateListener.ENTITY_ADDED or WorldUpdateListener.ENTITY_DELETED or WorldUpdateListener.ENTITY_SYSTEM_STATS or
+            WorldUpdateListener.SYSTEM_TIMINGS
 
     override fun addedSystem(index: Int, name: String, allTypes: BitVector?, oneTypes: BitVector?, notTypes: BitVector?) {
-        send(
-            beginPacket(Communicator.TYPE_ADDED_ENTITY_SYSTEM)
-                .addInt(index)
-                .addString(name)
-                .addBitVector(allTypes)
-                .addBitVector(oneTypes)
-                .addBitVector(notTypes)
-        )
+        synchronized(_sendLock) {
+            send(
+                beginPacket(Communicator.TYPE_ADDED_ENTITY_SYSTEM)
+                    .addInt(index)
+                    .addString(name)
+                    .addBitVector(allTypes)
+                    .addBitVector(oneTypes)
+                    .addBitVector(notTypes)
+            )
+        }
     }
 
     override fun addedManager(name: String) {
-        send(
-            beginPacket(Communicator.TYPE_ADDED_MANAGER)
-                .addString(name)
-        )
+        synchronized(_sendLock) {
+            send(
+                beginPacket(Communicator.TYPE_ADDED_MANAGER)
+                    .addString(name)
+            )
+        }
     }
 
     override fun addedComponentType(index: Int, info: ComponentTypeInfo) {
         _componentTypes.set(index, info)
 
-        val p = beginPacket(Communicator.TYPE_ADDED_COMPONENT_TYPE)
-            .addInt(index)
-            .addString(info.name)
-            .addDataDescriptionOrRef(info.model)
+        if (_features and Communicator.FEATURE_MODEL_FINGERPRINTS != 0) {
+            // client asks for description when it doesn't have the model cached
+            synchronized(_sendLock) {
+                send(
+                    beginPacket(Communicator.TYPE_ADDED_COMPONENT_TYPE_FINGERPRINT)
+                        .addInt(index)
+                        .addString(info.name)
+                        .addLong(info.model.fingerprint())
+                )
+            }
+        }
+        else {
+            sendComponentTypeDescription(index, info)
+        }
+    }
 
-        send(p)
+    /**
+     * Called also by the thread reading requests, when client doesn't have the model cached.
+     */
+    private fun sendComponentTypeDescription(index: Int, info: ComponentTypeInfo) {
+        synchronized(_sendLock) {
+            val p = beginPacket(Communicator.TYPE_ADDED_COMPONENT_TYPE)
+                .addInt(index)
+                .addString(info.name)
+                .addDataDescriptionOrRef(info.model)
+
+            send(p)
+            addToCompressionDictionary(info)
+        }
     }
 
     override fun updatedEntitySystem(index: Int, entitiesCount: Int, maxEntitiesCount: Int) {
-        send(
-            beginPacket(Communicator.TYPE_UPDATED_ENTITY_SYSTEM)
-                .addInt(index)
-                .addInt(entitiesCount)
-                .addInt(maxEntitiesCount)
-        )
+        synchronized(_sendLock) {
+            send(writeUpdatedEntitySystem(beginPacket(Communicator.TYPE_UPDATED_ENTITY_SYSTEM), index, entitiesCount, maxEntitiesCount))
+        }
     }
 
-    override fun addedEntity(entityId: Int, components: BitVector) {
-        send(
-            beginPacket(Communicator.TYPE_ADDED_ENTITY)
-                .addInt(entityId)
-                .addBitVector(components)
-        )
+    override fun updatedSystemTimings(p50: LongArray, p99: LongArray, max: LongArray) {
+        synchronized(_sendLock) {
+            send(writeUpdatedSystemTimings(beginPacket(Communicator.TYPE_UPDATED_SYSTEM_TIMINGS), p50, p99, max))
+        }
+    }
+
+    override fun addedComposition(compositionId: Int, components: BitVector) {
+        synchronized(_sendLock) {
+            send(writeAddedComposition(beginPacket(Communicator.TYPE_ADDED_COMPOSITION), compositionId, components))
+        }
+    }
+
+    override fun addedEntity(entityId: Int, compositionId: Int) {
+        synchronized(_sendLock) {
+            send(writeAddedEntity(beginPacket(Communicator.TYPE_ADDED_ENTITY), entityId, compositionId))
+        }
     }
 
     override fun deletedEntity(entityId: Int) {
-        send(
-            beginPacket(Communicator.TYPE_DELETED_ENTITY)
-                .addInt(entityId)
-        )
+        forgetComponentStates(entityId)
+        synchronized(_sendLock) {
+            send(writeDeletedEntity(beginPacket(Communicator.TYPE_DELETED_ENTITY), entityId))
+        }
+    }
+
+    override fun updatedEntities(deletedEntityIds: IntBag, addedEntityIds: IntBag, addedCompositionIds: IntBag) {
+        forgetComponentStates(deletedEntityIds)
+        synchronized(_sendLock) {
+            send(writeUpdatedEntities(beginPacket(Communicator.TYPE_UPDATED_ENTITIES), deletedEntityIds, addedEntityIds, addedCompositionIds))
+        }
+    }
+
+    /**
+     * Has to be called when deletion of entity is sent as [EncodedFrame].
+     */
+    fun forgetComponentStates(entityId: Int) {
+        _componentSnapshots.remove(entityId)
+        _watchedComponents.removeIf { (it ushr 32).toInt() == entityId }
+    }
+
+    fun forgetComponentStates(entityIds: IntBag) {
+        if (entityIds.isEmpty || _componentSnapshots.isEmpty() && _watchedComponents.isEmpty()) {
+            return
+        }
+
+        val ids = HashSet<Int>(entityIds.size() * 2)
+        for (i in 0..entityIds.size() - 1) {
+            ids.add(entityIds.get(i))
+        }
+
+        for (i in 0..entityIds.size() - 1) {
+            _componentSnapshots.remove(entityIds.get(i))
+        }
+        _watchedComponents.removeIf { ids.contains((it ushr 32).toInt()) }
+    }
+
+    /**
+     * Ends all watches of the client, has to be called when it disconnects.
+     */
+    fun unwatchAllComponents() {
+        synchronized(_watchedComponents) {
+            for (key in _watchedComponents) {
+                _worldController.unwatchComponent((key ushr 32).toInt(), key.toInt())
+            }
+            _watchedComponents.clear()
+        }
     }
 
+    /**
+     * Sends only components which client watches or requested. Whole component is sent only
+     * the first time, when it's structure changed or when client requested it,
+     * otherwise only the leaves that changed since last time.
+     */
     override fun updatedComponentState(entityId: Int, componentIndex: Int, valueTree: Any) {
-        val p = beginPacket(Communicator.TYPE_UPDATED_COMPONENT_STATE)
+        val key = (entityId.toLong() shl 32) or componentIndex.toLong()
+        val isRequested = _requestedComponents.remove(key)
+
+        if (!isRequested && !_watchedComponents.contains(key)) {
+            return
+        }
+
+        val model = _componentTypes.get(componentIndex).model
+        var snapshots = _componentSnapshots[entityId]
+
+        if (snapshots == null) {
+            snapshots = Bag()
+            _componentSnapshots.put(entityId, snapshots)
+        }
+
+        var snapshot = snapshots.safeGet(componentIndex)
+
+        if (snapshot == null || snapshot.model !== model || isRequested) {
+            snapshot = ValueTreeSnapshot(model, _serializer.inspector)
+            snapshots.set(componentIndex, snapshot)
+        }
+
+        try {
+            synchronized(_sendLock) {
+                sendComponentState(entityId, componentIndex, model, snapshot, valueTree)
+            }
+        }
+        catch (e: Exception) {
+            // client didn't receive the state which is remembered by snapshot
+            snapshots.set(componentIndex, null)
+            throw e
+        }
+    }
+
+    private fun sendComponentState(entityId: Int, componentIndex: Int, model: ObjectModelNode, snapshot: ValueTreeSnapshot, valueTree: Any) {
+        if (!snapshot.update(valueTree)) {
+            val p = beginPacket(Communicator.TYPE_UPDATED_COMPONENT_STATE)
+                .addInt(entityId)
+                .addInt(componentIndex)
+                .addObject(model, valueTree)
+
+            send(p)
+            return
+        }
+
+        val paths = snapshot.changedPaths
+        val values = snapshot.changedValues
+
+        if (paths.isEmpty()) {
+            // client already has this state
+            return
+        }
+
+        val p = beginPacket(Communicator.TYPE_UPDATED_COMPONENT_STATE_DELTA)
             .addInt(entityId)
             .addInt(componentIndex)
-            .addObject(_componentTypes.get(componentIndex).model, valueTree)
+        p.addRawSize(paths.size)
+
+        for (i in paths.indices) {
+            val path = paths[i]
+            p.addRawSize(path.size)
+
+            for (index in path) {
+                p.addRawSize(index)
+            }
+
+            p.addSomething(values[i])
+        }
 
         send(p)
     }
+
+    companion object {
+        // packets which don't depend on state of connection, EntityTrackerServer encodes them once for all clients
+
+        fun writeUpdatedEntitySystem(p: NetworkSerializer, index: Int, entitiesCount: Int, maxEntitiesCount: Int): NetworkSerializer {
+            return p.addInt(index)
+                .addInt(entitiesCount)
+                .addInt(maxEntitiesCount)
+        }
+
+        fun writeUpdatedSystemTimings(p: NetworkSerializer, p50: LongArray, p99: LongArray, max: LongArray): NetworkSerializer {
+            return p.addArray(p50)
+                .addArray(p99)
+                .addArray(max)
+        }
+
+        fun writeAddedComposition(p: NetworkSerializer, compositionId: Int, components: BitVector): NetworkSerializer {
+            return p.addInt(compositionId)
+                .addBitVector(components)
+        }
+
+        fun writeAddedEntity(p: NetworkSerializer, entityId: Int, compositionId: Int): NetworkSerializer {
+            return p.addInt(entityId)
+                .addInt(compositionId)
+        }
+
+        fun writeDeletedEntity(p: NetworkSerializer, entityId: Int): NetworkSerializer {
+            return p.addInt(entityId)
+        }
+
+        /**
+         * Deleted ids, then added ids in groups of the same composition.
+         * Ids are sorted so they're written as ranges.
+         */
+        fun writeUpdatedEntities(p: NetworkSerializer, deletedEntityIds: IntBag, addedEntityIds: IntBag, addedCompositionIds: IntBag): NetworkSerializer {
+            writeIdRanges(p, deletedEntityIds, 0, deletedEntityIds.size())
+
+            var groupCount = 0
+            for (i in 0..addedCompositionIds.size() - 1) {
+                if (i == 0 || addedCompositionIds.get(i) != addedCompositionIds.get(i - 1)) {
+                    ++groupCount
+                }
+            }
+            p.addRawSize(groupCount)
+
+            var begin = 0
+            val n = addedEntityIds.size()
+            while (begin < n) {
+                val compositionId = addedCompositionIds.get(begin)
+                var end = begin + 1
+                while (end < n && addedCompositionIds.get(end) == compositionId) {
+                    ++end
+                }
+
+                p.addRawSize(compositionId)
+                writeIdRanges(p, addedEntityIds, begin, end)
+                begin = end
+            }
+
+            return p
+        }
+
+        /**
+         * Writes sorted ids as count of ranges, then for every range: distance from previous range
+         * (first one is written as it is) and length. Ids have to be sorted and unique,
+         * otherwise distance would be negative.
+         */
+        private fun writeIdRanges(p: NetworkSerializer, ids: IntBag, begin: Int, end: Int) {
+            var rangeCount = 0
+            for (i in begin..end - 1) {
+                if (i == begin || ids.get(i) != ids.get(i - 1) + 1) {
+                    ++rangeCount
+                }
+            }
+            p.addRawSize(rangeCount)
+
+            var i = begin
+            var previousEnd = 0
+            while (i < end) {
+                val first = ids.get(i)
+                var j = i + 1
+                while (j < end && ids.get(j) == ids.get(j - 1) + 1) {
+                    ++j
+                }
+
+                if (i == begin) {
+                    p.addRawInt(first)
+                }
+                else {
+                    if (first <= previousEnd) {
+                        throw IllegalArgumentException("Entity ids are not sorted or repeat: " + first)
+                    }
+                    p.addRawSize(first - previousEnd)
+                }
+                p.addRawSize(j - i)
+
+                previousEnd = first + j - i
+                i = j
+            }
+        }
+    }
 }
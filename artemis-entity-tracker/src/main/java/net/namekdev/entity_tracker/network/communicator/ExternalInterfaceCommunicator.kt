@@ -3,15 +3,20 @@ package net.namekdev.entity_tracker.network.communicator
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.*
 
 import java.net.SocketAddress
+import java.util.*
 
+import com.artemis.utils.Bag
 import com.artemis.utils.BitVector
+import com.artemis.utils.IntBag
 import net.namekdev.entity_tracker.connectors.WorldController
+import net.namekdev.entity_tracker.connectors.WorldUpdateBatchListener
 import net.namekdev.entity_tracker.connectors.WorldUpdateInterfaceListener
 import net.namekdev.entity_tracker.model.ComponentTypeInfo
 import net.namekdev.entity_tracker.model.FieldInfo
 import net.namekdev.entity_tracker.network.base.RawConnectionOutputListener
 import net.namekdev.entity_tracker.utils.AutoSizedArray
 import net.namekdev.entity_tracker.utils.ArrayPool
+import net.namekdev.entity_tracker.utils.serialization.ModelCache
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer
 import net.namekdev.entity_tracker.utils.serialization.ObjectModelNode
 import net.namekdev.entity_tracker.utils.serialization.ValueTree
@@ -21,15 +26,48 @@ import net.namekdev.entity_tracker.utils.serialization.ValueTree
 
  * @author Namek
  */
-class ExternalInterfaceCommunicator(
-    private val _listener: WorldUpdateInterfaceListener
+class ExternalInterfaceCommunicator @JvmOverloads constructor(
+    private val _listener: WorldUpdateInterfaceListener,
+
+    /** models of component types known from previous connections, see [Communicator.FEATURE_MODEL_FINGERPRINTS] */
+    private val _modelCache: ModelCache? = null
 ) : Communicator(), WorldController {
     //	private final ArrayPool<Object> _objectArrayPool = new ArrayPool<>(Object.class);
     private val _componentTypes = AutoSizedArray<ComponentTypeInfo>()
 
+    // last received values of components, patched by deltas, by entity id and then by component index
+    private val _componentStates = HashMap<Int, Bag<ValueTree>>()
+
+    // fingerprints of component types which descriptions were requested, by component index
+    private val _requestedComponentTypes = HashMap<Int, Long>()
+
+    // models received for requested component types, announced when their turn comes
+    private val _receivedComponentTypes = HashMap<Int, ObjectModelNode>()
+
+    // packets received while any component type is requested, they may depend on it
+    // so they're read in order after all the requested types are described
+    private val _delayedPackets = ArrayDeque<ByteArray>()
+
+    private val _deletedEntities = IntBag()
+    private val _addedEntities = IntBag()
+    private val _addedCompositions = IntBag()
+
     override fun connected(remoteAddress: SocketAddress, output: RawConnectionOutputListener) {
         super.connected(remoteAddress, output)
         _listener.injectWorldController(this)
+        _requestedComponentTypes.clear()
+        _receivedComponentTypes.clear()
+        _delayedPackets.clear()
+
+        var features = Communicator.SUPPORTED_FEATURES
+        if (_modelCache == null) {
+            features = features and Communicator.FEATURE_MODEL_FINGERPRINTS.inv()
+        }
+
+        send(
+            beginPacket(Communicator.TYPE_HANDSHAKE)
+                .addInt(features)
+        )
     }
 
     override fun disconnected() {
@@ -37,11 +75,77 @@ class ExternalInterfaceCommunicator(
     }
 
     override fun bytesReceived(bytes: ByteArray, offset: Int, length: Int) {
-        _deserializer.setSource(bytes, offset, length)
+        setSource(bytes, offset, length)
 
         val packetType = _deserializer.readRawByte()
 
+        if (_requestedComponentTypes.isEmpty()) {
+            readPacket(packetType)
+
+            if (!_requestedComponentTypes.isEmpty()) {
+                // the packet introduced unknown type so it's read again after the description
+                _delayedPackets.add(copySource())
+                sendComponentTypeRequest(_requestedComponentTypes.keys.first())
+            }
+        }
+        else {
+            delayPacket(packetType)
+        }
+    }
+
+    private fun delayPacket(packetType: Byte) {
         when (packetType) {
+            Communicator.TYPE_ADDED_COMPONENT_TYPE -> {
+                // descriptions are sent only on request when fingerprints are used
+                val index = _deserializer.readInt()
+                val name = _deserializer.readString()
+                val model = _deserializer.readDataDescription()
+                val fingerprint = _requestedComponentTypes.remove(index)
+
+                // server updates the dictionary when the description is sent, not when type is added
+                addToCompressionDictionary(newComponentTypeInfo(index, name!!, model))
+                _receivedComponentTypes.put(index, model)
+                if (fingerprint != null) {
+                    _modelCache!!.put(fingerprint, model)
+                }
+
+                readDelayedPackets()
+            }
+            Communicator.TYPE_ADDED_COMPONENT_TYPE_FINGERPRINT -> {
+                // next missing types are requested at once, not after the previous ones are described
+                val index = _deserializer.readInt()
+                _deserializer.readString()
+                val fingerprint = _deserializer.readLong()
+
+                _delayedPackets.add(copySource())
+
+                if (!_requestedComponentTypes.containsKey(index) && _modelCache!!.get(fingerprint) == null) {
+                    _requestedComponentTypes.put(index, fingerprint)
+                    sendComponentTypeRequest(index)
+                }
+            }
+            else -> _delayedPackets.add(copySource())
+        }
+    }
+
+    private fun readDelayedPackets() {
+        while (_requestedComponentTypes.isEmpty() && !_delayedPackets.isEmpty()) {
+            val packet = _delayedPackets.poll()
+            _deserializer.setSource(packet, 0, packet.size)
+            readPacket(_deserializer.readRawByte())
+
+            if (!_requestedComponentTypes.isEmpty()) {
+                _delayedPackets.addFirst(packet)
+                sendComponentTypeRequest(_requestedComponentTypes.keys.first())
+            }
+        }
+    }
+
+    private fun readPacket(packetType: Byte) {
+        when (packetType) {
+            Communicator.TYPE_HANDSHAKE_ACCEPTED -> {
+                enableFeatures(_deserializer.readInt())
+            }
             Communicator.TYPE_ADDED_ENTITY_SYSTEM -> {
                 val index = _deserializer.readInt()
                 val name = _deserializer.readString()!!
@@ -58,33 +162,97 @@ class ExternalInterfaceCommunicator(
                 val index = _deserializer.readInt()
                 val name = _deserializer.readString()
 
-                val info = ComponentTypeInfo(name as String)
-                info.index = index
-                info.model = _deserializer.readDataDescription()
+                val info = newComponentTypeInfo(index, name!!, _deserializer.readDataDescription())
                 _componentTypes.set(index, info)
+                addToCompressionDictionary(info)
 
                 _listener.addedComponentType(index, info)
             }
+            Communicator.TYPE_ADDED_COMPONENT_TYPE_FINGERPRINT -> {
+                val index = _deserializer.readInt()
+                val name = _deserializer.readString()
+                val fingerprint = _deserializer.readLong()
+                val model = _receivedComponentTypes.remove(index) ?: _modelCache!!.get(fingerprint)
+
+                if (model != null) {
+                    val info = newComponentTypeInfo(index, name!!, model)
+                    _componentTypes.set(index, info)
+
+                    _listener.addedComponentType(index, info)
+                }
+                else {
+                    // this and next packets wait for the description, request is sent by caller
+                    _requestedComponentTypes.put(index, fingerprint)
+                }
+            }
             Communicator.TYPE_UPDATED_ENTITY_SYSTEM -> {
                 val index = _deserializer.readInt()
                 val entitiesCount = _deserializer.readInt()
                 val maxEntitiesCount = _deserializer.readInt()
                 _listener.updatedEntitySystem(index, entitiesCount, maxEntitiesCount)
             }
+            Communicator.TYPE_UPDATED_SYSTEM_TIMINGS -> {
+                val p50 = _deserializer.readPrimitiveLongArray()
+                val p99 = _deserializer.readPrimitiveLongArray()
+                val max = _deserializer.readPrimitiveLongArray()
+                _listener.updatedSystemTimings(p50, p99, max)
+            }
+            Communicator.TYPE_ADDED_COMPOSITION -> {
+                val compositionId = _deserializer.readInt()
+                val components = _deserializer.readBitVector()!!
+                _listener.addedComposition(compositionId, components)
+            }
             Communicator.TYPE_ADDED_ENTITY -> {
                 val entityId = _deserializer.readInt()
-                val components = _deserializer.readBitVector()!!
-                _listener.addedEntity(entityId, components)
+                val compositionId = _deserializer.readInt()
+                _listener.addedEntity(entityId, compositionId)
+            }
+            Communicator.TYPE_UPDATED_ENTITIES -> {
+                readUpdatedEntities()
             }
             Communicator.TYPE_DELETED_ENTITY -> {
                 val entityId = _deserializer.readInt()
+                _componentStates.remove(entityId)
                 _listener.deletedEntity(entityId)
             }
             Communicator.TYPE_UPDATED_COMPONENT_STATE -> {
                 val entityId = _deserializer.readInt()
                 val index = _deserializer.readInt()
                 val componentModel = _componentTypes.get(index).model
-                val valueTree = _deserializer.readObject(componentModel!!)
+                val valueTree = _deserializer.readObjectLazily(componentModel!!)
+
+                var states = _componentStates[entityId]
+                if (states == null) {
+                    states = Bag()
+                    _componentStates.put(entityId, states)
+                }
+                states.set(index, valueTree)
+
+                _listener.updatedComponentState(entityId, index, valueTree)
+            }
+            Communicator.TYPE_UPDATED_COMPONENT_STATE_DELTA -> {
+                val entityId = _deserializer.readInt()
+                val index = _deserializer.readInt()
+                val valueTree = _componentStates[entityId]?.safeGet(index)
+
+                if (valueTree == null) {
+                    // state which the delta is based on was lost, so the rest of packet is useless
+                    requestComponentState(entityId, index)
+                    return
+                }
+
+                val changeCount = _deserializer.readRawSize()
+
+                for (i in 0..changeCount - 1) {
+                    val depth = _deserializer.readRawSize()
+                    var node: ValueTree = valueTree
+
+                    for (j in 0..depth - 2) {
+                        node = node[_deserializer.readRawSize()] as ValueTree
+                    }
+
+                    node[_deserializer.readRawSize()] = _deserializer.readSomething()
+                }
 
                 _listener.updatedComponentState(entityId, index, valueTree)
             }
@@ -93,6 +261,74 @@ class ExternalInterfaceCommunicator(
         }
     }
 
+    private fun newComponentTypeInfo(index: Int, name: String, model: ObjectModelNode): ComponentTypeInfo {
+        val info = ComponentTypeInfo(name)
+        info.index = index
+        info.model = model
+        return info
+    }
+
+    private fun sendComponentTypeRequest(index: Int) {
+        send(
+            beginPacket(Communicator.TYPE_REQUEST_COMPONENT_TYPE)
+                .addInt(index)
+        )
+    }
+
+    /**
+     * Counterpart of [EntityTrackerCommunicator.writeUpdatedEntities].
+     */
+    private fun readUpdatedEntities() {
+        _deletedEntities.clear()
+        _addedEntities.clear()
+        _addedCompositions.clear()
+
+        readIdRanges(_deletedEntities)
+
+        val groupCount = _deserializer.readRawSize()
+        for (i in 0..groupCount - 1) {
+            val compositionId = _deserializer.readRawSize()
+            val begin = _addedEntities.size()
+            readIdRanges(_addedEntities)
+
+            for (j in begin.._addedEntities.size() - 1) {
+                _addedCompositions.add(compositionId)
+            }
+        }
+
+        for (i in 0.._deletedEntities.size() - 1) {
+            _componentStates.remove(_deletedEntities.get(i))
+        }
+
+        val listener = _listener
+        if (listener is WorldUpdateBatchListener) {
+            listener.updatedEntities(_deletedEntities, _addedEntities, _addedCompositions)
+        }
+        else {
+            for (i in 0.._deletedEntities.size() - 1) {
+                listener.deletedEntity(_deletedEntities.get(i))
+            }
+            for (i in 0.._addedEntities.size() - 1) {
+                listener.addedEntity(_addedEntities.get(i), _addedCompositions.get(i))
+            }
+        }
+    }
+
+    private fun readIdRanges(ids: IntBag) {
+        val rangeCount = _deserializer.readRawSize()
+        var previousEnd = 0
+
+        for (i in 0..rangeCount - 1) {
+            val first = if (i == 0) _deserializer.readRawInt() else previousEnd + _deserializer.readRawSize()
+            val length = _deserializer.readRawSize()
+
+            for (id in first..first + length - 1) {
+                ids.add(id)
+            }
+            previousEnd = first + length
+        }
+    }
+
     override fun setSystemState(name: String, isOn: Boolean) {
         send(
             beginPacket(Communicator.TYPE_SET_SYSTEM_STATE)
@@ -117,6 +353,26 @@ class ExternalInterfaceCommunicator(
         )
     }
 
+    override fun watchComponent(entityId: Int, componentIndex: Int, interval: Int): Boolean {
+        send(
+            beginPacket(Communicator.TYPE_WATCH_COMPONENT)
+                .addInt(entityId)
+                .addInt(componentIndex)
+                .addInt(interval)
+        )
+
+        // server ignores watches of deleted entities, client learns about deletion anyway
+        return true
+    }
+
+    override fun unwatchComponent(entityId: Int, componentIndex: Int) {
+        send(
+            beginPacket(Communicator.TYPE_UNWATCH_COMPONENT)
+                .addInt(entityId)
+                .addInt(componentIndex)
+        )
+    }
+
     override fun setComponentFieldValue(entityId: Int, componentIndex: Int, treePath: IntArray, value: Any) {
         val p = beginPacket(Communicator.TYPE_SET_COMPONENT_FIELD_VALUE)
             .addInt(entityId)
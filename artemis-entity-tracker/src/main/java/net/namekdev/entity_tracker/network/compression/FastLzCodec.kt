@@ -0,0 +1,175 @@
+package net.namekdev.entity_tracker.network.compression
+
+import java.util.Arrays
+
+/**
+ * Fast LZ77 codec in the spirit of LZ4 block format: sequences of literals followed
+ * by a match (2-byte offset into last 64 KB, length of at least 4 bytes).
+ * It doesn't compress as well as `Deflater` but is an order of magnitude cheaper.
+ *
+ * Sequence is: token (literal count in high nibble, match length - 4 in low nibble),
+ * extra literal count bytes, literals, offset (little endian), extra match length bytes.
+ * Nibble of 15 means that the count is continued in next bytes, until byte other than 255.
+ * The last sequence has literals only.
+ *
+ * Keeps hash table between calls so it should be reused, not shared between threads.
+ */
+class FastLzCodec {
+    private val _hashTable = IntArray(1 shl HASH_BITS)
+
+
+    /**
+     * @return length of compressed data or `-1` if it would exceed `maxLength`
+     */
+    fun compress(src: ByteArray, srcOffset: Int, srcLength: Int, dst: ByteArray, dstOffset: Int, maxLength: Int): Int {
+        Arrays.fill(_hashTable, -1)
+
+        val srcEnd = srcOffset + srcLength
+        val dstEnd = dstOffset + Math.min(maxLength, dst.size - dstOffset)
+        var anchor = srcOffset
+        var pos = srcOffset
+        var out = dstOffset
+
+        while (pos + MIN_MATCH <= srcEnd) {
+            val sequence = readInt(src, pos)
+            val hash = (sequence * -0x61c88647) ushr (32 - HASH_BITS)
+            val ref = _hashTable[hash]
+            _hashTable[hash] = pos - srcOffset
+
+            if (ref < 0 || pos - srcOffset - ref > MAX_OFFSET || readInt(src, srcOffset + ref) != sequence) {
+                ++pos
+                continue
+            }
+
+            val matchPos = srcOffset + ref
+            var matchLength = MIN_MATCH
+            while (pos + matchLength < srcEnd && src[matchPos + matchLength] == src[pos + matchLength]) {
+                ++matchLength
+            }
+
+            val literalCount = pos - anchor
+            if (out + sequenceSize(literalCount, matchLength) > dstEnd) {
+                return -1
+            }
+
+            out = writeLiterals(src, anchor, literalCount, matchLength - MIN_MATCH, dst, out)
+
+            val offset = pos - matchPos
+            dst[out++] = offset.toByte()
+            dst[out++] = (offset ushr 8).toByte()
+            out = writeCount(matchLength - MIN_MATCH, dst, out)
+
+            pos += matchLength
+            anchor = pos
+        }
+
+        val literalCount = srcEnd - anchor
+        if (out + sequenceSize(literalCount, 0) > dstEnd) {
+            return -1
+        }
+
+        out = writeLiterals(src, anchor, literalCount, 0, dst, out)
+        return out - dstOffset
+    }
+
+    /**
+     * @param dst has to fit the whole decompressed data
+     * @return length of decompressed data
+     */
+    fun decompress(src: ByteArray, srcOffset: Int, srcLength: Int, dst: ByteArray, dstOffset: Int): Int {
+        val srcEnd = srcOffset + srcLength
+        var pos = srcOffset
+        var out = dstOffset
+
+        while (true) {
+            val token = src[pos++].toInt() and 0xFF
+
+            var literalCount = token ushr 4
+            if (literalCount == 15) {
+                do {
+                    val b = src[pos++].toInt() and 0xFF
+                    literalCount += b
+                } while (b == 255)
+            }
+
+            System.arraycopy(src, pos, dst, out, literalCount)
+            pos += literalCount
+            out += literalCount
+
+            if (pos >= srcEnd) {
+                break
+            }
+
+            val offset = (src[pos].toInt() and 0xFF) or ((src[pos + 1].toInt() and 0xFF) shl 8)
+            pos += 2
+
+            var matchLength = token and 15
+            if (matchLength == 15) {
+                do {
+                    val b = src[pos++].toInt() and 0xFF
+                    matchLength += b
+                } while (b == 255)
+            }
+            matchLength += MIN_MATCH
+
+            // match may overlap with the bytes being written, so they're copied one by one
+            var ref = out - offset
+            val end = out + matchLength
+            while (out < end) {
+                dst[out++] = dst[ref++]
+            }
+        }
+
+        return out - dstOffset
+    }
+
+    private fun writeLiterals(src: ByteArray, pos: Int, count: Int, matchNibble: Int, dst: ByteArray, out: Int): Int {
+        var o = out
+        dst[o++] = ((Math.min(count, 15) shl 4) or Math.min(matchNibble, 15)).toByte()
+        o = writeCount(count, dst, o)
+        System.arraycopy(src, pos, dst, o, count)
+        return o + count
+    }
+
+    /**
+     * Writes continuation of count which didn't fit into the token's nibble.
+     */
+    private fun writeCount(count: Int, dst: ByteArray, out: Int): Int {
+        if (count < 15) {
+            return out
+        }
+
+        var o = out
+        var rest = count - 15
+        while (rest >= 255) {
+            dst[o++] = 255.toByte()
+            rest -= 255
+        }
+        dst[o++] = rest.toByte()
+        return o
+    }
+
+    private fun sequenceSize(literalCount: Int, matchLength: Int): Int {
+        return 1 + literalCount / 255 + 1 + literalCount + 2 + matchLength / 255 + 1
+    }
+
+    private fun readInt(bytes: ByteArray, pos: Int): Int {
+        return (bytes[pos].toInt() and 0xFF) or
+            ((bytes[pos + 1].toInt() and 0xFF) shl 8) or
+            ((bytes[pos + 2].toInt() and 0xFF) shl 16) or
+            ((bytes[pos + 3].toInt() and 0xFF) shl 24)
+    }
+
+    companion object {
+        private const val HASH_BITS = 12
+        private const val MIN_MATCH = 4
+        private const val MAX_OFFSET = 0xFFFF
+
+        /**
+         * Size of output buffer which fits compressed data of any input of given length.
+         */
+        fun maxCompressedLength(length: Int): Int {
+            return length + length / 255 + 16
+        }
+    }
+}
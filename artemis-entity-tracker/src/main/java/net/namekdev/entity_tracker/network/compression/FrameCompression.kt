@@ -0,0 +1,277 @@
+package net.namekdev.entity_tracker.network.compression
+
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer.SerializationResult
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Compresses frames sent through a single connection and decompresses received ones.
+ * Keeps state of codecs so it should be created once per connection.
+ *
+ * Every frame starts with codec id and length of the original data, compressed frames
+ * also have length of compressed data. Received data may consist of many frames,
+ * when packet was sent in parts. Frames smaller than [threshold] or not compressible
+ * are sent as they are.
+ *
+ * `Deflater` uses preset dictionary built from words which are likely to appear in data,
+ * like names of component types and their fields. Both sides have to add the same words
+ * in the same order, between the same frames.
+ *
+ * @param codec codec used for sent frames, any known codec is accepted in received frames
+ */
+class FrameCompression(val codec: Byte) {
+    var threshold = DEFAULT_THRESHOLD
+
+    private val _fastLz = FastLzCodec()
+    private val _deflater = Deflater(Deflater.DEFAULT_COMPRESSION)
+    private val _inflater = Inflater()
+
+    private var _raw = ByteArray(INITIAL_CAPACITY)
+    private var _frame = ByteArray(INITIAL_CAPACITY)
+    private var _frameBuffer = ByteBuffer.wrap(_frame)
+    private var _decompressed = ByteArray(INITIAL_CAPACITY)
+    private val _decompressResult = SerializationResult()
+
+    private val _dictionaryWords = LinkedHashSet<String>()
+    private var _dictionary: ByteArray? = null
+
+
+    /**
+     * Adds a word to the preset dictionary, unless it's already there.
+     */
+    fun addDictionaryWord(word: String) {
+        if (_dictionaryWords.add(word)) {
+            _dictionary = null
+        }
+    }
+
+    private val dictionary: ByteArray
+        get() {
+            var dictionary = _dictionary
+
+            if (dictionary == null) {
+                val text = StringBuilder()
+                for (word in _dictionaryWords) {
+                    text.append(word).append(' ')
+                }
+
+                // Deflater looks back only into last 32 KB
+                dictionary = text.toString().toByteArray(Charsets.UTF_8)
+                if (dictionary.size > MAX_DICTIONARY_SIZE) {
+                    dictionary = Arrays.copyOfRange(dictionary, dictionary.size - MAX_DICTIONARY_SIZE, dictionary.size)
+                }
+                _dictionary = dictionary
+            }
+
+            return dictionary!!
+        }
+
+    /**
+     * Gathers given buffers into a single frame, compressed when it's worth it.
+     *
+     * @return view of the frame, valid until next call
+     */
+    fun compress(buffers: Array<ByteBuffer>, count: Int, length: Int): ByteBuffer {
+        if (_raw.size < length) {
+            _raw = ByteArray(Integer.highestOneBit(length) shl 1)
+        }
+
+        var pos = 0
+        for (i in 0..count - 1) {
+            val n = buffers[i].remaining()
+            buffers[i].get(_raw, pos, n)
+            pos += n
+        }
+
+        return compress(_raw, length)
+    }
+
+    /**
+     * Makes a single frame of given data, compressed when it's worth it.
+     *
+     * @return view of the frame, valid until next call
+     */
+    fun compress(src: ByteArray, length: Int): ByteBuffer {
+        ensureFrameCapacity(FRAME_HEADER_MAX_SIZE + FastLzCodec.maxCompressedLength(length))
+        val frame = _frame
+
+        var compressedLength = -1
+        if (codec != CODEC_NONE && length >= threshold) {
+            val headerSize = 1 + sizeOfVarInt(length) + sizeOfVarInt(length)
+            val maxLength = length - 1
+
+            compressedLength = when (codec) {
+                CODEC_FAST_LZ -> _fastLz.compress(src, 0, length, frame, headerSize, maxLength)
+                CODEC_DEFLATE -> deflate(src, length, headerSize, maxLength)
+                else -> throw RuntimeException("Unknown codec: " + codec)
+            }
+        }
+
+        val frameSize: Int
+        if (compressedLength < 0) {
+            var out = 0
+            frame[out++] = CODEC_NONE
+            out = writeVarInt(length, frame, out)
+            System.arraycopy(src, 0, frame, out, length)
+            frameSize = out + length
+        }
+        else {
+            // header was reserved for the biggest possible compressed length so data is moved back if needed
+            val dataPos = 1 + sizeOfVarInt(length) + sizeOfVarInt(length)
+            var out = 0
+            frame[out++] = codec
+            out = writeVarInt(length, frame, out)
+            out = writeVarInt(compressedLength, frame, out)
+            if (out != dataPos) {
+                System.arraycopy(frame, dataPos, frame, out, compressedLength)
+            }
+            frameSize = out + compressedLength
+        }
+
+        _frameBuffer.clear()
+        _frameBuffer.limit(frameSize)
+        return _frameBuffer
+    }
+
+    private fun deflate(src: ByteArray, length: Int, outPos: Int, maxLength: Int): Int {
+        val deflater = _deflater
+        deflater.reset()
+
+        val dictionary = dictionary
+        if (dictionary.isNotEmpty()) {
+            deflater.setDictionary(dictionary)
+        }
+
+        deflater.setInput(src, 0, length)
+        deflater.finish()
+
+        var out = outPos
+        val end = outPos + maxLength
+        while (!deflater.finished()) {
+            if (out >= end) {
+                return -1
+            }
+            out += deflater.deflate(_frame, out, end - out)
+        }
+
+        return out - outPos
+    }
+
+    /**
+     * Decompresses all frames found in given data.
+     *
+     * @return data of all the frames joined, valid until next call
+     */
+    fun decompress(bytes: ByteArray, offset: Int, length: Int): SerializationResult {
+        val end = offset + length
+        var pos = offset
+        var size = 0
+
+        while (pos < end) {
+            val frameCodec = bytes[pos++]
+
+            var rawLength = 0
+            var shift = 0
+            var b: Int
+            do {
+                b = bytes[pos++].toInt()
+                rawLength = rawLength or ((b and 0x7F) shl shift)
+                shift += 7
+            } while (b and 0x80 != 0)
+
+            if (_decompressed.size < size + rawLength) {
+                _decompressed = Arrays.copyOf(_decompressed, Integer.highestOneBit(size + rawLength) shl 1)
+            }
+
+            if (frameCodec == CODEC_NONE) {
+                System.arraycopy(bytes, pos, _decompressed, size, rawLength)
+                pos += rawLength
+                size += rawLength
+                continue
+            }
+
+            var compressedLength = 0
+            shift = 0
+            do {
+                b = bytes[pos++].toInt()
+                compressedLength = compressedLength or ((b and 0x7F) shl shift)
+                shift += 7
+            } while (b and 0x80 != 0)
+
+            when (frameCodec) {
+                CODEC_FAST_LZ -> _fastLz.decompress(bytes, pos, compressedLength, _decompressed, size)
+                CODEC_DEFLATE -> inflate(bytes, pos, compressedLength, size, rawLength)
+                else -> throw RuntimeException("Unknown codec: " + frameCodec)
+            }
+
+            pos += compressedLength
+            size += rawLength
+        }
+
+        return _decompressResult.setup(_decompressed, size)
+    }
+
+    private fun inflate(bytes: ByteArray, offset: Int, length: Int, outPos: Int, rawLength: Int) {
+        val inflater = _inflater
+        inflater.reset()
+        inflater.setInput(bytes, offset, length)
+
+        var out = outPos
+        val end = outPos + rawLength
+        while (out < end) {
+            val n = inflater.inflate(_decompressed, out, end - out)
+
+            if (n == 0) {
+                if (inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary)
+                }
+                else if (inflater.finished() || inflater.needsInput()) {
+                    throw RuntimeException("Compressed frame is truncated")
+                }
+            }
+            out += n
+        }
+    }
+
+    private fun ensureFrameCapacity(capacity: Int) {
+        if (_frame.size < capacity) {
+            _frame = ByteArray(Integer.highestOneBit(capacity) shl 1)
+            _frameBuffer = ByteBuffer.wrap(_frame)
+        }
+    }
+
+    private fun writeVarInt(value: Int, bytes: ByteArray, pos: Int): Int {
+        var v = value
+        var p = pos
+        while (v and 0x7F.inv() != 0) {
+            bytes[p++] = (v and 0x7F or 0x80).toByte()
+            v = v ushr 7
+        }
+        bytes[p++] = v.toByte()
+        return p
+    }
+
+    private fun sizeOfVarInt(value: Int): Int {
+        var v = value ushr 7
+        var size = 1
+        while (v != 0) {
+            v = v ushr 7
+            ++size
+        }
+        return size
+    }
+
+    companion object {
+        const val CODEC_NONE: Byte = 0
+        const val CODEC_FAST_LZ: Byte = 1
+        const val CODEC_DEFLATE: Byte = 2
+
+        const val DEFAULT_THRESHOLD = 128
+
+        private const val INITIAL_CAPACITY = 1024
+        private const val FRAME_HEADER_MAX_SIZE = 1 + 5 + 5
+        private const val MAX_DICTIONARY_SIZE = 32 * 1024
+    }
+}
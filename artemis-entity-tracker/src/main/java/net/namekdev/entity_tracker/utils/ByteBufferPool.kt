@@ -0,0 +1,41 @@
+package net.namekdev.entity_tracker.utils
+
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+
+/**
+ * Pool of equally sized buffers. Can be shared between threads.
+ *
+ * @param useDirectBuffers allocate buffers outside of heap,
+ *        it's worth it only when they're written to a `SocketChannel`.
+ */
+class ByteBufferPool @JvmOverloads constructor(
+    val bufferSize: Int = DEFAULT_BUFFER_SIZE,
+    val useDirectBuffers: Boolean = false
+) {
+    private val _buffers = ArrayDeque<ByteBuffer>()
+
+
+    @Synchronized fun obtain(): ByteBuffer {
+        val buffer = _buffers.pollLast()
+
+        if (buffer != null) {
+            buffer.clear()
+            return buffer
+        }
+
+        return if (useDirectBuffers)
+            ByteBuffer.allocateDirect(bufferSize)
+        else
+            ByteBuffer.allocate(bufferSize)
+    }
+
+    @Synchronized fun free(buffer: ByteBuffer) {
+        assert(buffer.capacity() == bufferSize)
+        _buffers.addLast(buffer)
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 16 * 1024
+    }
+}
@@ -0,0 +1,178 @@
+package net.namekdev.entity_tracker.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Getter of a single field, built once through {@link MethodHandle}.
+ * Primitive fields are read by typed getters so the values are not boxed.
+ * Setter is built only when it's needed.
+ *
+ * <p>This class is written in Java because {@code MethodHandle.invokeExact()}
+ * needs a signature polymorphic call which Kotlin compiler doesn't emit.</p>
+ *
+ * @author Namek
+ */
+public final class FieldAccessor {
+	private final Field field;
+	private final MethodHandle getter;
+	private final MethodHandle primitiveGetter;
+	private MethodHandle setter;
+	public final Class<?> type;
+	public final boolean isStatic;
+
+
+	private FieldAccessor(Field field) {
+		field.setAccessible(true);
+		this.field = field;
+		type = field.getType();
+		isStatic = Modifier.isStatic(field.getModifiers());
+
+		MethodHandle handle;
+		try {
+			handle = MethodHandles.lookup().unreflectGetter(field);
+		}
+		catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+
+		if (isStatic) {
+			handle = MethodHandles.dropArguments(handle, 0, Object.class);
+		}
+
+		getter = handle.asType(MethodType.methodType(Object.class, Object.class));
+		primitiveGetter = type.isPrimitive()
+			? handle.asType(MethodType.methodType(type, Object.class))
+			: null;
+	}
+
+	public static FieldAccessor create(Field field) {
+		return new FieldAccessor(field);
+	}
+
+	/**
+	 * Finds field declared in given type or any of it's superclasses.
+	 */
+	public static FieldAccessor find(Class<?> type, String fieldName) {
+		Class<?> cur = type;
+
+		while (cur != null) {
+			try {
+				return new FieldAccessor(cur.getDeclaredField(fieldName));
+			}
+			catch (NoSuchFieldException e) {
+				cur = cur.getSuperclass();
+			}
+		}
+
+		throw new RuntimeException("Field `" + fieldName + "` was not found in " + type);
+	}
+
+	public Object get(Object obj) {
+		try {
+			return (Object) getter.invokeExact(obj);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public boolean getBoolean(Object obj) {
+		try {
+			return (boolean) primitiveGetter.invokeExact(obj);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public byte getByte(Object obj) {
+		try {
+			return (byte) primitiveGetter.invokeExact(obj);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public short getShort(Object obj) {
+		try {
+			return (short) primitiveGetter.invokeExact(obj);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public int getInt(Object obj) {
+		try {
+			return (int) primitiveGetter.invokeExact(obj);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public long getLong(Object obj) {
+		try {
+			return (long) primitiveGetter.invokeExact(obj);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public float getFloat(Object obj) {
+		try {
+			return (float) primitiveGetter.invokeExact(obj);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	public double getDouble(Object obj) {
+		try {
+			return (double) primitiveGetter.invokeExact(obj);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	/**
+	 * Sets value of instance field, primitive values are unboxed.
+	 */
+	public void set(Object obj, Object value) {
+		try {
+			// method handles can't write final fields
+			if (Modifier.isFinal(field.getModifiers())) {
+				field.set(obj, value);
+				return;
+			}
+
+			if (setter == null) {
+				setter = MethodHandles.lookup().unreflectSetter(field)
+					.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			}
+
+			setter.invokeExact(obj, value);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new RuntimeException(e);
+	}
+}
@@ -0,0 +1,90 @@
+package net.namekdev.entity_tracker.utils
+
+import java.util.Arrays
+
+/**
+ * Histogram of durations in the spirit of HdrHistogram: buckets grow exponentially,
+ * each power of two is split into [SUB_BUCKET_COUNT] linear sub-buckets, so reported
+ * values are off by at most ~3%. Recording doesn't allocate.
+ *
+ * Values bigger than [MAX_VALUE] are recorded as [MAX_VALUE].
+ */
+class TimeHistogram {
+    private val _counts = LongArray(BUCKET_COUNT)
+
+    var count = 0L
+        private set
+
+    var max = 0L
+        private set
+
+
+    fun record(value: Long) {
+        val v = Math.min(Math.max(value, 0), MAX_VALUE)
+        ++_counts[bucketIndex(v)]
+        ++count
+
+        if (v > max) {
+            max = v
+        }
+    }
+
+    /**
+     * @param percentile from `0` to `100`
+     * @return the highest value of bucket which contains given percentile, `0` when nothing was recorded
+     */
+    fun valueAtPercentile(percentile: Double): Long {
+        if (count == 0L) {
+            return 0
+        }
+
+        val target = Math.max(1, Math.ceil(percentile / 100 * count).toLong())
+        var sum = 0L
+
+        for (i in 0..BUCKET_COUNT - 1) {
+            sum += _counts[i]
+
+            if (sum >= target) {
+                return Math.min(highestValueInBucket(i), max)
+            }
+        }
+
+        return max
+    }
+
+    fun reset() {
+        Arrays.fill(_counts, 0)
+        count = 0
+        max = 0
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 5
+        const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+
+        /** about 18 minutes, in nanoseconds */
+        const val MAX_VALUE = (1L shl 40) - 1
+
+        private val BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1
+
+
+        private fun bucketIndex(value: Long): Int {
+            if (value < SUB_BUCKET_COUNT) {
+                return value.toInt()
+            }
+
+            val shift = 63 - java.lang.Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS
+            return shift * SUB_BUCKET_COUNT + (value ushr shift).toInt()
+        }
+
+        private fun highestValueInBucket(index: Int): Long {
+            if (index < SUB_BUCKET_COUNT * 2) {
+                return index.toLong()
+            }
+
+            val shift = index / SUB_BUCKET_COUNT - 1
+            val top = (index - shift * SUB_BUCKET_COUNT).toLong()
+            return ((top + 1) shl shift) - 1
+        }
+    }
+}
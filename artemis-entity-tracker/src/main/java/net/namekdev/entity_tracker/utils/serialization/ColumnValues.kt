@@ -0,0 +1,115 @@
+package net.namekdev.entity_tracker.utils.serialization
+
+/**
+ * Objects of the same flat model (see [SerializationPlan.isFlat]) which are elements of a single array,
+ * stored column by column: integral and boolean fields in [longs], floating point ones in [doubles].
+ * Column of a field starts at `columnIndex * count`.
+ *
+ * Trees of single objects are created only when they're accessed, see [ColumnRows].
+ */
+internal class ColumnValues(
+    val model: ObjectModelNode,
+    val plan: SerializationPlan,
+    val count: Int
+) {
+    val ids = IntArray(count)
+    val longs = LongArray(plan.longColumnCount * count)
+    val doubles = DoubleArray(plan.doubleColumnCount * count)
+
+
+    fun readRow(deserializer: NetworkDeserializer, row: Int, id: Int) {
+        val opcodes = plan.opcodes
+        val columnIndices = plan.columnIndices
+        ids[row] = id
+
+        for (i in opcodes.indices) {
+            val index = columnIndices[i] * count + row
+
+            when (opcodes[i]) {
+                SerializationPlan.OP_BYTE -> longs[index] = deserializer.readRawByte().toLong()
+                SerializationPlan.OP_SHORT -> longs[index] = deserializer.readRawShort().toLong()
+                SerializationPlan.OP_INT -> longs[index] = deserializer.readRawInt().toLong()
+                SerializationPlan.OP_LONG -> longs[index] = deserializer.readRawLong()
+                SerializationPlan.OP_BOOLEAN -> longs[index] = if (deserializer.readRawBoolean()) 1L else 0L
+                SerializationPlan.OP_FLOAT -> doubles[index] = deserializer.readRawFloat().toDouble()
+                SerializationPlan.OP_DOUBLE -> doubles[index] = deserializer.readRawDouble()
+                else -> throw RuntimeException("field can't be stored in column, opcode: " + opcodes[i])
+            }
+        }
+    }
+
+    fun get(field: Int, row: Int): Any {
+        val index = plan.columnIndices[field] * count + row
+
+        return when (plan.opcodes[field]) {
+            SerializationPlan.OP_BYTE -> longs[index].toByte()
+            SerializationPlan.OP_SHORT -> longs[index].toShort()
+            SerializationPlan.OP_INT -> longs[index].toInt()
+            SerializationPlan.OP_LONG -> longs[index]
+            SerializationPlan.OP_BOOLEAN -> longs[index] != 0L
+            SerializationPlan.OP_FLOAT -> doubles[index].toFloat()
+            else -> doubles[index]
+        }
+    }
+
+    fun getLong(field: Int, row: Int): Long {
+        val index = plan.columnIndices[field] * count + row
+
+        return if (SerializationPlan.isFloatingPoint(plan.opcodes[field]))
+            doubles[index].toLong()
+        else
+            longs[index]
+    }
+
+    fun getDouble(field: Int, row: Int): Double {
+        val index = plan.columnIndices[field] * count + row
+
+        return if (SerializationPlan.isFloatingPoint(plan.opcodes[field]))
+            doubles[index]
+        else
+            longs[index].toDouble()
+    }
+}
+
+/**
+ * Elements of array which are stored in columns. Tree of an element is created on first access.
+ */
+internal class ColumnRows(
+    private val arrayTree: ValueTree,
+    private val columns: ColumnValues,
+    private val joinModelToData: Boolean
+) : LazyValues() {
+
+    override fun decode(index: Int): Any? {
+        val tree = ValueTree(columns.plan.opcodes.size)
+        java.util.Arrays.fill(tree.values, ENCODED)
+        tree.lazy = ColumnRow(columns, index)
+        tree.id = columns.ids[index]
+        tree.parent = arrayTree
+
+        if (joinModelToData) {
+            tree.model = columns.model
+        }
+
+        return tree
+    }
+}
+
+/**
+ * Fields of single object stored in columns.
+ */
+internal class ColumnRow(
+    private val columns: ColumnValues,
+    private val row: Int
+) : LazyValues() {
+
+    override val isCached: Boolean
+        get() = false
+
+    override fun decode(index: Int): Any? = columns.get(index, row)
+    override fun decodeBoolean(index: Int): Boolean = columns.getLong(index, row) != 0L
+    override fun decodeInt(index: Int): Int = columns.getLong(index, row).toInt()
+    override fun decodeLong(index: Int): Long = columns.getLong(index, row)
+    override fun decodeFloat(index: Int): Float = columns.getDouble(index, row).toFloat()
+    override fun decodeDouble(index: Int): Double = columns.getDouble(index, row)
+}
@@ -0,0 +1,196 @@
+package net.namekdev.entity_tracker.utils.serialization
+
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.DataType
+import java.util.*
+
+/**
+ * Copy of received bytes shared by all lazily read trees of a single object.
+ */
+internal class LazySource(isCompactEncoding: Boolean) {
+    private val _decoder = NetworkDeserializer()
+    private var _beginPos = 0
+
+    init {
+        _decoder.isCompactEncoding = isCompactEncoding
+    }
+
+
+    fun setBytes(bytes: ByteArray, beginPos: Int, endPos: Int) {
+        _decoder.setSource(Arrays.copyOfRange(bytes, beginPos, endPos), 0, endPos - beginPos)
+        _beginPos = beginPos
+    }
+
+    /**
+     * @param offset position in the original buffer
+     */
+    fun seek(offset: Int): NetworkDeserializer {
+        _decoder.seek(offset - _beginPos)
+        return _decoder
+    }
+}
+
+/**
+ * Values of a [ValueTree] which are not kept in it as objects, because they're
+ * not decoded yet or are stored unboxed. Such values are marked with [ENCODED] in the tree.
+ */
+internal abstract class LazyValues {
+    abstract fun decode(index: Int): Any?
+
+    /**
+     * Whether decoded value should be kept in the tree. Otherwise values are kept
+     * unboxed and boxed again on every access.
+     */
+    open val isCached: Boolean
+        get() = true
+
+    open fun decodeBoolean(index: Int): Boolean = decode(index) as Boolean
+    open fun decodeInt(index: Int): Int = (decode(index) as Number).toInt()
+    open fun decodeLong(index: Int): Long = (decode(index) as Number).toLong()
+    open fun decodeFloat(index: Int): Float = (decode(index) as Number).toFloat()
+    open fun decodeDouble(index: Int): Double = (decode(index) as Number).toDouble()
+
+    companion object {
+        val ENCODED = Any()
+    }
+}
+
+/**
+ * Fields of an object, remembered as positions of their values.
+ */
+internal class LazyFields(
+    private val source: LazySource,
+    private val plan: SerializationPlan,
+    private val offsets: IntArray
+) : LazyValues() {
+
+    override fun decode(index: Int): Any? {
+        synchronized(source) {
+            return source.seek(offsets[index]).readLazyField(plan.opcodes[index], plan.dataTypes[index])
+        }
+    }
+
+    override fun decodeBoolean(index: Int): Boolean {
+        if (plan.opcodes[index] != SerializationPlan.OP_BOOLEAN) {
+            return super.decodeBoolean(index)
+        }
+
+        synchronized(source) {
+            return source.seek(offsets[index]).readRawBoolean()
+        }
+    }
+
+    override fun decodeInt(index: Int): Int {
+        synchronized(source) {
+            val decoder = source.seek(offsets[index])
+
+            return when (plan.opcodes[index]) {
+                SerializationPlan.OP_BYTE -> decoder.readRawByte().toInt()
+                SerializationPlan.OP_SHORT -> decoder.readRawShort().toInt()
+                SerializationPlan.OP_INT -> decoder.readRawInt()
+                else -> super.decodeInt(index)
+            }
+        }
+    }
+
+    override fun decodeLong(index: Int): Long {
+        when (plan.opcodes[index]) {
+            SerializationPlan.OP_LONG -> synchronized(source) {
+                return source.seek(offsets[index]).readRawLong()
+            }
+            SerializationPlan.OP_BYTE, SerializationPlan.OP_SHORT, SerializationPlan.OP_INT -> return decodeInt(index).toLong()
+            else -> return super.decodeLong(index)
+        }
+    }
+
+    override fun decodeFloat(index: Int): Float {
+        if (plan.opcodes[index] != SerializationPlan.OP_FLOAT) {
+            return super.decodeFloat(index)
+        }
+
+        synchronized(source) {
+            return source.seek(offsets[index]).readRawFloat()
+        }
+    }
+
+    override fun decodeDouble(index: Int): Double {
+        when (plan.opcodes[index]) {
+            SerializationPlan.OP_DOUBLE -> synchronized(source) {
+                return source.seek(offsets[index]).readRawDouble()
+            }
+            SerializationPlan.OP_FLOAT -> return decodeFloat(index).toDouble()
+            else -> return super.decodeDouble(index)
+        }
+    }
+}
+
+/**
+ * Elements of primitive array kept in primitive array, like `IntArray`.
+ */
+internal open class PrimitiveElements(private val _elements: Any?) : LazyValues() {
+    protected open val elements: Any
+        get() = _elements!!
+
+    override val isCached: Boolean
+        get() = false
+
+    override fun decode(index: Int): Any? {
+        return java.lang.reflect.Array.get(elements, index)
+    }
+
+    override fun decodeBoolean(index: Int): Boolean {
+        val elements = elements
+        return if (elements is BooleanArray) elements[index] else super.decodeBoolean(index)
+    }
+
+    override fun decodeInt(index: Int): Int {
+        val elements = elements
+
+        return when (elements) {
+            is ByteArray -> elements[index].toInt()
+            is ShortArray -> elements[index].toInt()
+            is IntArray -> elements[index]
+            else -> super.decodeInt(index)
+        }
+    }
+
+    override fun decodeLong(index: Int): Long {
+        val elements = elements
+        return if (elements is LongArray) elements[index] else super.decodeLong(index)
+    }
+
+    override fun decodeFloat(index: Int): Float {
+        val elements = elements
+        return if (elements is FloatArray) elements[index] else super.decodeFloat(index)
+    }
+
+    override fun decodeDouble(index: Int): Double {
+        val elements = elements
+        return if (elements is DoubleArray) elements[index] else super.decodeDouble(index)
+    }
+}
+
+/**
+ * Elements of primitive array, decoded all at once on first access.
+ */
+internal class LazyElements(
+    private val source: LazySource,
+    private val arrayType: DataType,
+    private val offset: Int,
+    private val count: Int
+) : PrimitiveElements(null) {
+    private var _decoded: Any? = null
+
+    override val elements: Any
+        get() {
+            synchronized(source) {
+                var elements = _decoded
+
+                if (elements == null) {
+                    elements = source.seek(offset).readLazyElements(arrayType, count)
+                    _decoded = elements
+                }
+
+                return elements
+            }
+        }
+}
@@ -0,0 +1,108 @@
+package net.namekdev.entity_tracker.utils.serialization
+
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.*
+
+/**
+ * Models received from the other side, kept by their fingerprints (see [ObjectModelNode.fingerprint])
+ * so they don't have to be described again in next connections.
+ */
+interface ModelCache {
+    fun get(fingerprint: Long): ObjectModelNode?
+    fun put(fingerprint: Long, model: ObjectModelNode)
+}
+
+/**
+ * Keeps every model in a file of given directory, in the same format as it's described through network.
+ * Files which can't be read are treated as missing. When there's more than [maxModelCount] models,
+ * the least recently used ones are deleted.
+ */
+class DiskModelCache @JvmOverloads constructor(
+    val directory: File,
+    val maxModelCount: Int = DEFAULT_MAX_MODEL_COUNT
+) : ModelCache {
+    // models read recently, ordered from the least recently used one
+    private val _models = object : LinkedHashMap<Long, ObjectModelNode>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, ObjectModelNode>): Boolean {
+            return size > maxModelCount
+        }
+    }
+
+
+    @Synchronized override fun get(fingerprint: Long): ObjectModelNode? {
+        var model = _models[fingerprint]
+
+        if (model == null) {
+            val file = fileOf(fingerprint)
+
+            if (file.isFile) {
+                try {
+                    val bytes = Files.readAllBytes(file.toPath())
+                    val deserializer = NetworkDeserializer()
+                    deserializer.setSource(bytes, 0, bytes.size)
+                    model = deserializer.readDataDescription()
+                    _models.put(fingerprint, model)
+
+                    // modification time tells which files were used recently
+                    file.setLastModified(System.currentTimeMillis())
+                }
+                catch (exc: IOException) {
+                    return null
+                }
+                catch (exc: RuntimeException) {
+                    return null
+                }
+            }
+        }
+
+        return model
+    }
+
+    @Synchronized override fun put(fingerprint: Long, model: ObjectModelNode) {
+        _models.put(fingerprint, model)
+
+        val serializer = NetworkSerialization.createSerializer()
+        serializer.addDataDescriptionOrRef(model)
+        val result = serializer.result
+
+        try {
+            directory.mkdirs()
+
+            // file is replaced at once so it's never read when it's half written
+            val tempFile = File.createTempFile("model", ".tmp", directory)
+            tempFile.writeBytes(Arrays.copyOf(result.buffer, result.size))
+            Files.move(tempFile.toPath(), fileOf(fingerprint).toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+        catch (exc: IOException) {
+            // cache is only an optimization
+        }
+
+        deleteLeastRecentlyUsed(fileOf(fingerprint))
+    }
+
+    private fun deleteLeastRecentlyUsed(keptFile: File) {
+        // the file which was just written may have the same modification time as older ones
+        val files = directory.listFiles { file -> file.name.endsWith(FILE_EXTENSION) && file != keptFile } ?: return
+
+        if (files.size >= maxModelCount) {
+            Arrays.sort(files) { a, b -> java.lang.Long.compare(a.lastModified(), b.lastModified()) }
+
+            for (i in 0..files.size - maxModelCount) {
+                files[i].delete()
+            }
+        }
+    }
+
+    private fun fileOf(fingerprint: Long): File {
+        return File(directory, String.format("%016x", fingerprint) + FILE_EXTENSION)
+    }
+
+    companion object {
+        const val DEFAULT_MAX_MODEL_COUNT = 1000
+
+        private const val FILE_EXTENSION = ".model"
+    }
+}
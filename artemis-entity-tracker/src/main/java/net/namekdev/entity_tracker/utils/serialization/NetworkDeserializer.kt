@@ -1,6 +1,7 @@
 package net.namekdev.entity_tracker.utils.serialization
 
 import com.artemis.utils.BitVector
+import java.nio.ByteBuffer
 import java.util.*
 
 
@@ -9,8 +10,30 @@ class NetworkDeserializer : NetworkSerialization() {
     private var _sourcePos: Int = 0
     private var _sourceBeginPos: Int = 0
 
+    /**
+     * Has to match [NetworkSerializer.isCompactEncoding] of the other side.
+     */
+    var isCompactEncoding = false
+
+    /**
+     * Has to match [NetworkSerializer.isTrustedSchema] of the other side.
+     */
+    var isTrustedSchema = false
+
+    /**
+     * Has to match [NetworkSerializer.isStringDictionaryEnabled] of the other side.
+     */
+    var isStringDictionaryEnabled = false
+        set(value) {
+            field = value
+            _stringDictionary.clear()
+        }
+
+    private val _stringDictionary = ArrayList<String>()
+
     private val _models = object : ObjectModelsCollection {
         private val models = ArrayList<ObjectModelNode>()
+        private val modelsById = ArrayList<ObjectModelNode?>()
 
         override fun size(): Int {
             return models.size
@@ -25,17 +48,32 @@ class NetworkDeserializer : NetworkSerialization() {
         }
 
         override fun getById(id: Int): ObjectModelNode? {
-            for (node in models) {
-                if (node.id == id)
-                    return node
-            }
-
-            return null
+            return if (id >= 0 && id < modelsById.size) modelsById[id] else null
         }
 
         override fun add(model: ObjectModelNode) {
             models.add(model)
+
+            // description of the same model may be received again, the latest one wins
+            while (modelsById.size <= model.id) {
+                modelsById.add(null)
+            }
+            modelsById[model.id] = model
         }
+
+        fun clear() {
+            models.clear()
+            modelsById.clear()
+        }
+    }
+
+    private val _session = ObjectReadSession()
+
+    /**
+     * Forgets received data descriptions, see [NetworkSerializer.forgetDescriptions].
+     */
+    fun forgetDescriptions() {
+        _models.clear()
     }
 
     fun setSource(bytes: ByteArray, offset: Int, length: Int) {
@@ -47,6 +85,10 @@ class NetworkDeserializer : NetworkSerialization() {
     val consumedBytesCount: Int
         get() = _sourcePos - _sourceBeginPos
 
+    internal fun seek(pos: Int) {
+        _sourcePos = pos
+    }
+
     fun beginArray(elementType: DataType, shouldBePrimitive: Boolean): Int {
         checkType(DataType.Array)
         val isPrimitive = readRawBoolean()
@@ -56,14 +98,14 @@ class NetworkDeserializer : NetworkSerialization() {
         }
 
         checkType(elementType)
-        return readRawInt()
+        return readRawSize()
     }
 
     fun beginArray(): Triple<Boolean, DataType, Int> {
         checkType(DataType.Array)
         val isPrimitive = readRawBoolean()
         val elementType = readType()
-        val size = readRawInt()
+        val size = readRawSize()
         return Triple(isPrimitive, elementType, size)
     }
 
@@ -102,27 +144,57 @@ class NetworkDeserializer : NetworkSerialization() {
     }
 
     fun readRawLong(): Long {
-        var value = readRawInt().toLong()
+        if (isCompactEncoding) {
+            return unzigzag(readRawVarLong())
+        }
+
+        return readFixedLong()
+    }
+
+    private fun readFixedLong(): Long {
+        var value = readFixedInt().toLong()
         value = value shl 32
-        value = value or readRawInt().toLong()
+        value = value or (readFixedInt().toLong() and 0xFFFFFFFFL)
 
         return value
     }
 
-    fun readString(): String? {
-        if (checkNull()) {
-            return null
-        }
+    private fun readRawVarLong(): Long {
+        var value = 0L
+        var shift = 0
+        var b: Int
+
+        do {
+            b = _source!![_sourcePos++].toInt()
+            value = value or ((b and 0x7F).toLong() shl shift)
+            shift += 7
+        } while (b and 0x80 != 0)
 
-        checkType(DataType.String)
-        val length = readRawInt()
+        return value
+    }
 
-        val sb = StringBuilder(length)
-        for (i in 0..length - 1) {
-            sb.append((_source!![_sourcePos++].toInt() and 0xFF).toChar())
+    fun readString(): String? {
+        val type = readType()
+
+        when (type) {
+            DataType.Null -> return null
+            DataType.String -> return readRawUtf8()
+            DataType.StringDef -> {
+                val value = readRawUtf8()
+                _stringDictionary.add(value)
+                return value
+            }
+            DataType.StringRef -> return _stringDictionary[readRawSize()]
+            else -> throw RuntimeException("Types are divergent, expected: ${DataType.String}, got: $type")
         }
+    }
 
-        return sb.toString()
+    private fun readRawUtf8(): String {
+        val length = readRawSize()
+        val value = String(_source!!, _sourcePos, length, Charsets.UTF_8)
+        _sourcePos += length
+
+        return value
     }
 
     fun readBoolean(): Boolean {
@@ -141,7 +213,7 @@ class NetworkDeserializer : NetworkSerialization() {
     }
 
     fun readRawFloat(): Float {
-        return java.lang.Float.intBitsToFloat(readRawInt())
+        return java.lang.Float.intBitsToFloat(readFixedInt())
     }
 
     fun readDouble(): Double {
@@ -150,7 +222,7 @@ class NetworkDeserializer : NetworkSerialization() {
     }
 
     fun readRawDouble(): Double {
-        return java.lang.Double.longBitsToDouble(readRawLong())
+        return java.lang.Double.longBitsToDouble(readFixedLong())
     }
 
     fun readBitVector(): BitVector? {
@@ -159,29 +231,40 @@ class NetworkDeserializer : NetworkSerialization() {
         }
 
         checkType(DataType.BitVector)
+        return readRawBitVector()
+    }
 
-        val allBitsCount = readRawShort()
-        val bitVector = BitVector(allBitsCount.toInt())
+    /**
+     * Counterpart of [NetworkSerializer.addRawBitVector].
+     */
+    private fun readRawBitVector(): BitVector {
+        val mode = readRawByte()
 
-        var i = 0
-        while (i < allBitsCount) {
-            var value = readRawInt()
+        if (mode == BITVECTOR_DENSE) {
+            val wordCount = readRawSize()
+            val bitVector = BitVector(wordCount * 64)
+            val words = bitVectorWords.get(bitVector) as LongArray
 
-            val isLastPart = allBitsCount - i < Integer.SIZE
-            val nBits = if (isLastPart) allBitsCount % Integer.SIZE else Integer.SIZE
+            for (i in 0..wordCount - 1) {
+                words[i] = readFixedLong()
+            }
 
-            var j = 0
-            while (j < nBits) {
-                if (value and 1 == 1) {
-                    bitVector.set(i)
-                }
-                value = value shr 1
-                ++j
-                ++i
+            return bitVector
+        }
+        else if (mode == BITVECTOR_SPARSE) {
+            val setBitsCount = readRawSize()
+            val bitVector = BitVector()
+            var index = -1
+
+            for (i in 0..setBitsCount - 1) {
+                index += readRawSize() + 1
+                bitVector.set(index)
             }
+
+            return bitVector
         }
 
-        return bitVector
+        throw RuntimeException("unknown bit vector encoding: " + mode)
     }
 
     fun readRawByte(): Byte {
@@ -189,6 +272,10 @@ class NetworkDeserializer : NetworkSerialization() {
     }
 
     fun readRawShort(): Short {
+        if (isCompactEncoding) {
+            return unzigzag(readRawVarInt()).toShort()
+        }
+
         var value = (_source!![_sourcePos++].toInt() and 0xFF).toShort()
         value = (value.toInt() shl 8).toShort()
         value = (value.toInt() or (_source!![_sourcePos++].toInt() and 0xFF)).toShort()
@@ -211,7 +298,7 @@ class NetworkDeserializer : NetworkSerialization() {
             return readInt()
         else if (type == DataType.Long)
             return readLong()
-        else if (type == DataType.String)
+        else if (type == DataType.String || type == DataType.StringDef || type == DataType.StringRef)
             return readString()
         else if (type == DataType.Boolean)
             return readBoolean()
@@ -258,7 +345,7 @@ class NetworkDeserializer : NetworkSerialization() {
             retModel = readRawDataDescription(null)
         }
         else if (type == DataType.DescriptionRef) {
-            val modelId = readRawInt()
+            val modelId = readRawSize()
             retModel = _models.getById(modelId)
         }
         else {
@@ -269,7 +356,7 @@ class NetworkDeserializer : NetworkSerialization() {
     }
 
     private fun readRawDataDescription(parentNode: ObjectModelNode?): ObjectModelNode {
-        val modelId = readRawInt()
+        val modelId = readRawSize()
         val node = ObjectModelNode(null, modelId, parentNode)
         this._models.add(node)
         node.name = readString()
@@ -279,7 +366,7 @@ class NetworkDeserializer : NetworkSerialization() {
 
 
         if (nodeType == DataType.Object) {
-            val n = readRawInt()
+            val n = readRawSize()
             node.children = Vector<ObjectModelNode>(n)
 
             for (i in 0..n - 1) {
@@ -292,7 +379,7 @@ class NetworkDeserializer : NetworkSerialization() {
             dbgType(node.dataSubType)
 
             if (isSimpleType(node.dataSubType)) {
-                // do nothing
+                node.isSubTypePrimitive = readBoolean()
             }
             else if (node.dataSubType == DataType.Object) {
                 //				int objModelId = readRawInt();
@@ -306,13 +393,13 @@ class NetworkDeserializer : NetworkSerialization() {
                 node.children!!.addElement(enumModel)
             }
             else if (node.dataSubType == DataType.Array) {
-                val depth = readRawInt()
+                val depth = readRawSize()
                 val deepSubType = readType()
                 val isDeepSubTypePrimitive = readBoolean()
 
                 var curNode = node
                 for (i in 1..depth) {
-                    val id = readRawInt()
+                    val id = readRawSize()
                     val subnode = ObjectModelNode(null, id, curNode)
                     subnode.dataType = DataType.Array
                     subnode.dataSubType = DataType.Array
@@ -333,11 +420,11 @@ class NetworkDeserializer : NetworkSerialization() {
             node.children!!.addElement(enumModel)
         }
         else if (nodeType == DataType.EnumValue) {
-            node.enumValue = readRawInt()
+            node.enumValue = readRawSize()
             node.name = readString()
         }
         else if (nodeType == DataType.EnumDescription) {
-            val id = readRawInt()
+            val id = readRawSize()
 
             var enumModel: ObjectModelNode? = _models.getById(id)
             if (enumModel == null) {
@@ -345,13 +432,13 @@ class NetworkDeserializer : NetworkSerialization() {
                 this._models.add(enumModel)
             }
 
-            val n = readRawInt()
+            val n = readRawSize()
             enumModel.children = Vector<ObjectModelNode>(n)
             for (i in 0..n - 1) {
-                val valueId = readRawInt()
+                val valueId = readRawSize()
                 val enumValueModel = ObjectModelNode(null, valueId, null/*TODO here's null! should be?*/)
                 enumValueModel.dataType = DataType.EnumValue
-                enumValueModel.enumValue = readRawInt()
+                enumValueModel.enumValue = readRawSize()
                 enumValueModel.name = readString()
                 enumModel.children!!.add(enumValueModel)
                 //				this._models.add(enumValueModel);
@@ -369,7 +456,7 @@ class NetworkDeserializer : NetworkSerialization() {
     }
 
     fun readObject(joinDataToModel: Boolean): ValueTree? {
-        return readObject(joinDataToModel, ObjectReadSession())
+        return readObject(joinDataToModel, beginSession())
     }
 
     private fun readObject(joinModelToData: Boolean, session: ObjectReadSession): ValueTree? {
@@ -397,9 +484,10 @@ class NetworkDeserializer : NetworkSerialization() {
             if (!peakType(DataType.MultipleDescriptions)) {
                 return null
             }
+            ++_sourcePos
         }
 
-        val descrCount = readRawInt()
+        val descrCount = readRawSize()
 
         var rootModel: ObjectModelNode? = null
 
@@ -413,17 +501,7 @@ class NetworkDeserializer : NetworkSerialization() {
         }
         else {
             checkType(DataType.DescriptionRef)
-            val modelId = readRawInt()
-            var i = 0
-            val n = _models.size()
-            while (i < n) {
-                val model = _models[i]
-
-                if (model.id == modelId) {
-                    rootModel = model
-                }
-                ++i
-            }
+            rootModel = _models.getById(readRawSize())
         }
 
         return rootModel
@@ -432,37 +510,47 @@ class NetworkDeserializer : NetworkSerialization() {
 
     @JvmOverloads
     fun readObject(model: ObjectModelNode, joinDataToModel: Boolean = false): ValueTree {
-        return readObject(model, ObjectReadSession(), joinDataToModel)
+        return readObject(model, beginSession(), joinDataToModel)
     }
 
     @JvmOverloads
     private fun readObject(model: ObjectModelNode, session: ObjectReadSession, joinDataToModel: Boolean = false): ValueTree {
-        checkType(DataType.Object)
+        if (!isTrustedSchema) {
+            checkType(DataType.Object)
+        }
         val root = readRawObject(model, null, session, joinDataToModel) as ValueTree?
 
         return root!!
     }
 
     private fun readRawObject(model: ObjectModelNode, parentTree: ValueTree?, session: ObjectReadSession, joinModelToData: Boolean): Any? {
-        if (checkNull()) {
+        if (isTrustedSchema && (model.isArray || model.dataType == DataType.Object || model.dataType == DataType.Unknown)) {
+            return readTrustedObject(model, parentTree, session, joinModelToData)
+        }
+        else if (model.isArray) {
+            val array = readArray(model, joinModelToData, session)
+
+            if (array != null) {
+                array.parent = parentTree
+            }
+
+            return array
+        }
+        else if (checkNull()) {
             return null
         }
         else if (model.dataType == DataType.Object || model.dataType == DataType.Unknown) {
             val dataType = readType()
-            val id = readRawShort()
 
             if (dataType == DataType.Object) {
-                val n = model.children!!.size
-                val tree = ValueTree(n)
+                val id = readRawSize()
+                val plan = SerializationPlan.of(model)
+                val tree = ValueTree(plan.opcodes.size)
                 tree.id = id
                 tree.parent = parentTree
 
-                session.remember(id, tree, model)
-
-                for (i in 0..n - 1) {
-                    val child = model.children!![i]
-                    tree.values[i] = readRawObject(child, tree, session, joinModelToData)
-                }
+                session.remember(id, tree)
+                readRawFields(plan, tree, session, joinModelToData)
 
                 if (joinModelToData) {
                     tree.model = model
@@ -471,16 +559,13 @@ class NetworkDeserializer : NetworkSerialization() {
                 return tree
             }
             else if (dataType == DataType.ObjectRef) {
-                return session.find(id)!!.tree
+                val id = readRawSize()
+                return session.find(id)!!
             }
             else if (dataType == DataType.Array) {
                 // This is hidden array in Object field.
                 // Example: Object someField = new int[] { ... }
-
-                // TODO HACK: we should identify every array!
-                // it would be best to do it in readArray() method.
-                // So ID would included within beginArray()
-                _sourcePos -= 3
+                --_sourcePos
 
                 val arrayTree = readArray(joinModelToData, session)
 
@@ -495,95 +580,595 @@ class NetworkDeserializer : NetworkSerialization() {
             }
         }
         else if (isSimpleType(model.dataType)) {
-            assert(model.isTypePrimitive)
-            val value = readRawByType(model.dataType)
-
-            return value
+            return readRawByType(model.dataType)
         }
         else if (model.isEnum) {
             checkType(DataType.Enum)
-            val enumVal = readRawInt()
+            val enumVal = readRawSize()
             // TODO probably no one expected integer here, some Enum<?> is rather expected
 
             return enumVal
         }
-        else if (model.isArray) {
-            val array = readArray(model, joinModelToData, session)
+        else {
+            throw RuntimeException("unsupported type: " + model.dataType + ", subtype: " + model.dataSubType)
+        }
+    }
 
-            if (array != null) {
-                array.parent = parentTree
+    private fun readTrustedObject(model: ObjectModelNode, parentTree: ValueTree?, session: ObjectReadSession, joinModelToData: Boolean): ValueTree? {
+        val tree: ValueTree?
+
+        if (model.isArray) {
+            tree = readTrustedArray(model, session, joinModelToData)
+        }
+        else {
+            val header = readRawByte()
+
+            when (header) {
+                OBJECT_NULL -> return null
+                OBJECT_REF -> return session.find(readRawSize())!!
+                OBJECT_NEW -> {
+                    val id = session.lastId + 1
+                    val plan = SerializationPlan.of(model)
+                    tree = ValueTree(plan.opcodes.size)
+                    tree.id = id
+                    tree.parent = parentTree
+
+                    session.remember(id, tree)
+                    readRawFields(plan, tree, session, joinModelToData)
+
+                    if (joinModelToData) {
+                        tree.model = model
+                    }
+
+                    return tree
+                }
+                OBJECT_HIDDEN_ARRAY -> tree = readArray(joinModelToData, session)
+                else -> throw RuntimeException("unknown object header: " + header)
             }
+        }
 
-            return array
+        if (tree != null) {
+            tree.parent = parentTree
+        }
+
+        return tree
+    }
+
+    private fun readRawFields(plan: SerializationPlan, tree: ValueTree, session: ObjectReadSession, joinModelToData: Boolean) {
+        val opcodes = plan.opcodes
+        val values = tree.values
+
+        for (i in opcodes.indices) {
+            values[i] = when (opcodes[i]) {
+                SerializationPlan.OP_BYTE -> readRawByte()
+                SerializationPlan.OP_SHORT -> readRawShort()
+                SerializationPlan.OP_INT -> readRawInt()
+                SerializationPlan.OP_LONG -> readRawLong()
+                SerializationPlan.OP_BOOLEAN -> readRawBoolean()
+                SerializationPlan.OP_FLOAT -> readRawFloat()
+                SerializationPlan.OP_DOUBLE -> readRawDouble()
+                SerializationPlan.OP_NULLABLE_SIMPLE -> {
+                    val dataType = plan.dataTypes[i]
+
+                    if (isTrustedSchema)
+                        readTrustedSimple(dataType)
+                    else if (expectTypeOrNull(dataType))
+                        readRawByType(dataType)
+                    else
+                        null
+                }
+                SerializationPlan.OP_STRING -> readString()
+                SerializationPlan.OP_BITVECTOR -> if (isTrustedSchema) readTrustedSimple(DataType.BitVector) else readBitVector()
+                SerializationPlan.OP_ENUM -> {
+                    if (isTrustedSchema) {
+                        readTrustedEnum()
+                    }
+                    else if (checkNull()) {
+                        null
+                    }
+                    else {
+                        checkType(DataType.Enum)
+                        readRawSize()
+                    }
+                }
+                SerializationPlan.OP_OBJECT -> readRawObject(plan.childModels[i], tree, session, joinModelToData)
+                SerializationPlan.OP_ARRAY -> {
+                    val array =
+                        if (isTrustedSchema)
+                            readTrustedArray(plan.childModels[i], session, joinModelToData)
+                        else
+                            readArray(plan.childModels[i], joinModelToData, session)
+
+                    if (array != null) {
+                        array.parent = tree
+                    }
+
+                    array
+                }
+                else -> throw RuntimeException("unknown opcode: " + opcodes[i])
+            }
+        }
+    }
+
+    private fun readTrustedSimple(dataType: DataType): Any? {
+        if (dataType == DataType.String) {
+            return readString()
+        }
+        else if (!readRawBoolean()) {
+            return null
+        }
+        else if (dataType == DataType.BitVector) {
+            return readRawBitVector()
+        }
+
+        return readRawByType(dataType)
+    }
+
+    private fun readTrustedEnum(): Int? {
+        val value = readRawSize()
+        return if (value == 0) null else value - 1
+    }
+
+    /**
+     * Counterpart of [NetworkSerializer.addTrustedArray].
+     */
+    private fun readTrustedArray(model: ObjectModelNode, session: ObjectReadSession, joinModelToData: Boolean): ValueTree? {
+        val size = readRawSize()
+
+        if (size == 0) {
+            return null
+        }
+
+        val n = size - 1
+        val arrayType = model.arrayType()
+        val node: ValueTree
+
+        if (model.isSubTypePrimitive) {
+            node = ValueTree(n)
+            Arrays.fill(node.values, LazyValues.ENCODED)
+            node.lazy = PrimitiveElements(readLazyElements(arrayType, n))
         }
         else {
-            throw RuntimeException("unsupported type: " + model.dataType + ", subtype: " + model.dataSubType)
+            node = ValueTree(n)
+            val values = node.values
+
+            if (arrayType == DataType.Object || arrayType == DataType.Unknown) {
+                readTrustedObjectElements(node, session, joinModelToData)
+            }
+            else if (isSimpleType(arrayType)) {
+                for (i in 0..n - 1) {
+                    values[i] = readTrustedSimple(arrayType)
+                }
+            }
+            else if (arrayType == DataType.Enum) {
+                readPackedEnums(values, model)
+            }
+            else if (arrayType == DataType.Array) {
+                val subModel = model.arrayElTypeModel()
+
+                for (i in 0..n - 1) {
+                    val subArray = readTrustedArray(subModel, session, joinModelToData)
+
+                    if (subArray != null) {
+                        subArray.parent = node
+                    }
+
+                    values[i] = subArray
+                }
+            }
+            else {
+                throw RuntimeException("unsupported array type: " + arrayType)
+            }
+        }
+
+        if (joinModelToData) {
+            node.model = model
+        }
+
+        return node
+    }
+
+    /**
+     * Reads only structure of the object, values are decoded when they're accessed through [ValueTree].
+     * Received bytes of the object are copied once and every object remembers positions of it's fields.
+     *
+     * Strings which are defined in string dictionary, objects in arrays and hidden arrays
+     * are read right away. Without trusted schema the whole object is read at once.
+     */
+    fun readObjectLazily(model: ObjectModelNode): ValueTree {
+        if (!isTrustedSchema || model.isArray) {
+            return readObject(model)
+        }
+
+        val session = beginSession()
+        val source = LazySource(isCompactEncoding)
+        val beginPos = _sourcePos
+        val root = readLazyObject(model, null, session, source)
+        source.setBytes(_source!!, beginPos, _sourcePos)
+
+        return root!!
+    }
+
+    private fun readLazyObject(model: ObjectModelNode, parentTree: ValueTree?, session: ObjectReadSession, source: LazySource): ValueTree? {
+        if (model.isArray) {
+            return readLazyArray(model, parentTree, session, source)
+        }
+
+        val header = readRawByte()
+
+        when (header) {
+            OBJECT_NULL -> return null
+            OBJECT_REF -> return session.find(readRawSize())!!
+            OBJECT_NEW -> {
+                val id = session.lastId + 1
+                val plan = SerializationPlan.of(model)
+                val tree = ValueTree(plan.opcodes.size)
+                tree.id = id
+                tree.parent = parentTree
+
+                session.remember(id, tree)
+                readLazyFields(plan, tree, session, source)
+
+                return tree
+            }
+            OBJECT_HIDDEN_ARRAY -> {
+                val tree = readArray(false, session)
+
+                if (tree != null) {
+                    tree.parent = parentTree
+                }
+
+                return tree
+            }
+            else -> throw RuntimeException("unknown object header: " + header)
+        }
+    }
+
+    private fun readLazyFields(plan: SerializationPlan, tree: ValueTree, session: ObjectReadSession, source: LazySource) {
+        val opcodes = plan.opcodes
+        val offsets = IntArray(opcodes.size)
+        val values = tree.values
+
+        for (i in opcodes.indices) {
+            offsets[i] = _sourcePos
+            values[i] = LazyValues.ENCODED
+
+            when (opcodes[i]) {
+                SerializationPlan.OP_BYTE -> readRawByte()
+                SerializationPlan.OP_SHORT -> readRawShort()
+                SerializationPlan.OP_INT -> readRawInt()
+                SerializationPlan.OP_LONG -> readRawLong()
+                SerializationPlan.OP_BOOLEAN -> readRawBoolean()
+                SerializationPlan.OP_FLOAT -> readRawFloat()
+                SerializationPlan.OP_DOUBLE -> readRawDouble()
+                SerializationPlan.OP_NULLABLE_SIMPLE -> {
+                    val dataType = plan.dataTypes[i]
+
+                    if (dataType == DataType.String) {
+                        skipOrReadString(values, i)
+                    }
+                    else if (readRawBoolean()) {
+                        skipRawByType(dataType)
+                    }
+                }
+                SerializationPlan.OP_STRING -> skipOrReadString(values, i)
+                SerializationPlan.OP_BITVECTOR -> if (readRawBoolean()) skipRawByType(DataType.BitVector)
+                SerializationPlan.OP_ENUM -> readRawSize()
+                SerializationPlan.OP_OBJECT -> values[i] = readLazyObject(plan.childModels[i], tree, session, source)
+                SerializationPlan.OP_ARRAY -> values[i] = readLazyArray(plan.childModels[i], tree, session, source)
+                else -> throw RuntimeException("unknown opcode: " + opcodes[i])
+            }
+        }
+
+        tree.lazy = LazyFields(source, plan, offsets)
+    }
+
+    /**
+     * Only primitive arrays are decoded lazily.
+     */
+    private fun readLazyArray(model: ObjectModelNode, parentTree: ValueTree?, session: ObjectReadSession, source: LazySource): ValueTree? {
+        if (!model.isSubTypePrimitive) {
+            val tree = readTrustedArray(model, session, false)
+
+            if (tree != null) {
+                tree.parent = parentTree
+            }
+
+            return tree
+        }
+
+        val size = readRawSize()
+
+        if (size == 0) {
+            return null
+        }
+
+        val n = size - 1
+        val arrayType = model.arrayType()
+        val tree = ValueTree(n)
+        tree.parent = parentTree
+        Arrays.fill(tree.values, LazyValues.ENCODED)
+        tree.lazy = LazyElements(source, arrayType, _sourcePos, n)
+
+        when (arrayType) {
+            DataType.Boolean -> _sourcePos += (n + 7) / 8
+            DataType.Byte -> _sourcePos += n
+            DataType.Float -> _sourcePos += n * 4
+            DataType.Double -> _sourcePos += n * 8
+            DataType.Short -> if (isCompactEncoding) skipRawVarInts(n) else _sourcePos += n * 2
+            DataType.Int -> if (isCompactEncoding) skipRawVarInts(n) else _sourcePos += n * 4
+            DataType.Long -> if (isCompactEncoding) skipRawVarInts(n) else _sourcePos += n * 8
+            else -> throw RuntimeException("unknown primitive array type: ${arrayType}")
+        }
+
+        return tree
+    }
+
+    /**
+     * Strings from dictionary have to be read in order, so only plain ones are skipped.
+     */
+    private fun skipOrReadString(values: Array<Any?>, index: Int) {
+        if (peakType(DataType.String)) {
+            ++_sourcePos
+            val length = readRawSize()
+            _sourcePos += length
+        }
+        else {
+            values[index] = readString()
+        }
+    }
+
+    private fun skipRawByType(valueType: DataType) {
+        when (valueType) {
+            DataType.Byte -> readRawByte()
+            DataType.Short -> readRawShort()
+            DataType.Int -> readRawInt()
+            DataType.Long -> readRawLong()
+            DataType.Boolean -> readRawBoolean()
+            DataType.Float -> readRawFloat()
+            DataType.Double -> readRawDouble()
+            DataType.BitVector -> {
+                val mode = readRawByte()
+
+                if (mode == BITVECTOR_DENSE) {
+                    _sourcePos += readRawSize() * 8
+                }
+                else {
+                    skipRawVarInts(readRawSize())
+                }
+            }
+            else -> throw RuntimeException("type not supported: " + valueType)
+        }
+    }
+
+    /**
+     * Skips sizes or varints which are written as single byte each for small values.
+     */
+    private fun skipRawVarInts(count: Int) {
+        if (!isCompactEncoding) {
+            _sourcePos += count * 4
+            return
+        }
+
+        for (i in 0..count - 1) {
+            while (_source!![_sourcePos++].toInt() and 0x80 != 0) {}
+        }
+    }
+
+    /**
+     * Decodes single field of lazily read object, see [LazyFields].
+     */
+    internal fun readLazyField(opcode: Int, dataType: DataType): Any? {
+        return when (opcode) {
+            SerializationPlan.OP_BYTE -> readRawByte()
+            SerializationPlan.OP_SHORT -> readRawShort()
+            SerializationPlan.OP_INT -> readRawInt()
+            SerializationPlan.OP_LONG -> readRawLong()
+            SerializationPlan.OP_BOOLEAN -> readRawBoolean()
+            SerializationPlan.OP_FLOAT -> readRawFloat()
+            SerializationPlan.OP_DOUBLE -> readRawDouble()
+            SerializationPlan.OP_NULLABLE_SIMPLE -> readTrustedSimple(dataType)
+            SerializationPlan.OP_STRING -> readString()
+            SerializationPlan.OP_BITVECTOR -> readTrustedSimple(DataType.BitVector)
+            SerializationPlan.OP_ENUM -> readTrustedEnum()
+            else -> throw RuntimeException("field is not read lazily, opcode: " + opcode)
+        }
+    }
+
+    /**
+     * Decodes elements of lazily read primitive array, see [LazyElements].
+     */
+    internal fun readLazyElements(arrayType: DataType, n: Int): Any {
+        return when (arrayType) {
+            DataType.Boolean -> readRawBooleanElements(n)
+            DataType.Byte -> readRawByteElements(n)
+            DataType.Short -> readRawShortElements(n)
+            DataType.Int -> readRawIntElements(n)
+            DataType.Long -> readRawLongElements(n)
+            DataType.Float -> readRawFloatElements(n)
+            DataType.Double -> readRawDoubleElements(n)
+            else -> throw RuntimeException("unknown primitive array type: ${arrayType}")
+        }
+    }
+
+    /**
+     * Objects of flat models (see [SerializationPlan.isFlat]) are stored in [ColumnValues]
+     * if all of them are of the same model.
+     */
+    private fun readTrustedObjectElements(node: ValueTree, session: ObjectReadSession, joinModelToData: Boolean) {
+        val values = node.values
+        var columns: ColumnValues? = null
+
+        for (i in values.indices) {
+            val model = possiblyReadDescriptions(false)
+            val value: ValueTree?
+
+            if (model != null && !model.isArray && _source!![_sourcePos] == OBJECT_NEW) {
+                val plan = SerializationPlan.of(model)
+
+                if (plan.isFlat && columns == null) {
+                    columns = ColumnValues(model, plan, values.size)
+                    node.lazy = ColumnRows(node, columns, joinModelToData)
+                }
+
+                if (columns != null && columns.model === model) {
+                    ++_sourcePos
+                    val id = session.lastId + 1
+                    session.rememberRow(id, node, i)
+                    columns.readRow(this, i, id)
+                    values[i] = LazyValues.ENCODED
+                    continue
+                }
+            }
+
+            if (model != null) {
+                value = readObject(model, session, joinModelToData)
+            }
+            else if (checkNull()) {
+                value = null
+            }
+            else {
+                value = readArray(joinModelToData, session)
+            }
+
+            if (value != null) {
+                value.parent = node
+            }
+
+            values[i] = value
         }
     }
 
     fun readArray(model: ObjectModelNode, joinModelToData: Boolean = true): ValueTree? {
-        return readArray(model, joinModelToData, ObjectReadSession())
+        return readArray(model, joinModelToData, beginSession())
     }
 
     fun readPrimitiveBooleanArray(): BooleanArray {
-        val n = beginArray(DataType.Boolean, true)
-        val arr = BooleanArray(n)
+        return readRawBooleanElements(beginArray(DataType.Boolean, true))
+    }
 
-        // TODO: optimize by using BitVector?
-        for (i in 0..n-1) {
-            arr[i] = readRawBoolean()
-        }
+    fun readPrimitiveByteArray(): ByteArray {
+        return readRawByteElements(beginArray(DataType.Byte, true))
+    }
+
+    fun readPrimitiveShortArray(): ShortArray {
+        return readRawShortElements(beginArray(DataType.Short, true))
+    }
+
+    fun readPrimitiveIntArray(): IntArray {
+        return readRawIntElements(beginArray(DataType.Int, true))
+    }
+
+    fun readPrimitiveLongArray(): LongArray {
+        return readRawLongElements(beginArray(DataType.Long, true))
+    }
+
+    fun readPrimitiveFloatArray(): FloatArray {
+        return readRawFloatElements(beginArray(DataType.Float, true))
+    }
+
+    fun readPrimitiveDoubleArray(): DoubleArray {
+        return readRawDoubleElements(beginArray(DataType.Double, true))
+    }
+
+    private fun readRawBooleanElements(n: Int): BooleanArray {
+        val arr = BooleanArray(n)
+        readPackedBits(n, 1, { i, value -> arr[i] = value != 0 })
         return arr
     }
 
-    fun readPrimitiveByteArray(): ByteArray {
-        val n = beginArray(DataType.Byte, true)
-        val arr = ByteArray(n)
-        for (i in 0..n-1) {
-            arr[i] = readRawByte()
-        }
+    private fun readRawByteElements(n: Int): ByteArray {
+        val arr = Arrays.copyOfRange(_source!!, _sourcePos, _sourcePos + n)
+        _sourcePos += n
         return arr
     }
 
-    fun readPrimitiveShortArray(): ShortArray {
-        val n = beginArray(DataType.Short, true)
+    private fun readRawShortElements(n: Int): ShortArray {
         val arr = ShortArray(n)
-        for (i in 0..n-1) {
-            arr[i] = readRawShort()
+
+        if (isCompactEncoding) {
+            for (i in 0..n - 1) {
+                arr[i] = readRawShort()
+            }
+        }
+        else {
+            ByteBuffer.wrap(_source!!, _sourcePos, n * 2).asShortBuffer().get(arr)
+            _sourcePos += n * 2
         }
+
         return arr
     }
 
-    fun readPrimitiveIntArray(): IntArray {
-        val n = beginArray(DataType.Int, true)
+    private fun readRawIntElements(n: Int): IntArray {
         val arr = IntArray(n)
-        for (i in 0..n-1) {
-            arr[i] = readRawInt()
+
+        if (isCompactEncoding) {
+            for (i in 0..n - 1) {
+                arr[i] = readRawInt()
+            }
         }
+        else {
+            ByteBuffer.wrap(_source!!, _sourcePos, n * 4).asIntBuffer().get(arr)
+            _sourcePos += n * 4
+        }
+
         return arr
     }
 
-    fun readPrimitiveLongArray(): LongArray {
-        val n = beginArray(DataType.Long, true)
+    private fun readRawLongElements(n: Int): LongArray {
         val arr = LongArray(n)
-        for (i in 0..n-1) {
-            arr[i] = readRawLong()
+
+        if (isCompactEncoding) {
+            for (i in 0..n - 1) {
+                arr[i] = readRawLong()
+            }
+        }
+        else {
+            ByteBuffer.wrap(_source!!, _sourcePos, n * 8).asLongBuffer().get(arr)
+            _sourcePos += n * 8
         }
+
         return arr
     }
 
-    fun readPrimitiveFloatArray(): FloatArray {
-        val n = beginArray(DataType.Float, true)
+    private fun readRawFloatElements(n: Int): FloatArray {
         val arr = FloatArray(n)
-        for (i in 0..n-1) {
-            arr[i] = readRawFloat()
-        }
+        ByteBuffer.wrap(_source!!, _sourcePos, n * 4).asFloatBuffer().get(arr)
+        _sourcePos += n * 4
         return arr
     }
 
-    fun readPrimitiveDoubleArray(): DoubleArray {
-        val n = beginArray(DataType.Double, true)
-        return DoubleArray(n, { readRawDouble() })
+    private fun readRawDoubleElements(n: Int): DoubleArray {
+        val arr = DoubleArray(n)
+        ByteBuffer.wrap(_source!!, _sourcePos, n * 8).asDoubleBuffer().get(arr)
+        _sourcePos += n * 8
+        return arr
+    }
+
+    /**
+     * Counterpart of [NetworkSerializer.addPackedBits].
+     */
+    private inline fun readPackedBits(count: Int, bitWidth: Int, consumer: (Int, Int) -> Unit) {
+        val mask = (1 shl bitWidth) - 1
+        var bits = 0L
+        var bitCount = 0
+
+        for (i in 0..count - 1) {
+            while (bitCount < bitWidth) {
+                bits = bits or ((_source!![_sourcePos++].toLong() and 0xFF) shl bitCount)
+                bitCount += 8
+            }
+
+            consumer(i, bits.toInt() and mask)
+            bits = bits ushr bitWidth
+            bitCount -= bitWidth
+        }
+    }
+
+    private fun readPackedEnums(values: Array<Any?>, model: ObjectModelNode) {
+        readPackedBits(values.size, enumBitWidth(model), { i, value ->
+            values[i] = if (value == 0) null else value - 1
+        })
     }
 
     fun readBooleanArray(): Array<Boolean?> {
@@ -650,40 +1235,38 @@ class NetworkDeserializer : NetworkSerialization() {
     }
 
     fun readPrimitiveBooleanArray_asBoxedArray(): Array<Boolean?> {
-        val n = beginArray(DataType.Boolean, true)
-
-        // TODO: optimize by using BitVector?
-        return Array<Boolean?>(n, { readRawBoolean() })
+        val arr = readPrimitiveBooleanArray()
+        return Array<Boolean?>(arr.size, { arr[it] })
     }
 
     fun readPrimitiveByteArray_asBoxedArray(): Array<Byte?> {
-        val n = beginArray(DataType.Byte, true)
-        return Array<Byte?>(n, { readRawByte() })
+        val arr = readPrimitiveByteArray()
+        return Array<Byte?>(arr.size, { arr[it] })
     }
 
     fun readPrimitiveShortArray_asBoxedArray(): Array<Short?> {
-        val n = beginArray(DataType.Short, true)
-        return Array<Short?>(n, { readRawShort() })
+        val arr = readPrimitiveShortArray()
+        return Array<Short?>(arr.size, { arr[it] })
     }
 
     fun readPrimitiveIntArray_asBoxedArray(): Array<Int?> {
-        val n = beginArray(DataType.Int, true)
-        return Array<Int?>(n, { readRawInt() })
+        val arr = readPrimitiveIntArray()
+        return Array<Int?>(arr.size, { arr[it] })
     }
 
     fun readPrimitiveLongArray_asBoxedArray(): Array<Long?> {
-        val n = beginArray(DataType.Long, true)
-        return Array<Long?>(n, { readRawLong() })
+        val arr = readPrimitiveLongArray()
+        return Array<Long?>(arr.size, { arr[it] })
     }
 
     fun readPrimitiveFloatArray_asBoxedArray(): Array<Float?> {
-        val n = beginArray(DataType.Float, true)
-        return Array<Float?>(n, { readRawFloat() })
+        val arr = readPrimitiveFloatArray()
+        return Array<Float?>(arr.size, { arr[it] })
     }
 
     fun readPrimitiveDoubleArray_asBoxedArray(): Array<Double?> {
-        val n = beginArray(DataType.Double, true)
-        return Array<Double?>(n, { readRawDouble() })
+        val arr = readPrimitiveDoubleArray()
+        return Array<Double?>(arr.size, { arr[it] })
     }
 
 
@@ -740,7 +1323,7 @@ class NetworkDeserializer : NetworkSerialization() {
      * Read array without a known model a priori.
      */
     fun readArray(joinModelToData: Boolean = true): ValueTree? {
-        return readArray(joinModelToData, ObjectReadSession())
+        return readArray(joinModelToData, beginSession())
     }
 
     /**
@@ -816,17 +1399,7 @@ class NetworkDeserializer : NetworkSerialization() {
                 }
             }
             else if (/*model.isEnumArray()*/ arrayType == DataType.Enum) {
-                for (i in 0..n - 1) {
-                    val type = readType()
-                    node.values[i] = (
-                        if (type == DataType.Null)
-                            null
-                        else if (type == DataType.EnumValue)
-                            readRawInt()
-                        else
-                            throw RuntimeException("array enum didn't expect type: $type")
-                    )
-                }
+                readPackedEnums(node.values, model)
             }
             else if (arrayType == DataType.Array) {
                 val subModel = model.children!![0]
@@ -850,6 +1423,39 @@ class NetworkDeserializer : NetworkSerialization() {
     }
 
     fun readRawInt(): Int {
+        if (isCompactEncoding) {
+            return unzigzag(readRawVarInt())
+        }
+
+        return readFixedInt()
+    }
+
+    /**
+     * Reads non-negative integer like length of array, count of something or id.
+     */
+    fun readRawSize(): Int {
+        if (isCompactEncoding) {
+            return readRawVarInt()
+        }
+
+        return readFixedInt()
+    }
+
+    private fun readRawVarInt(): Int {
+        var value = 0
+        var shift = 0
+        var b: Int
+
+        do {
+            b = _source!![_sourcePos++].toInt()
+            value = value or ((b and 0x7F) shl shift)
+            shift += 7
+        } while (b and 0x80 != 0)
+
+        return value
+    }
+
+    private fun readFixedInt(): Int {
         var value = _source!![_sourcePos++].toInt() and 0xFF
         value = value shl 8
         value = value or (_source!![_sourcePos++].toInt() and 0xFF)
@@ -897,30 +1503,63 @@ class NetworkDeserializer : NetworkSerialization() {
         return false
     }
 
+    private fun beginSession(): ObjectReadSession {
+        _session.clear()
+        return _session
+    }
+
     private inline fun dbgType(t: DataType) {
         //println(t)
     }
 }
 
+/**
+ * Trees read so far, indexed by their ids. It's reused between deserializations.
+ */
 internal class ObjectReadSession {
-    val trees = ArrayList<TreeContainer>()
-    val treesMap = TreeMap<Int, TreeContainer>()
+    private val _trees = ArrayList<ValueTree?>()
+
+    /** for objects stored in [ColumnValues]: index within array tree, otherwise `-1` */
+    private var _rows = IntArray(64)
+
+    /** the highest remembered id, objects written in trusted schema mode get next one */
+    var lastId = 0
+        private set
 
-    fun find(id: Short): TreeContainer? {
-        var container = treesMap.get(id.toInt())
 
-        if (container == null) {
-            container = trees.find { it.id == id }
+    fun find(id: Int): ValueTree? {
+        if (id >= _trees.size) {
+            return null
         }
 
-        return container
+        val tree = _trees[id]
+        val row = _rows[id]
+
+        return if (tree == null || row < 0) tree else tree[row] as ValueTree
     }
 
-    fun remember(id: Short, tree: ValueTree, model: ObjectModelNode) {
-        val container = TreeContainer(id, tree, model)
-        trees.add(container)
-        treesMap.put(id.toInt(), container)
+    fun remember(id: Int, tree: ValueTree) {
+        rememberRow(id, tree, -1)
     }
-}
 
-data class TreeContainer(val id: Short, val tree: ValueTree, val model: ObjectModelNode)
\ No newline at end of file
+    fun rememberRow(id: Int, arrayTree: ValueTree, row: Int) {
+        while (_trees.size <= id) {
+            _trees.add(null)
+        }
+        _trees[id] = arrayTree
+
+        if (id >= _rows.size) {
+            _rows = Arrays.copyOf(_rows, Math.max(id + 1, _rows.size * 2))
+        }
+        _rows[id] = row
+
+        if (id > lastId) {
+            lastId = id
+        }
+    }
+
+    fun clear() {
+        _trees.clear()
+        lastId = 0
+    }
+}
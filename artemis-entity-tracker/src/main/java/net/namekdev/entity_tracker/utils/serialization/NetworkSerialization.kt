@@ -1,6 +1,7 @@
 package net.namekdev.entity_tracker.utils.serialization
 
 import com.artemis.utils.BitVector
+import net.namekdev.entity_tracker.utils.FieldAccessor
 
 abstract class NetworkSerialization {
     enum class DataType {
@@ -33,14 +34,39 @@ abstract class NetworkSerialization {
 
         // special values
         Null, //takes 1 byte
+
+        // strings remembered by both sides
+        StringDef, // defines next id of dictionary
+        StringRef, // a reference by id
     }
 
 
     companion object {
+        // headers of objects written in trusted schema mode
+        const val OBJECT_NULL: Byte = 0
+        const val OBJECT_NEW: Byte = 1
+        const val OBJECT_REF: Byte = 2
+        const val OBJECT_HIDDEN_ARRAY: Byte = 3
+
+        // limits of string dictionary, long strings are rarely repeated
+        const val STRING_DICTIONARY_CAPACITY = 4096
+        const val STRING_DICTIONARY_MAX_LENGTH = 256
+
+        // encodings of bit vectors
+        const val BITVECTOR_DENSE: Byte = 0
+        const val BITVECTOR_SPARSE: Byte = 1
+
+        /** artemis' `BitVector` doesn't expose it's words so we (de)serialize them through this */
+        internal val bitVectorWords = FieldAccessor.find(BitVector::class.java, "words")
+
         fun createSerializer(): NetworkSerializer {
             return NetworkSerializer()
         }
 
+        fun createSerializer(inspector: ObjectTypeInspector): NetworkSerializer {
+            return NetworkSerializer(inspector)
+        }
+
         fun createDeserializer(): NetworkDeserializer {
             return NetworkDeserializer()
         }
@@ -90,6 +116,30 @@ abstract class NetworkSerialization {
             }
         }
 
+        /**
+         * Maps signed integer to unsigned one so small negative numbers stay small, e.g. -1 to 1, 1 to 2.
+         */
+        fun zigzag(value: Int): Int =
+            (value shl 1) xor (value shr 31)
+
+        fun zigzag(value: Long): Long =
+            (value shl 1) xor (value shr 63)
+
+        fun unzigzag(value: Int): Int =
+            (value ushr 1) xor -(value and 1)
+
+        fun unzigzag(value: Long): Long =
+            (value ushr 1) xor -(value and 1)
+
+        /**
+         * Amount of bits needed to pack one enum of array of given model,
+         * ordinals are increased by one so `0` can stand for `null`.
+         */
+        fun enumBitWidth(enumArrayModel: ObjectModelNode): Int {
+            val valuesCount = enumArrayModel.arrayElTypeModel().enumModel().children!!.size
+            return 32 - Integer.numberOfLeadingZeros(valuesCount)
+        }
+
         fun isSimpleType(valueType: DataType?): Boolean {
             if (valueType == null)
                 return false
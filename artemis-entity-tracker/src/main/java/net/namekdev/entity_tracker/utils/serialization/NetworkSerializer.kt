@@ -2,7 +2,8 @@ package net.namekdev.entity_tracker.utils.serialization
 
 import com.artemis.utils.BitVector
 
-import net.namekdev.entity_tracker.utils.ReflectionUtils
+import net.namekdev.entity_tracker.utils.ByteBufferPool
+import java.nio.ByteBuffer
 import java.util.*
 
 /**
@@ -11,28 +12,183 @@ import java.util.*
  * descendant field is of custom type (class) then the definitions are implicitily
  * added to serialization buffer.
  */
-class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspector = ObjectTypeInspector()) : NetworkSerialization() {
-    private val _ourBuffer: ByteArray
-    private var _buffer: ByteArray
-    private var _pos: Int = 0
+class NetworkSerializer @JvmOverloads constructor(
+    val inspector: ObjectTypeInspector = ObjectTypeInspector(),
+    private val _bufferPool: ByteBufferPool = ByteBufferPool()
+) : NetworkSerialization() {
+    // data is written into chunks which are obtained from pool when needed
+    private val _chunks = ArrayList<ByteBuffer>()
+    private var _chunkViews: Array<ByteBuffer>
+    private var _chunk: ByteBuffer
+    private var _fullChunksSize = 0
 
     private val _serializeResult = SerializationResult()
+    private var _resultBuffer = ByteArray(0)
     private var _typeCountOnLastCheck = 0
-    private val _modelsMarkedAsSent = TreeSet<Int>()
+
+    // models described to the other side during connection and their ids in it,
+    // models of different inspectors may have the same ids so colliding ones are given new ids
+    private val _modelIds = IdentityHashMap<ObjectModelNode, Int>()
+    private val _modelsById = HashMap<Int, ObjectModelNode>()
+    private var _maxModelId = 0
+    private val _modelsToDescribe = ArrayList<ObjectModelNode>()
+    private val _describedModels = Collections.newSetFromMap(IdentityHashMap<ObjectModelNode, Boolean>())
+    private val _session = ObjectSerializationSession()
+
+    // descriptions and strings remembered while writing current packet, forgotten when it's aborted
+    private val _packetDescribedModels = ArrayList<ObjectModelNode>()
+    private val _packetStrings = ArrayList<String>()
+
+    /**
+     * When enabled, integers are written as varints: sizes, ids and counts
+     * are written as unsigned LEB128, other integers are zigzag encoded first.
+     * Floating point values are always written with fixed size.
+     */
+    var isCompactEncoding = false
+
+    /**
+     * When enabled, values of known model (see `addObject(model, obj)`) are written without
+     * type tags and ids of new objects, only nullability and references to already written objects
+     * are left. Has to match [NetworkDeserializer.isTrustedSchema] of the other side.
+     */
+    var isTrustedSchema = false
+
+    /**
+     * When enabled, strings are remembered so their next occurrences are written as ids.
+     * Has to match [NetworkDeserializer.isStringDictionaryEnabled] of the other side.
+     * Toggling it forgets the remembered strings.
+     */
+    var isStringDictionaryEnabled = false
+        set(value) {
+            field = value
+            _stringDictionary.clear()
+        }
+
+    private val _stringDictionary = HashMap<String, Int>()
+
+    /**
+     * When set, written data is passed to it in parts as soon as it exceeds [streamPartSize]
+     * and chunks are reused, so huge object graphs don't have to be kept whole in memory.
+     * The rest of data is available as usual, see [size].
+     */
+    var streamListener: StreamListener? = null
+
+    var streamPartSize = DEFAULT_STREAM_PART_SIZE
+
+    /**
+     * Amount of bytes passed to [streamListener] since last [reset].
+     */
+    var streamedSize = 0
+        private set
 
     init {
-        _buffer = ByteArray(102400)
-        _ourBuffer = _buffer
+        _chunk = _bufferPool.obtain()
+        _chunks.add(_chunk)
+        _chunkViews = Array(4, { _chunk.duplicate() })
     }
 
-    @JvmOverloads fun reset(buffer: ByteArray = _ourBuffer): NetworkSerializer {
-        _pos = 0
-        _buffer = buffer
-        //		_buffer[_pos++] = PACKET_BEGIN;
-        _modelsMarkedAsSent.clear()
+    fun reset(): NetworkSerializer {
+        freeChunks()
+        streamedSize = 0
+        _packetDescribedModels.clear()
+        _packetStrings.clear()
         return this
     }
 
+    /**
+     * Resets the serializer when written packet is not going to be received by the other side,
+     * e.g. when writing failed. Data descriptions and strings written since last [reset]
+     * are forgotten, so they will be written again.
+     */
+    fun abortPacket(): NetworkSerializer {
+        for (model in _packetDescribedModels) {
+            _describedModels.remove(model)
+        }
+        for (value in _packetStrings) {
+            _stringDictionary.remove(value)
+        }
+
+        return reset()
+    }
+
+    /**
+     * Forgets which data descriptions were sent, so they will be described again.
+     * Should be called for a new connection, together with [NetworkDeserializer.forgetDescriptions].
+     */
+    fun forgetDescriptions() {
+        _modelIds.clear()
+        _modelsById.clear()
+        _maxModelId = 0
+        _describedModels.clear()
+    }
+
+    /**
+     * Id of model used in descriptions and references during connection.
+     */
+    private fun modelId(model: ObjectModelNode): Int {
+        var id = _modelIds[model]
+
+        if (id == null) {
+            id = model.id
+            if (_modelsById.containsKey(id)) {
+                id = _maxModelId + 1
+            }
+
+            _modelIds.put(model, id)
+            _modelsById.put(id, model)
+            _maxModelId = Math.max(_maxModelId, id)
+        }
+
+        return id
+    }
+
+    private fun freeChunks() {
+        for (i in _chunks.size - 1 downTo 1) {
+            _bufferPool.free(_chunks.removeAt(i))
+        }
+
+        _chunk = _chunks[0]
+        _chunk.clear()
+        _fullChunksSize = 0
+    }
+
+    /**
+     * Amount of bytes written since last [reset] and not passed to [streamListener].
+     */
+    val size: Int
+        get() = _fullChunksSize + _chunk.position()
+
+    val chunkCount: Int
+        get() = _chunks.size
+
+    private fun ensureCapacity(byteCount: Int) {
+        if (_chunk.remaining() < byteCount) {
+            nextChunk()
+        }
+    }
+
+    private fun nextChunk() {
+        _fullChunksSize += _chunk.position()
+
+        val listener = streamListener
+        if (listener != null && _fullChunksSize >= streamPartSize) {
+            val partSize = _fullChunksSize
+            listener.partWritten(flipChunks(), chunkCount, partSize)
+            streamedSize += partSize
+            freeChunks()
+            return
+        }
+
+        _chunk = _bufferPool.obtain()
+        _chunks.add(_chunk)
+
+        val n = _chunks.size
+        if (_chunkViews.size < n) {
+            _chunkViews = Arrays.copyOf(_chunkViews, n * 2)
+        }
+        _chunkViews[n - 1] = _chunk.duplicate()
+    }
+
     val newInspectedTypeCountToBeManuallySent: Int
         get() {
             val count = inspector.registeredModelsCount
@@ -45,7 +201,7 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
         addType(DataType.Array)
         addRawBoolean(isPrimitive)
         addType(elementType)
-        addRawInt(length)
+        addRawSize(length)
 
         return this
     }
@@ -61,12 +217,29 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
 
     fun addByte(value: Byte): NetworkSerializer {
         addType(DataType.Byte)
-        _buffer[_pos++] = value
-        return this
+        return addRawByte(value)
     }
 
     fun addRawByte(value: Byte): NetworkSerializer {
-        _buffer[_pos++] = value
+        ensureCapacity(1)
+        _chunk.put(value)
+        return this
+    }
+
+    fun addRawBytes(bytes: ByteArray, offset: Int, length: Int): NetworkSerializer {
+        var pos = offset
+        val end = offset + length
+
+        while (pos < end) {
+            if (!_chunk.hasRemaining()) {
+                nextChunk()
+            }
+
+            val count = Math.min(end - pos, _chunk.remaining())
+            _chunk.put(bytes, pos, count)
+            pos += count
+        }
+
         return this
     }
 
@@ -77,8 +250,13 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
     }
 
     protected fun addRawShort(value: Short) {
-        _buffer[_pos++] = (value.toInt() shr 8 and 0xFF).toByte()
-        _buffer[_pos++] = (value.toInt() and 0xFF).toByte()
+        if (isCompactEncoding) {
+            addRawVarInt(zigzag(value.toInt()))
+        }
+        else {
+            ensureCapacity(2)
+            _chunk.putShort(value)
+        }
     }
 
     fun addInt(value: Int): NetworkSerializer {
@@ -88,10 +266,42 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
     }
 
     fun addRawInt(value: Int) {
-        _buffer[_pos++] = (value shr 24 and 0xFF).toByte()
-        _buffer[_pos++] = (value shr 16 and 0xFF).toByte()
-        _buffer[_pos++] = (value shr 8 and 0xFF).toByte()
-        _buffer[_pos++] = (value and 0xFF).toByte()
+        if (isCompactEncoding) {
+            addRawVarInt(zigzag(value))
+        }
+        else {
+            addFixedInt(value)
+        }
+    }
+
+    /**
+     * Writes non-negative integer like length of array, count of something or id.
+     */
+    fun addRawSize(value: Int) {
+        assert(value >= 0)
+
+        if (isCompactEncoding) {
+            addRawVarInt(value)
+        }
+        else {
+            addFixedInt(value)
+        }
+    }
+
+    private fun addFixedInt(value: Int) {
+        ensureCapacity(4)
+        _chunk.putInt(value)
+    }
+
+    private fun addRawVarInt(value: Int) {
+        ensureCapacity(5)
+
+        var v = value
+        while (v and 0x7F.inv() != 0) {
+            _chunk.put((v and 0x7F or 0x80).toByte())
+            v = v ushr 7
+        }
+        _chunk.put(v.toByte())
     }
 
     fun addLong(value: Long): NetworkSerializer {
@@ -101,14 +311,28 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
     }
 
     protected fun addRawLong(value: Long) {
-        _buffer[_pos++] = (value shr 56 and 0xFF).toByte()
-        _buffer[_pos++] = (value shr 48 and 0xFF).toByte()
-        _buffer[_pos++] = (value shr 40 and 0xFF).toByte()
-        _buffer[_pos++] = (value shr 32 and 0xFF).toByte()
-        _buffer[_pos++] = (value shr 24 and 0xFF).toByte()
-        _buffer[_pos++] = (value shr 16 and 0xFF).toByte()
-        _buffer[_pos++] = (value shr 8 and 0xFF).toByte()
-        _buffer[_pos++] = (value and 0xFF).toByte()
+        if (isCompactEncoding) {
+            addRawVarLong(zigzag(value))
+        }
+        else {
+            addFixedLong(value)
+        }
+    }
+
+    private fun addFixedLong(value: Long) {
+        ensureCapacity(8)
+        _chunk.putLong(value)
+    }
+
+    private fun addRawVarLong(value: Long) {
+        ensureCapacity(10)
+
+        var v = value
+        while (v and 0x7FL.inv() != 0L) {
+            _chunk.put((v and 0x7FL or 0x80L).toByte())
+            v = v ushr 7
+        }
+        _chunk.put(v.toByte())
     }
 
     fun addString(value: String?): NetworkSerializer {
@@ -116,18 +340,99 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
             return this
         }
 
-        addType(DataType.String)
+        val string = value!!
 
-        val n = value!!.length
-        addRawInt(n)
+        if (isStringDictionaryEnabled) {
+            val id = _stringDictionary[string]
 
-        for (i in 0..n - 1) {
-            _buffer[_pos++] = (value!![i].toInt() and 0xFF).toByte()
+            if (id != null) {
+                addType(DataType.StringRef)
+                addRawSize(id)
+                return this
+            }
+            else if (_stringDictionary.size < STRING_DICTIONARY_CAPACITY && string.length <= STRING_DICTIONARY_MAX_LENGTH) {
+                // the other side gives it the next id
+                _stringDictionary.put(string, _stringDictionary.size)
+                _packetStrings.add(string)
+                addType(DataType.StringDef)
+                addRawUtf8(string)
+                return this
+            }
         }
 
+        addType(DataType.String)
+        addRawUtf8(string)
+
         return this
     }
 
+    /**
+     * Writes length of string in bytes and the string encoded as UTF-8.
+     * Unpaired surrogates are replaced with `?`, the same as [String.toByteArray] does.
+     */
+    private fun addRawUtf8(value: String) {
+        val n = value.length
+        var byteCount = 0
+        var i = 0
+
+        while (i < n) {
+            val c = value[i]
+
+            byteCount +=
+                if (c.toInt() < 0x80) 1
+                else if (c.toInt() < 0x800) 2
+                else if (!Character.isSurrogate(c)) 3
+                else if (isSurrogatePair(value, i)) { ++i; 4 }
+                else 1
+
+            ++i
+        }
+
+        addRawSize(byteCount)
+
+        i = 0
+        while (i < n) {
+            if (_chunk.remaining() < 4) {
+                nextChunk()
+            }
+
+            while (i < n && _chunk.remaining() >= 4) {
+                val c = value[i].toInt()
+
+                if (c < 0x80) {
+                    _chunk.put(c.toByte())
+                }
+                else if (c < 0x800) {
+                    _chunk.put((0xC0 or (c shr 6)).toByte())
+                    _chunk.put((0x80 or (c and 0x3F)).toByte())
+                }
+                else if (!Character.isSurrogate(c.toChar())) {
+                    _chunk.put((0xE0 or (c shr 12)).toByte())
+                    _chunk.put((0x80 or ((c shr 6) and 0x3F)).toByte())
+                    _chunk.put((0x80 or (c and 0x3F)).toByte())
+                }
+                else if (isSurrogatePair(value, i)) {
+                    val codePoint = Character.toCodePoint(c.toChar(), value[++i])
+                    _chunk.put((0xF0 or (codePoint shr 18)).toByte())
+                    _chunk.put((0x80 or ((codePoint shr 12) and 0x3F)).toByte())
+                    _chunk.put((0x80 or ((codePoint shr 6) and 0x3F)).toByte())
+                    _chunk.put((0x80 or (codePoint and 0x3F)).toByte())
+                }
+                else {
+                    _chunk.put('?'.toByte())
+                }
+
+                ++i
+            }
+        }
+    }
+
+    private fun isSurrogatePair(value: String, index: Int): Boolean {
+        return Character.isHighSurrogate(value[index])
+            && index + 1 < value.length
+            && Character.isLowSurrogate(value[index + 1])
+    }
+
     fun addBoolean(value: Boolean): NetworkSerializer {
         addType(DataType.Boolean)
         return addRawBoolean(value)
@@ -143,7 +448,7 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
     }
 
     fun addRawFloat(value: Float): NetworkSerializer {
-        addRawInt(java.lang.Float.floatToIntBits(value))
+        addFixedInt(java.lang.Float.floatToIntBits(value))
         return this
     }
 
@@ -153,7 +458,7 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
     }
 
     fun addRawDouble(value: Double): NetworkSerializer {
-        addRawLong(java.lang.Double.doubleToLongBits(value))
+        addFixedLong(java.lang.Double.doubleToLongBits(value))
         return this
     }
 
@@ -163,29 +468,79 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
         }
 
         addType(DataType.BitVector)
+        addRawBitVector(bitVector!!)
 
-        val bitsCount = bitVector!!.length()
-        addRawShort(bitsCount.toShort())
+        return this
+    }
 
-        var i = 0
-        var value: Int
-        while (i < bitsCount) {
-            value = 0
-            var j = 0
-            while (j < Integer.SIZE && j < bitsCount) {
-                val bit = bitVector.get(i)
-
-                if (bit) {
-                    value = value or (1 shl j)
+    /**
+     * Bit vector is written either as whole words (dense) or as a list of indices of set bits,
+     * each one relative to the previous one (sparse). The smaller one is chosen.
+     */
+    private fun addRawBitVector(bitVector: BitVector) {
+        val words = bitVectorWords.get(bitVector) as LongArray
+        var wordCount = words.size
+        while (wordCount > 0 && words[wordCount - 1] == 0L) {
+            --wordCount
+        }
+
+        val denseSize = rawSizeLength(wordCount) + wordCount * 8
+        var sparseSize = 0
+        var setBitsCount = 0
+        var prevIndex = -1
+
+        measureSparse@ for (i in 0..wordCount - 1) {
+            var word = words[i]
+
+            while (word != 0L) {
+                val index = i * 64 + java.lang.Long.numberOfTrailingZeros(word)
+                sparseSize += rawSizeLength(index - prevIndex - 1)
+                prevIndex = index
+                ++setBitsCount
+                word = word and (word - 1)
+
+                if (sparseSize >= denseSize) {
+                    break@measureSparse
                 }
-                ++j
-                ++i
             }
+        }
+        sparseSize += rawSizeLength(setBitsCount)
+
+        if (sparseSize < denseSize) {
+            addRawByte(BITVECTOR_SPARSE)
+            addRawSize(setBitsCount)
+            prevIndex = -1
+
+            for (i in 0..wordCount - 1) {
+                var word = words[i]
 
-            addRawInt(value)
+                while (word != 0L) {
+                    val index = i * 64 + java.lang.Long.numberOfTrailingZeros(word)
+                    addRawSize(index - prevIndex - 1)
+                    prevIndex = index
+                    word = word and (word - 1)
+                }
+            }
         }
+        else {
+            addRawByte(BITVECTOR_DENSE)
+            addRawSize(wordCount)
 
-        return this
+            for (i in 0..wordCount - 1) {
+                addFixedLong(words[i])
+            }
+        }
+    }
+
+    /**
+     * Amount of bytes which [addRawSize] would take for given value.
+     */
+    private fun rawSizeLength(value: Int): Int {
+        if (!isCompactEncoding) {
+            return 4
+        }
+
+        return (31 - Integer.numberOfLeadingZeros(value or 1)) / 7 + 1
     }
 
     protected fun tryAddNullable(data: Any?): Boolean {
@@ -257,29 +612,30 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
     }
 
     fun addDataDescriptionOrRef(model: ObjectModelNode): NetworkSerializer {
-        if (!_modelsMarkedAsSent.contains(model.id)) {
+        if (!_describedModels.contains(model)) {
             addType(DataType.Description)
             addRawDataDescription(model)
 
-            _modelsMarkedAsSent.add(model.id)
+            _describedModels.add(model)
+            _packetDescribedModels.add(model)
         }
         else {
             addType(DataType.DescriptionRef)
-            addRawInt(model.id)
+            addRawSize(modelId(model))
         }
 
         return this
     }
 
     private fun addRawDataDescription(model: ObjectModelNode) {
-        addRawInt(model.id)
+        addRawSize(modelId(model))
         addString(model.name)
         addBoolean(model.isTypePrimitive)
 
         if (model.dataType == DataType.Object || model.dataType == DataType.Unknown) {
             addType(DataType.Object)
             val n = model.children!!.size
-            addRawInt(n)
+            addRawSize(n)
 
             for (i in 0..n - 1) {
                 val node = model.children!![i]
@@ -295,20 +651,19 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
         }
         else if (model.dataType == DataType.EnumValue) {
             addType(DataType.EnumValue)
-            addRawInt(model.enumValue)
+            addRawSize(model.enumValue)
             addString(model.name!!)
         }
         else if (model.dataType == DataType.EnumDescription) {
             addType(DataType.EnumDescription)
 
-            val enumModelId = model.id
-            addRawInt(enumModelId)
+            addRawSize(modelId(model))
 
-            addRawInt(model.children!!.size)
+            addRawSize(model.children!!.size)
 
             for (enumValueModel in model.children!!) {
-                addRawInt(enumValueModel.id)
-                addRawInt(enumValueModel.enumValue)
+                addRawSize(modelId(enumValueModel))
+                addRawSize(enumValueModel.enumValue)
                 addString(enumValueModel.name!!)
             }
         }
@@ -318,7 +673,8 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
             addType(if (arrayType == DataType.Unknown) DataType.Object else arrayType)
 
             if (NetworkSerialization.isSimpleType(arrayType)) {
-                // do nothing
+                // `int[]` and `Integer[]` are encoded differently in trusted schema mode
+                addBoolean(model.isSubTypePrimitive)
             }
             else if (arrayType == DataType.Object || arrayType == DataType.Unknown) {
                 // do nothing
@@ -334,14 +690,14 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
                     m = m.children!![0]
                     ++depth
                 }
-                addRawInt(depth)
+                addRawSize(depth)
                 addType(m.dataSubType)
                 addBoolean(m.isSubTypePrimitive)
 
                 m = model
                 while (m.children != null) {
                     m = m.children!![0]
-                    addRawInt(m.id)
+                    addRawSize(modelId(m))
                 }
             }
             else {
@@ -353,30 +709,41 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
         }
     }
 
+    /**
+     * Describes models registered by the inspection and then model of the object, the last one
+     * is the root. Every model is described once per connection, later it's only referenced.
+     * Inspector may be shared so the model may have been inspected before, then only it's
+     * tree is described.
+     */
     private fun inspectThenAddDescriptionOrRef(obj: Any): ObjectModelNode {
         val previousInspectionCount = inspector.registeredModelsCount
         val model = inspector.inspect(obj.javaClass)
         val inspectionCount = inspector.registeredModelsCount
 
-        addType(DataType.MultipleDescriptions)
-        val diff = inspectionCount - previousInspectionCount
-        addRawInt(diff)
+        _modelsToDescribe.clear()
+        for (i in previousInspectionCount until inspectionCount) {
+            val inspectedModel = inspector.getRegisteredModelByIndex(i)
 
-        if (diff > 0) {
-            for (i in previousInspectionCount + 1 until inspectionCount) {
-                addDataDescriptionOrRef(
-                    inspector.getRegisteredModelByIndex(i)
-                )
+            if (inspectedModel !== model && !_describedModels.contains(inspectedModel)) {
+                _modelsToDescribe.add(inspectedModel)
             }
-            addDataDescriptionOrRef(
-                inspector.getRegisteredModelByIndex(previousInspectionCount)
-            )
+        }
 
-            _typeCountOnLastCheck = inspectionCount
+        addType(DataType.MultipleDescriptions)
+
+        if (_modelsToDescribe.isNotEmpty() || !_describedModels.contains(model)) {
+            addRawSize(_modelsToDescribe.size + 1)
+
+            for (i in _modelsToDescribe.indices) {
+                addDataDescriptionOrRef(_modelsToDescribe[i])
+            }
+            addDataDescriptionOrRef(model)
+            _modelsToDescribe.clear()
         }
         else {
+            addRawSize(0)
             addType(DataType.DescriptionRef)
-            addRawInt(model.id)
+            addRawSize(modelId(model))
         }
 
         return model
@@ -392,7 +759,7 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
      * because of the inspection cache.
      */
     fun addObject(obj: Any?): NetworkSerializer {
-        return addObject(obj, ObjectSerializationSession())
+        return addObject(obj, beginSession())
     }
 
     private fun addObject(obj: Any?, session: ObjectSerializationSession): NetworkSerializer {
@@ -410,79 +777,230 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
         return this
     }
 
+    /**
+     * Serializes object of model which is already known to the other side.
+     * See [isTrustedSchema].
+     */
     fun addObject(model: ObjectModelNode, obj: Any): NetworkSerializer {
-        addType(DataType.Object)
-        addRawObject(model, obj, ObjectSerializationSession())
-
-        return this
+        return addObject(model, obj, beginSession())
     }
 
     private fun addObject(model: ObjectModelNode, obj: Any, session: ObjectSerializationSession): NetworkSerializer {
-        addType(DataType.Object)
+        if (!isTrustedSchema) {
+            addType(DataType.Object)
+        }
         addRawObject(model, obj, session)
 
         return this
     }
 
     private fun addRawObject(model: ObjectModelNode, obj: Any?, session: ObjectSerializationSession) {
+        if (isTrustedSchema && (model.isArray || model.dataType == DataType.Object || model.dataType == DataType.Unknown)) {
+            addTrustedObject(model, obj, session)
+            return
+        }
+
         if (tryAddNullable(obj)) {
             // well, null is added here.
             return
         }
 
         val obj = obj!!
-        val isArray = obj.javaClass.isArray
-        val isReferential = model.dataType == DataType.Object || model.dataType == DataType.Unknown || isArray
 
-        if (isReferential) {
-            val remembered = session.hasOrRemember(obj)
+        if (model.isArray) {
+            addArray(obj, model, session)
+        }
+        else if (obj.javaClass.isArray) {
+            // This is hidden array in Object field.
+            // Example: Object someField = new int[] { ... }
+            addArray(obj, session)
+        }
+        else if (model.dataType == DataType.Object || model.dataType == DataType.Unknown) {
+            val id = session.findOrRemember(obj)
 
-            if (remembered.first) {
+            if (id != 0) {
                 // add reference to cyclic dependency
                 addType(DataType.ObjectRef)
-                addRawShort(remembered.second.id)
+                addRawSize(id)
             }
-            else if (!isArray) {
+            else {
                 addType(DataType.Object)
-                addRawShort(remembered.second.id)
-                val n = model.children!!.size
+                addRawSize(session.lastId)
+                addRawFields(SerializationPlan.of(model), obj, session)
+            }
+        }
+        else if (isSimpleType(model.dataType)) {
+            addRawByType(model.dataType, obj)
+        }
+        else if (model.isEnum) {
+            addType(DataType.Enum)
 
-                for (i in 0..n - 1) {
-                    val child = model.children!![i]
-                    val childObject = ReflectionUtils.getHiddenFieldValue(obj.javaClass, child.name!!, obj)
+            val enumVal = (obj as Enum<*>).ordinal
+            addRawSize(enumVal)
+        }
+        else {
+            throw RuntimeException("unsupported type: " + model.dataType)
+        }
+    }
 
-                    addRawObject(child, childObject, session)
-                }
-            }
-            else if (model.isArray) {
-                addArray(obj, model, session)
+    private fun addTrustedObject(model: ObjectModelNode, obj: Any?, session: ObjectSerializationSession) {
+        if (model.isArray) {
+            addTrustedArray(obj, model, session)
+        }
+        else if (obj == null) {
+            addRawByte(OBJECT_NULL)
+        }
+        else if (obj.javaClass.isArray) {
+            // hidden array in Object field, the model doesn't say anything about it
+            addRawByte(OBJECT_HIDDEN_ARRAY)
+            addArray(obj, session)
+        }
+        else {
+            val id = session.findOrRemember(obj)
 
-                // TODO add remembered id!
+            if (id != 0) {
+                addRawByte(OBJECT_REF)
+                addRawSize(id)
+            }
+            else {
+                // id is implicit, both sides count the objects in the same order
+                addRawByte(OBJECT_NEW)
+                addRawFields(SerializationPlan.of(model), obj, session)
             }
-            else if (isArray) {
-                // This is hidden array in Object field.
-                // Example: Object someField = new int[] { ... }
-                addArray(obj, session)
+        }
+    }
+
+    private fun addRawFields(plan: SerializationPlan, obj: Any, session: ObjectSerializationSession) {
+        val opcodes = plan.opcodes
+
+        for (i in opcodes.indices) {
+            val accessor = plan.accessor(i, obj)
+
+            when (opcodes[i]) {
+                SerializationPlan.OP_BYTE -> addRawByte(accessor.getByte(obj))
+                SerializationPlan.OP_SHORT -> addRawShort(accessor.getShort(obj))
+                SerializationPlan.OP_INT -> addRawInt(accessor.getInt(obj))
+                SerializationPlan.OP_LONG -> addRawLong(accessor.getLong(obj))
+                SerializationPlan.OP_BOOLEAN -> addRawBoolean(accessor.getBoolean(obj))
+                SerializationPlan.OP_FLOAT -> addRawFloat(accessor.getFloat(obj))
+                SerializationPlan.OP_DOUBLE -> addRawDouble(accessor.getDouble(obj))
+                SerializationPlan.OP_NULLABLE_SIMPLE ->
+                    if (isTrustedSchema) {
+                        addTrustedSimple(plan.dataTypes[i], accessor.get(obj))
+                    }
+                    else {
+                        val value = accessor.get(obj)
 
-                // TODO add remembered id!
+                        if (!tryAddNullable(value)) {
+                            addType(plan.dataTypes[i])
+                            addRawByType(plan.dataTypes[i], value!!)
+                        }
+                    }
+                SerializationPlan.OP_STRING -> addString(accessor.get(obj) as String?)
+                SerializationPlan.OP_BITVECTOR ->
+                    if (isTrustedSchema)
+                        addTrustedSimple(DataType.BitVector, accessor.get(obj))
+                    else
+                        addBitVector(accessor.get(obj) as BitVector?)
+                SerializationPlan.OP_ENUM ->
+                    if (isTrustedSchema) {
+                        addTrustedEnum(accessor.get(obj))
+                    }
+                    else {
+                        val value = accessor.get(obj)
+
+                        if (!tryAddNullable(value)) {
+                            addType(DataType.Enum)
+                            addRawSize((value as Enum<*>).ordinal)
+                        }
+                    }
+                SerializationPlan.OP_OBJECT -> addRawObject(plan.childModels[i], accessor.get(obj), session)
+                SerializationPlan.OP_ARRAY ->
+                    if (isTrustedSchema)
+                        addTrustedArray(accessor.get(obj), plan.childModels[i], session)
+                    else
+                        addArray(accessor.get(obj), plan.childModels[i], session)
             }
+        }
+    }
 
-            return
+    /**
+     * Nullable value of simple type in trusted schema mode: presence flag and raw value.
+     */
+    private fun addTrustedSimple(dataType: DataType, value: Any?) {
+        if (dataType == DataType.String) {
+            // type of string doubles as nullability flag
+            addString(value as String?)
+        }
+        else if (value == null) {
+            addRawBoolean(false)
         }
+        else {
+            addRawBoolean(true)
 
-        if (isSimpleType(model.dataType)) {
-            // TODO handle non-primitive fields. This assertion may fail? or not
-            assert(model.isTypePrimitive)
-            addRawByType(model.dataType, obj)
+            if (dataType == DataType.BitVector)
+                addRawBitVector(value as BitVector)
+            else
+                addRawByType(dataType, value)
         }
-        else if (model.isEnum) {
-            addType(DataType.Enum)
+    }
+
+    /**
+     * Enum value in trusted schema mode: ordinal increased by one, `0` stands for `null`.
+     */
+    private fun addTrustedEnum(value: Any?) {
+        addRawSize(if (value == null) 0 else (value as Enum<*>).ordinal + 1)
+    }
 
-            val enumVal = (obj as Enum<DataType>).ordinal
-            addRawInt(enumVal)
+    /**
+     * Array of known model in trusted schema mode: length increased by one (`0` stands for `null`)
+     * and then elements without tags. Only elements of Object type are written the usual way
+     * because their actual types may differ from the model.
+     */
+    private fun addTrustedArray(array: Any?, model: ObjectModelNode, session: ObjectSerializationSession) {
+        if (array == null) {
+            addRawSize(0)
+        }
+        else if (model.isSubTypePrimitive) {
+            when (model.dataSubType) {
+                DataType.Boolean -> { array as BooleanArray; addRawSize(array.size + 1); addRawElements(array) }
+                DataType.Byte -> { array as ByteArray; addRawSize(array.size + 1); addRawElements(array) }
+                DataType.Short -> { array as ShortArray; addRawSize(array.size + 1); addRawElements(array) }
+                DataType.Int -> { array as IntArray; addRawSize(array.size + 1); addRawElements(array) }
+                DataType.Long -> { array as LongArray; addRawSize(array.size + 1); addRawElements(array) }
+                DataType.Float -> { array as FloatArray; addRawSize(array.size + 1); addRawElements(array) }
+                DataType.Double -> { array as DoubleArray; addRawSize(array.size + 1); addRawElements(array) }
+                else -> throw RuntimeException("unknown array type")
+            }
         }
         else {
-            throw RuntimeException("unsupported type: " + model.dataType)
+            array as Array<*>
+            addRawSize(array.size + 1)
+            val arrayType = model.arrayType()
+
+            if (arrayType == DataType.Unknown || arrayType == DataType.Object) {
+                for (el in array) {
+                    addObject(el, session)
+                }
+            }
+            else if (isSimpleType(arrayType)) {
+                for (el in array) {
+                    addTrustedSimple(arrayType, el)
+                }
+            }
+            else if (arrayType == DataType.Enum) {
+                addPackedEnums(array, model)
+            }
+            else if (arrayType == DataType.Array) {
+                val elModel = model.arrayElTypeModel()
+
+                for (subArr in array) {
+                    addTrustedArray(subArr, elModel, session)
+                }
+            }
+            else {
+                throw RuntimeException("unsupported array type: " + arrayType)
+            }
         }
     }
 
@@ -490,7 +1008,7 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
      * Use this method if you specifically know the structure of array - it'll be more efficient.
      */
     fun addArray(array: Any, model: ObjectModelNode) {
-        return addArray(array, model, ObjectSerializationSession())
+        return addArray(array, model, beginSession())
     }
 
     /**
@@ -523,18 +1041,7 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
                 }
             }
             else if (arrayType == DataType.Enum) {
-                for (i in 0..n - 1) {
-                    val el = array[i]
-
-                    if (el === null) {
-                        addType(DataType.Null)
-                    }
-                    else {
-                        addType(DataType.EnumValue)
-                        val enumVal = (el as Enum<DataType>).ordinal
-                        addRawInt(enumVal)
-                    }
-                }
+                addPackedEnums(array, model)
             }
             else if (arrayType == DataType.Array) {
                 for (subArr in array) {
@@ -616,93 +1123,262 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
 
     fun addArray(array: BooleanArray): NetworkSerializer {
         beginArray(DataType.Boolean, array.size, true)
-
-        // TODO may be optimized by using BitVector or similar
-        for (value in array) {
-            addRawBoolean(value)
-        }
+        addRawElements(array)
 
         return this
     }
 
+    private fun addRawElements(array: BooleanArray) {
+        addPackedBits(array.size, 1, { if (array[it]) 1 else 0 })
+    }
+
     fun addArray(array: ByteArray): NetworkSerializer {
         beginArray(DataType.Byte, array.size, true)
-
-        for (value in array) {
-            addRawByte(value)
-        }
+        addRawElements(array)
 
         return this
     }
 
+    private fun addRawElements(array: ByteArray) {
+        addRawBytes(array, 0, array.size)
+    }
+
     fun addArray(array: ShortArray): NetworkSerializer {
         beginArray(DataType.Short, array.size, true)
+        addRawElements(array)
+
+        return this
+    }
 
-        for (value in array) {
-            addRawShort(value)
+    private fun addRawElements(array: ShortArray) {
+        if (isCompactEncoding) {
+            for (value in array) {
+                addRawShort(value)
+            }
+            return
         }
 
-        return this
+        var i = 0
+        while (i < array.size) {
+            val count = Math.min(array.size - i, _chunk.remaining() / 2)
+
+            if (count == 0) {
+                nextChunk()
+                continue
+            }
+
+            _chunk.asShortBuffer().put(array, i, count)
+            _chunk.position(_chunk.position() + count * 2)
+            i += count
+        }
     }
 
     fun addArray(array: IntArray): NetworkSerializer {
         beginArray(DataType.Int, array.size, true)
+        addRawElements(array)
 
-        for (value in array) {
-            addRawInt(value)
+        return this
+    }
+
+    private fun addRawElements(array: IntArray) {
+        if (isCompactEncoding) {
+            for (value in array) {
+                addRawInt(value)
+            }
+            return
         }
 
-        return this
+        var i = 0
+        while (i < array.size) {
+            val count = Math.min(array.size - i, _chunk.remaining() / 4)
+
+            if (count == 0) {
+                nextChunk()
+                continue
+            }
+
+            _chunk.asIntBuffer().put(array, i, count)
+            _chunk.position(_chunk.position() + count * 4)
+            i += count
+        }
     }
 
     fun addArray(array: LongArray): NetworkSerializer {
         beginArray(DataType.Long, array.size, true)
+        addRawElements(array)
+
+        return this
+    }
 
-        for (value in array) {
-            addRawLong(value)
+    private fun addRawElements(array: LongArray) {
+        if (isCompactEncoding) {
+            for (value in array) {
+                addRawLong(value)
+            }
+            return
         }
 
-        return this
+        var i = 0
+        while (i < array.size) {
+            val count = Math.min(array.size - i, _chunk.remaining() / 8)
+
+            if (count == 0) {
+                nextChunk()
+                continue
+            }
+
+            _chunk.asLongBuffer().put(array, i, count)
+            _chunk.position(_chunk.position() + count * 8)
+            i += count
+        }
     }
 
     fun addArray(array: FloatArray): NetworkSerializer {
         beginArray(DataType.Float, array.size, true)
-
-        for (value in array) {
-            addRawFloat(value)
-        }
+        addRawElements(array)
 
         return this
     }
 
-    fun addArray(array: DoubleArray): NetworkSerializer {
-        beginArray(DataType.Double, array.size, true)
+    private fun addRawElements(array: FloatArray) {
+        var i = 0
+        while (i < array.size) {
+            val count = Math.min(array.size - i, _chunk.remaining() / 4)
+
+            if (count == 0) {
+                nextChunk()
+                continue
+            }
 
-        for (value in array) {
-            addRawDouble(value)
+            _chunk.asFloatBuffer().put(array, i, count)
+            _chunk.position(_chunk.position() + count * 4)
+            i += count
         }
+    }
+
+    fun addArray(array: DoubleArray): NetworkSerializer {
+        beginArray(DataType.Double, array.size, true)
+        addRawElements(array)
 
         return this
     }
 
+    private fun addRawElements(array: DoubleArray) {
+        var i = 0
+        while (i < array.size) {
+            val count = Math.min(array.size - i, _chunk.remaining() / 8)
+
+            if (count == 0) {
+                nextChunk()
+                continue
+            }
+
+            _chunk.asDoubleBuffer().put(array, i, count)
+            _chunk.position(_chunk.position() + count * 8)
+            i += count
+        }
+    }
+
     private inline fun addArray(array: Any?): NetworkSerializer {
-        addArray(array, ObjectSerializationSession())
+        addArray(array, beginSession())
         return this
     }
 
+    /**
+     * Packs `count` values of `bitWidth` bits each, starting from the lowest bits of every byte.
+     */
+    private inline fun addPackedBits(count: Int, bitWidth: Int, value: (Int) -> Int) {
+        var bits = 0L
+        var bitCount = 0
+
+        for (i in 0..count - 1) {
+            bits = bits or (value(i).toLong() shl bitCount)
+            bitCount += bitWidth
+
+            while (bitCount >= 8) {
+                addRawByte(bits.toByte())
+                bits = bits ushr 8
+                bitCount -= 8
+            }
+        }
+
+        if (bitCount > 0) {
+            addRawByte(bits.toByte())
+        }
+    }
+
+    /**
+     * Enums in arrays are packed to as few bits as needed for their ordinals increased by one,
+     * `0` stands for `null`.
+     */
+    private fun addPackedEnums(array: Array<*>, model: ObjectModelNode) {
+        val bitWidth = enumBitWidth(model)
+        addPackedBits(array.size, bitWidth, {
+            val el = array[it]
+            if (el == null) 0 else (el as Enum<*>).ordinal + 1
+        })
+    }
+
+    private fun beginSession(): ObjectSerializationSession {
+        _session.clear()
+        return _session
+    }
+
     private inline fun dbgType(t: DataType) {
         //println(t)
     }
 
 
 
-    //		_buffer[_pos++] = PACKET_END;
+    /**
+     * Serialized data as a single array. Data is copied only when it didn't fit in a single chunk
+     * or the chunks are direct buffers. To avoid copying, use [flipChunks].
+     */
     val result: SerializationResult
-        get() = if (_buffer == _ourBuffer)
-            _serializeResult.setup(_buffer, _pos)
-        else
-            SerializationResult(_buffer, _pos)
+        get() {
+            if (_chunks.size == 1 && _chunk.hasArray()) {
+                return _serializeResult.setup(_chunk.array(), _chunk.position())
+            }
+
+            val size = this.size
+            if (_resultBuffer.size < size) {
+                _resultBuffer = ByteArray(size)
+            }
 
+            val views = flipChunks()
+            var pos = 0
+            for (i in 0..chunkCount - 1) {
+                val view = views[i]
+                val count = view.remaining()
+                view.get(_resultBuffer, pos, count)
+                pos += count
+            }
+
+            return _serializeResult.setup(_resultBuffer, size)
+        }
+
+    /**
+     * Returns views of the written chunks, each set up to be read from its position to its limit.
+     * Only the first [chunkCount] elements are valid. Views are reused, so they're valid
+     * until the next write into this serializer.
+     */
+    fun flipChunks(): Array<ByteBuffer> {
+        for (i in 0.._chunks.size - 1) {
+            val view = _chunkViews[i]
+            view.clear()
+            view.limit(_chunks[i].position())
+        }
+
+        return _chunkViews
+    }
+
+
+    interface StreamListener {
+        /**
+         * @param buffers views of chunks, valid only until this call returns
+         */
+        fun partWritten(buffers: Array<ByteBuffer>, count: Int, length: Int)
+    }
 
     class SerializationResult {
         lateinit var buffer: ByteArray
@@ -721,35 +1397,105 @@ class NetworkSerializer @JvmOverloads constructor(val inspector: ObjectTypeInspe
             return this
         }
     }
+
+    companion object {
+        const val DEFAULT_STREAM_PART_SIZE = 64 * 1024
+    }
 }
 
+/**
+ * Remembers serialized objects by identity to find cyclic references.
+ * It's an open addressing hash table with linear probing which is reused between serializations,
+ * [clear] wipes only the slots which were used.
+ */
 internal class ObjectSerializationSession {
-    val objs = ArrayList<ObjectContainer>()
-    val objsMap = TreeMap<Int, ObjectContainer>()
-    var lastId = 0.toShort()
+    private var _objs = arrayOfNulls<Any>(INITIAL_CAPACITY)
+    private var _ids = IntArray(INITIAL_CAPACITY)
+    private var _usedSlots = IntArray(INITIAL_CAPACITY / 2)
+
+    /**
+     * Id given to the most recently remembered object. Ids start from `1`.
+     */
+    var lastId = 0
+        private set
+
+
+    /**
+     * @return id of the object if it was remembered before,
+     *         otherwise `0` and the object is remembered with id [lastId]
+     */
+    fun findOrRemember(obj: Any): Int {
+        val mask = _objs.size - 1
+        var slot = mix(System.identityHashCode(obj)) and mask
 
-    fun hasOrRemember(obj: Any): Pair<Boolean, ObjectContainer> {
-        val hashCode: Int = obj.hashCode()
-        var container = objsMap.get(hashCode)
+        while (true) {
+            val other = _objs[slot]
 
-        if (container == null) {
-            container = objs.find { it.obj == obj }
+            if (other === obj) {
+                return _ids[slot]
+            }
+            else if (other == null) {
+                break
+            }
+
+            slot = (slot + 1) and mask
         }
 
-        val found = container != null
+        _objs[slot] = obj
+        _ids[slot] = ++lastId
+        _usedSlots[lastId - 1] = slot
 
-        if (container == null) {
-            container = ObjectContainer(obj, createId())
-            objs.add(container)
-            objsMap.put(hashCode, container)
+        if (lastId == _usedSlots.size) {
+            grow()
         }
 
-        return Pair(found, container)
+        return 0
     }
 
-    private fun createId(): Short {
-        return ++lastId
+    fun clear() {
+        for (i in 0..lastId - 1) {
+            _objs[_usedSlots[i]] = null
+        }
+
+        lastId = 0
     }
-}
 
-data class ObjectContainer(val obj: Any, val id: Short) { }
\ No newline at end of file
+    /**
+     * Keeps the load factor at 50% at most.
+     */
+    private fun grow() {
+        val oldObjs = _objs
+        val oldIds = _ids
+        val oldUsedSlots = _usedSlots
+        val capacity = oldObjs.size * 2
+        val mask = capacity - 1
+
+        _objs = arrayOfNulls<Any>(capacity)
+        _ids = IntArray(capacity)
+        _usedSlots = IntArray(capacity / 2)
+
+        for (i in 0..lastId - 1) {
+            val oldSlot = oldUsedSlots[i]
+            val obj = oldObjs[oldSlot]
+            var slot = mix(System.identityHashCode(obj)) and mask
+
+            while (_objs[slot] != null) {
+                slot = (slot + 1) and mask
+            }
+
+            _objs[slot] = obj
+            _ids[slot] = oldIds[oldSlot]
+            _usedSlots[i] = slot
+        }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 64
+
+        /** spreads bits of identity hash code so neighbouring hashes don't end in one cluster */
+        private fun mix(hash: Int): Int {
+            val h = hash * -0x61c88647
+            return h xor (h ushr 16)
+        }
+    }
+}
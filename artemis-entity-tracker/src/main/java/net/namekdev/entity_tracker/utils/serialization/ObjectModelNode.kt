@@ -4,6 +4,7 @@ import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.*
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.Companion.determineType
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.Companion.isSimpleType
 
+import net.namekdev.entity_tracker.utils.FieldAccessor
 import net.namekdev.entity_tracker.utils.ReflectionUtils
 import java.util.*
 
@@ -39,6 +40,14 @@ class ObjectModelNode(
 
     var enumValue: Int = 0
 
+    /**
+     * Cached getter of the field described by this node.
+     * Defined only for models created by [ObjectTypeInspector].
+     */
+    internal var fieldAccessor: FieldAccessor? = null
+
+    /** Compiled lazily for Object models, see [SerializationPlan.of]. */
+    internal var plan: SerializationPlan? = null
 
     init {
         this.id = id
@@ -251,6 +260,51 @@ class ObjectModelNode(
         return this
     }
 
+    /**
+     * Hash of structure described by this node: names, types and children, but not ids.
+     * Models of the same classes have equal fingerprints, even when inspected by
+     * different inspectors or in different runs of application.
+     */
+    fun fingerprint(): Long {
+        return fingerprint(FINGERPRINT_SEED, IdentityHashMap())
+    }
+
+    private fun fingerprint(seed: Long, visitedNodes: IdentityHashMap<ObjectModelNode, Int>): Long {
+        val visitIndex = visitedNodes[this]
+        if (visitIndex != null) {
+            // cycle is identified by order of the node in traversal
+            return mixFingerprint(seed, -1 - visitIndex)
+        }
+        visitedNodes.put(this, visitedNodes.size)
+
+        var h = seed
+        val name = name
+        if (name == null) {
+            h = mixFingerprint(h, -1)
+        }
+        else {
+            h = mixFingerprint(h, name.length)
+            for (c in name) {
+                h = mixFingerprint(h, c.toInt())
+            }
+        }
+
+        h = mixFingerprint(h, dataType.ordinal)
+        h = mixFingerprint(h, dataSubType.ordinal)
+        h = mixFingerprint(h, (if (isTypePrimitive) 1 else 0) or (if (isSubTypePrimitive) 2 else 0))
+        h = mixFingerprint(h, enumValue)
+
+        val children = children
+        h = mixFingerprint(h, children?.size ?: -1)
+        if (children != null) {
+            for (child in children) {
+                h = child.fingerprint(h, visitedNodes)
+            }
+        }
+
+        return h
+    }
+
     override fun toString(): String {
         val type: String = (
             if (this.dataType == DataType.Array) {
@@ -264,4 +318,18 @@ class ObjectModelNode(
         )
         return "id=" + this.id.toString() + ": " + type + ":: name=" + this.name ?: ""
     }
+
+    companion object {
+        // FNV-1a, 64 bit
+        private const val FINGERPRINT_SEED = -0x340d631b7bdddcdbL
+        private const val FINGERPRINT_PRIME = 0x100000001b3L
+
+        private fun mixFingerprint(hash: Long, value: Int): Long {
+            var h = hash
+            for (shift in 0..24 step 8) {
+                h = (h xor ((value ushr shift) and 0xFF).toLong()) * FINGERPRINT_PRIME
+            }
+            return h
+        }
+    }
 }
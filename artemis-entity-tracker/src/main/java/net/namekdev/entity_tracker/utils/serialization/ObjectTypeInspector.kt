@@ -4,14 +4,30 @@ import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.*
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.Companion.determineType
 
 import java.util.ArrayList
+import java.util.IdentityHashMap
 import java.util.Vector
+import java.util.concurrent.ConcurrentHashMap
 
+import net.namekdev.entity_tracker.utils.FieldAccessor
 import net.namekdev.entity_tracker.utils.ReflectionUtils
 
+/**
+ * Inspects classes into models. It can be shared between threads: models of already inspected
+ * types are read without locking, only inspection of a new type is synchronized.
+ */
 class ObjectTypeInspector {
+    // registry is modified only under lock, readers use copies published after every inspection
     private val registeredModels = ArrayList<RegisteredModel>()
     private var lastId = 0
 
+    // indices of registeredModels, models of same type are kept in order of registration
+    private val registeredModelsByType = IdentityHashMap<Class<*>?, ArrayList<RegisteredModel>>()
+    private val registeredModelsById = ArrayList<RegisteredModel?>()
+    private val rootModels = ConcurrentHashMap<Class<*>, ObjectModelNode>()
+
+    @Volatile private var publishedModels = emptyArray<RegisteredModel>()
+    @Volatile private var publishedModelsById = emptyArray<RegisteredModel?>()
+
     private val registeredModelsAsCollection = object : ObjectModelsCollection {
 
         override fun size(): Int {
@@ -27,12 +43,7 @@ class ObjectTypeInspector {
         }
 
         override fun getById(id: Int): ObjectModelNode? {
-            for (m in registeredModels) {
-                if (m.model.id == id)
-                    return m.model
-            }
-
-            return null
+            return getModelById(id)
         }
 
         override fun add(model: ObjectModelNode) {
@@ -55,21 +66,20 @@ class ObjectTypeInspector {
     }
 
     val registeredModelsCount: Int
-        get() = registeredModels.size
+        get() = publishedModels.size
 
     fun getRegisteredModelByIndex(index: Int): ObjectModelNode {
-        val model = registeredModels[index]
+        val model = publishedModels[index]
         return model.model
     }
 
     fun getModelById(id: Int): ObjectModelNode? {
-        for (model in registeredModels) {
-            if (model.model.id == id) {
-                return model.model
-            }
-        }
+        val models = publishedModelsById
+        return if (id >= 0 && id < models.size) models[id]?.model else null
+    }
 
-        return null
+    private fun findRegisteredModel(id: Int): RegisteredModel? {
+        return if (id >= 0 && id < registeredModelsById.size) registeredModelsById[id] else null
     }
 
 
@@ -77,10 +87,29 @@ class ObjectTypeInspector {
      * Returns tree description of class type.
      */
     fun inspect(type: Class<*>): ObjectModelNode {
-        val dataType = NetworkSerialization.determineType(type).first
-        assert(dataType == DataType.Unknown || dataType == DataType.Enum)
+        val model = rootModels[type]
+
+        if (model != null) {
+            return model
+        }
+
+        synchronized(this) {
+            var newModel = rootModels[type]
+
+            if (newModel == null) {
+                val dataType = NetworkSerialization.determineType(type).first
+                assert(dataType == DataType.Unknown || dataType == DataType.Enum)
+
+                newModel = inspectLevels(type, null, null, null)
 
-        return inspectLevels(type, null, null, null)
+                // registry is published first, so anyone who finds the root model can find it's descendants
+                publishedModels = registeredModels.toTypedArray()
+                publishedModelsById = registeredModelsById.toTypedArray()
+                rootModels.put(type, newModel)
+            }
+
+            return newModel
+        }
     }
 
     private fun inspectLevels(type: Class<*>, parentType: Class<*>?, parentOfRoot: ObjectModelNode?, parentRegisteredModel: RegisteredModel?): ObjectModelNode {
@@ -144,6 +173,7 @@ class ObjectTypeInspector {
                 // so make sure we have a new model here! Then give it a name.
                 assert(child.name == null)
                 child.name = field.name
+                child.fieldAccessor = FieldAccessor.create(type.getDeclaredField(field.name))
 
                 model.children!!.addElement(child)
             }
@@ -228,20 +258,13 @@ class ObjectTypeInspector {
     }
 
     private fun findModel(type: Class<*>?, parentType: Class<*>?, parent: ObjectModelNode?): RegisteredModel? {
-        for (registered in registeredModels) {
-            val sameParentModel = parent === null && registered.model.parent === null || parent !== null && parent === registered.model.parent
-
-            // a != null && a == b || a == null && b == null
+        val candidates = registeredModelsByType[type] ?: return null
 
-            if (registered.type != null && registered.type == type || registered.type == null && type == null) {
-                var isCyclicModel = false
+        for (registered in candidates) {
+            val sameParentModel = parent === registered.model.parent
 
-                val cur = findChildType(registered, type!!)
-                isCyclicModel = cur != null
-
-                if (sameParentModel || isCyclicModel) {
-                    return registered
-                }
+            if (sameParentModel || findChildType(registered, type!!) != null) {
+                return registered
             }
         }
 
@@ -263,7 +286,7 @@ class ObjectTypeInspector {
     }
 
     private fun rememberType(type: Class<*>?, parentType: Class<*>?, model: ObjectModelNode, parentRegisteredModel: RegisteredModel?): RegisteredModel {
-        val found = this.registeredModels.find { m-> m.model.id == model.id }
+        val found = findRegisteredModel(model.id)
 
         if (found != null) {
             return found
@@ -280,13 +303,26 @@ class ObjectTypeInspector {
         }
 
         this.registeredModels.add(newModel)
+
+        var sameTypeModels = registeredModelsByType[type]
+        if (sameTypeModels == null) {
+            sameTypeModels = ArrayList<RegisteredModel>(1)
+            registeredModelsByType.put(type, sameTypeModels)
+        }
+        sameTypeModels.add(newModel)
+
+        while (registeredModelsById.size <= model.id) {
+            registeredModelsById.add(null)
+        }
+        registeredModelsById[model.id] = newModel
+
         return newModel
     }
 
     override fun toString(): String {
         val sb = StringBuilder("[")
 
-        for (m in this.registeredModels) {
+        for (m in this.publishedModels) {
             sb.append("\n{\n  type: " + toString(m.type))
             sb.append("\n  parentType:" + toString(m.parentType))
             sb.append("\n  model:")
@@ -342,4 +378,12 @@ class ObjectTypeInspector {
 
         return obj.toString()
     }
+
+    companion object {
+        /**
+         * Inspector shared by [net.namekdev.entity_tracker.EntityTracker] and communicators,
+         * so every type is inspected once per process, no matter how many clients are connected.
+         */
+        @JvmStatic val shared = ObjectTypeInspector()
+    }
 }
@@ -0,0 +1,135 @@
+package net.namekdev.entity_tracker.utils.serialization
+
+import net.namekdev.entity_tracker.utils.FieldAccessor
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.*
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.Companion.determineType
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.Companion.isSimpleType
+
+/**
+ * Flat list of operations needed to (de)serialize fields of a single Object model.
+ * It's compiled once per model so serializer and deserializer don't need
+ * to branch on [ObjectModelNode.dataType] for every field of every object.
+ *
+ * Fields of Object type are not inlined here, they point to plan of their own model,
+ * which is compiled lazily so cyclic models are fine.
+ */
+internal class SerializationPlan private constructor(model: ObjectModelNode) {
+    val opcodes: IntArray
+    val dataTypes: Array<DataType>
+    val childModels: Array<ObjectModelNode>
+    val accessors: Array<FieldAccessor?>
+
+    /**
+     * All fields are of primitive types so objects of this model can be stored in [ColumnValues].
+     */
+    val isFlat: Boolean
+
+    /**
+     * For flat models: index of field's column, within long or double columns of [ColumnValues].
+     */
+    val columnIndices: IntArray
+    val longColumnCount: Int
+    val doubleColumnCount: Int
+
+
+    init {
+        val children = model.children!!
+        val n = children.size
+
+        childModels = Array(n, { children[it] })
+        dataTypes = Array(n, { children[it].dataType })
+        accessors = Array(n, { children[it].fieldAccessor })
+        opcodes = IntArray(n, { determineOpcode(children[it]) })
+
+        isFlat = opcodes.all { it <= OP_DOUBLE }
+        columnIndices = IntArray(n)
+        var longCount = 0
+        var doubleCount = 0
+
+        for (i in 0..n - 1) {
+            columnIndices[i] = if (isFloatingPoint(opcodes[i])) doubleCount++ else longCount++
+        }
+
+        longColumnCount = longCount
+        doubleColumnCount = doubleCount
+    }
+
+    /**
+     * Models which were not created by our inspector (e.g. received through network)
+     * don't have accessors so it's looked up once, in class of `obj`, and cached here.
+     * Plans are shared between threads, the ones which look it up at the same time
+     * find equal accessors, so it doesn't matter which one is kept.
+     */
+    fun accessor(fieldIndex: Int, obj: Any): FieldAccessor {
+        return accessors[fieldIndex] ?: findAccessor(fieldIndex, obj)
+    }
+
+    private fun findAccessor(fieldIndex: Int, obj: Any): FieldAccessor {
+        val accessor = FieldAccessor.find(obj.javaClass, childModels[fieldIndex].name!!)
+        accessors[fieldIndex] = accessor
+        return accessor
+    }
+
+    companion object {
+        const val OP_BYTE = 0
+        const val OP_SHORT = 1
+        const val OP_INT = 2
+        const val OP_LONG = 3
+        const val OP_BOOLEAN = 4
+        const val OP_FLOAT = 5
+        const val OP_DOUBLE = 6
+
+        /** boxed types, like `Integer`, which may be null */
+        const val OP_NULLABLE_SIMPLE = 7
+        const val OP_STRING = 8
+        const val OP_BITVECTOR = 9
+        const val OP_ENUM = 10
+        const val OP_OBJECT = 11
+        const val OP_ARRAY = 12
+
+
+        fun isFloatingPoint(opcode: Int): Boolean {
+            return opcode == OP_FLOAT || opcode == OP_DOUBLE
+        }
+
+        /**
+         * Values of this type are walked field by field, like elements of Object arrays.
+         */
+        fun isObjectType(type: Class<*>): Boolean {
+            return determineType(type).first == DataType.Unknown
+        }
+
+        fun of(model: ObjectModelNode): SerializationPlan {
+            var plan = model.plan
+
+            if (plan == null) {
+                plan = SerializationPlan(model)
+                model.plan = plan
+            }
+
+            return plan
+        }
+
+        private fun determineOpcode(model: ObjectModelNode): Int {
+            val dataType = model.dataType
+
+            return when {
+                model.isArray -> OP_ARRAY
+                model.isEnum -> OP_ENUM
+                dataType == DataType.Object || dataType == DataType.Unknown -> OP_OBJECT
+                dataType == DataType.String -> OP_STRING
+                dataType == DataType.BitVector -> OP_BITVECTOR
+                !isSimpleType(dataType) -> throw RuntimeException("unsupported type: " + dataType)
+                !model.isTypePrimitive -> OP_NULLABLE_SIMPLE
+                dataType == DataType.Byte -> OP_BYTE
+                dataType == DataType.Short -> OP_SHORT
+                dataType == DataType.Int -> OP_INT
+                dataType == DataType.Long -> OP_LONG
+                dataType == DataType.Boolean -> OP_BOOLEAN
+                dataType == DataType.Float -> OP_FLOAT
+                dataType == DataType.Double -> OP_DOUBLE
+                else -> throw RuntimeException("unsupported type: " + dataType)
+            }
+        }
+    }
+}
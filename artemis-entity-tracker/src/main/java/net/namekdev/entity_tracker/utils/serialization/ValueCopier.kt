@@ -0,0 +1,175 @@
+package net.namekdev.entity_tracker.utils.serialization
+
+import com.artemis.utils.BitVector
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.DataType
+import java.lang.reflect.Constructor
+import java.lang.reflect.Method
+import java.util.*
+
+/**
+ * Deep copy of an object, walked the same way as [NetworkSerializer] does, so the copy has all
+ * the values which are serialized. It lets another thread serialize the state while the original
+ * object is being modified. Shared and cyclic references stay shared in the copy.
+ *
+ * Copies are created by no-arg constructor, objects without one are allocated without calling
+ * any constructor. Fields which are not serialized are not copied.
+ *
+ * Keeps state between calls so it should be reused, not shared between threads.
+ */
+class ValueCopier(private val inspector: ObjectTypeInspector) {
+    private val _copies = IdentityHashMap<Any, Any>()
+    private val _constructors = HashMap<Class<*>, Constructor<*>?>()
+
+
+    fun copy(model: ObjectModelNode, obj: Any): Any {
+        val copy = copyObject(model, obj)
+        _copies.clear()
+        return copy
+    }
+
+    private fun copyObject(model: ObjectModelNode, obj: Any): Any {
+        // shared or cyclic reference
+        _copies[obj]?.let { return it }
+
+        val copy = newInstance(obj.javaClass)
+        _copies.put(obj, copy)
+
+        val plan = SerializationPlan.of(model)
+
+        for (i in plan.opcodes.indices) {
+            val accessor = plan.accessor(i, obj)
+
+            if (accessor.isStatic) {
+                continue
+            }
+
+            val value = accessor.get(obj)
+            val valueCopy = when (plan.opcodes[i]) {
+                SerializationPlan.OP_OBJECT ->
+                    if (value == null || value.javaClass.isArray)
+                        copyValue(value)
+                    else
+                        copyObject(plan.childModels[i], value)
+                SerializationPlan.OP_ARRAY -> copyArray(plan.childModels[i], value)
+                else -> copyValue(value)
+            }
+
+            accessor.set(copy, valueCopy)
+        }
+
+        return copy
+    }
+
+    private fun copyArray(model: ObjectModelNode, array: Any?): Any? {
+        if (array == null || model.isSubTypePrimitive || array !is Array<*>) {
+            return copyValue(array)
+        }
+
+        _copies[array]?.let { return it }
+
+        @Suppress("UNCHECKED_CAST")
+        val copy = java.lang.reflect.Array.newInstance(array.javaClass.componentType, array.size) as Array<Any?>
+        _copies.put(array, copy)
+
+        val arrayType = model.arrayType()
+
+        for (i in array.indices) {
+            val el = array[i]
+
+            copy[i] =
+                if (el == null)
+                    null
+                else if ((arrayType == DataType.Object || arrayType == DataType.Unknown) && !el.javaClass.isArray && SerializationPlan.isObjectType(el.javaClass))
+                    copyObject(inspector.inspect(el.javaClass), el)
+                else if (arrayType == DataType.Array)
+                    copyArray(model.arrayElTypeModel(), el)
+                else
+                    copyValue(el)
+        }
+
+        return copy
+    }
+
+    /**
+     * Simple values (strings, boxed numbers, bit vectors, enums) and arrays of them.
+     * Immutable values are not copied.
+     */
+    private fun copyValue(value: Any?): Any? {
+        if (value == null || !value.javaClass.isArray && value !is BitVector) {
+            return value
+        }
+
+        _copies[value]?.let { return it }
+
+        val copy: Any = when (value) {
+            is BitVector -> BitVector(value)
+            is IntArray -> value.copyOf()
+            is FloatArray -> value.copyOf()
+            is LongArray -> value.copyOf()
+            is DoubleArray -> value.copyOf()
+            is ByteArray -> value.copyOf()
+            is ShortArray -> value.copyOf()
+            is BooleanArray -> value.copyOf()
+            is CharArray -> value.copyOf()
+            else -> {
+                val array = value as Array<*>
+                @Suppress("UNCHECKED_CAST")
+                val arrayCopy = java.lang.reflect.Array.newInstance(array.javaClass.componentType, array.size) as Array<Any?>
+                _copies.put(value, arrayCopy)
+
+                for (i in array.indices) {
+                    arrayCopy[i] = copyValue(array[i])
+                }
+
+                arrayCopy
+            }
+        }
+
+        _copies.put(value, copy)
+        return copy
+    }
+
+    private fun newInstance(type: Class<*>): Any {
+        val constructor =
+            if (_constructors.containsKey(type)) {
+                _constructors[type]
+            }
+            else {
+                val found = type.declaredConstructors.firstOrNull { it.parameterCount == 0 }
+                found?.isAccessible = true
+                _constructors.put(type, found)
+                found
+            }
+
+        if (constructor != null) {
+            return constructor.newInstance()
+        }
+
+        val allocate = allocateInstance ?: throw RuntimeException("Can't copy $type, it has no no-arg constructor.")
+        return allocate.invoke(unsafe, type)
+    }
+
+    companion object {
+        // `sun.misc.Unsafe` is found through reflection, it's needed only for types without no-arg constructor
+        private val unsafe: Any?
+        private val allocateInstance: Method?
+
+        init {
+            var foundUnsafe: Any? = null
+            var foundMethod: Method? = null
+
+            try {
+                val unsafeClass = Class.forName("sun.misc.Unsafe")
+                val field = unsafeClass.getDeclaredField("theUnsafe")
+                field.isAccessible = true
+                foundUnsafe = field.get(null)
+                foundMethod = unsafeClass.getMethod("allocateInstance", Class::class.java)
+            }
+            catch (exc: Exception) {
+            }
+
+            unsafe = foundUnsafe
+            allocateInstance = foundMethod
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.namekdev.entity_tracker.utils.serialization
+
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.DataType
+import java.util.*
+
+/**
+ * Hash of all the values of an object, walked the same way as [NetworkSerializer] does,
+ * but without encoding anything. It's used to find out cheaply whether object changed
+ * since it was sent last time. Primitive fields are read without boxing.
+ *
+ * Keeps state between calls so it should be reused, not shared between threads.
+ */
+class ValueHasher(private val inspector: ObjectTypeInspector) {
+    private val _visited = IdentityHashMap<Any, Any>()
+
+
+    fun hash(model: ObjectModelNode, obj: Any): Long {
+        val hash = hashObject(SEED, model, obj)
+        _visited.clear()
+        return hash
+    }
+
+    private fun hashObject(seed: Long, model: ObjectModelNode, obj: Any): Long {
+        // shared or cyclic reference, it's values are already in the hash
+        if (_visited.put(obj, obj) != null) {
+            return mix(seed, VISITED)
+        }
+
+        val plan = SerializationPlan.of(model)
+        var h = seed
+
+        for (i in plan.opcodes.indices) {
+            val accessor = plan.accessor(i, obj)
+
+            h = when (plan.opcodes[i]) {
+                SerializationPlan.OP_BYTE -> mix(h, accessor.getByte(obj).toLong())
+                SerializationPlan.OP_SHORT -> mix(h, accessor.getShort(obj).toLong())
+                SerializationPlan.OP_INT -> mix(h, accessor.getInt(obj).toLong())
+                SerializationPlan.OP_LONG -> mix(h, accessor.getLong(obj))
+                SerializationPlan.OP_BOOLEAN -> mix(h, if (accessor.getBoolean(obj)) 1 else 0)
+                SerializationPlan.OP_FLOAT -> mix(h, java.lang.Float.floatToRawIntBits(accessor.getFloat(obj)).toLong())
+                SerializationPlan.OP_DOUBLE -> mix(h, java.lang.Double.doubleToRawLongBits(accessor.getDouble(obj)))
+                SerializationPlan.OP_OBJECT -> {
+                    val value = accessor.get(obj)
+
+                    if (value == null || value.javaClass.isArray)
+                        hashValue(h, value)
+                    else
+                        hashObject(h, plan.childModels[i], value)
+                }
+                SerializationPlan.OP_ARRAY -> hashArray(h, plan.childModels[i], accessor.get(obj))
+                else -> hashValue(h, accessor.get(obj))
+            }
+        }
+
+        return h
+    }
+
+    private fun hashArray(seed: Long, model: ObjectModelNode, array: Any?): Long {
+        if (array == null || model.isSubTypePrimitive || array !is Array<*>) {
+            return hashValue(seed, array)
+        }
+
+        val arrayType = model.arrayType()
+        var h = mix(seed, array.size.toLong())
+
+        for (el in array) {
+            h =
+                if (el == null)
+                    mix(h, NULL)
+                else if ((arrayType == DataType.Object || arrayType == DataType.Unknown) && !el.javaClass.isArray && SerializationPlan.isObjectType(el.javaClass))
+                    hashObject(h, inspector.inspect(el.javaClass), el)
+                else if (arrayType == DataType.Array)
+                    hashArray(h, model.arrayElTypeModel(), el)
+                else
+                    hashValue(h, el)
+        }
+
+        return h
+    }
+
+    /**
+     * Simple values (strings, boxed numbers, bit vectors, enums) and arrays of them.
+     */
+    private fun hashValue(seed: Long, value: Any?): Long {
+        return when (value) {
+            null -> mix(seed, NULL)
+            is Enum<*> -> mix(seed, value.ordinal.toLong())
+            is IntArray -> mix(mix(seed, value.size.toLong()), Arrays.hashCode(value).toLong())
+            is FloatArray -> mix(mix(seed, value.size.toLong()), Arrays.hashCode(value).toLong())
+            else ->
+                if (value.javaClass.isArray)
+                    mix(seed, Arrays.deepHashCode(arrayOf(value)).toLong())
+                else
+                    mix(seed, value.hashCode().toLong())
+        }
+    }
+
+    companion object {
+        private const val SEED = -0x340d631b7bdddcdbL
+        private const val NULL = 0x6e756c6cL
+        private const val VISITED = 0x76697369L
+
+        private fun mix(hash: Long, value: Long): Long {
+            var h = (hash + value) * -0x61c8864680b583ebL
+            h = h xor (h ushr 29)
+            return h
+        }
+    }
+}
@@ -1,16 +1,84 @@
 package net.namekdev.entity_tracker.utils.serialization
 
 class ValueTree {
-    var id: Short = -1
-    val values: Array<Any?>
+    var id: Int = -1
+    private val _values: Array<Any?>
     var model: ObjectModelNode? = null
     var parent: ValueTree? = null
 
+    /**
+     * Values which are not decoded yet or stored unboxed,
+     * see [NetworkDeserializer.readObjectLazily] and [ColumnValues].
+     */
+    internal var lazy: LazyValues? = null
+
     constructor(length: Int) {
-        values = arrayOfNulls<Any>(length)
+        _values = arrayOfNulls<Any>(length)
     }
 
     constructor(values: Array<Any?>) {
-        this.values = values
+        this._values = values
+    }
+
+    /**
+     * All values, boxed and decoded if tree was read lazily.
+     */
+    val values: Array<Any?>
+        get() {
+            if (lazy != null) {
+                for (i in _values.indices) {
+                    _values[i] = get(i)
+                }
+                lazy = null
+            }
+
+            return _values
+        }
+
+    val size: Int
+        get() = _values.size
+
+    operator fun get(index: Int): Any? {
+        var value = _values[index]
+
+        if (value === LazyValues.ENCODED) {
+            val lazy = lazy!!
+            value = lazy.decode(index)
+
+            if (lazy.isCached) {
+                _values[index] = value
+            }
+        }
+
+        return value
+    }
+
+    operator fun set(index: Int, value: Any?) {
+        _values[index] = value
+    }
+
+    fun getBoolean(index: Int): Boolean {
+        val value = _values[index]
+        return if (value === LazyValues.ENCODED) lazy!!.decodeBoolean(index) else value as Boolean
+    }
+
+    fun getInt(index: Int): Int {
+        val value = _values[index]
+        return if (value === LazyValues.ENCODED) lazy!!.decodeInt(index) else (value as Number).toInt()
+    }
+
+    fun getLong(index: Int): Long {
+        val value = _values[index]
+        return if (value === LazyValues.ENCODED) lazy!!.decodeLong(index) else (value as Number).toLong()
+    }
+
+    fun getFloat(index: Int): Float {
+        val value = _values[index]
+        return if (value === LazyValues.ENCODED) lazy!!.decodeFloat(index) else (value as Number).toFloat()
+    }
+
+    fun getDouble(index: Int): Double {
+        val value = _values[index]
+        return if (value === LazyValues.ENCODED) lazy!!.decodeDouble(index) else (value as Number).toDouble()
     }
 }
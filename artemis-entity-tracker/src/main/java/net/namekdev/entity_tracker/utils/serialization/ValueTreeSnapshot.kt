@@ -0,0 +1,278 @@
+package net.namekdev.entity_tracker.utils.serialization
+
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.DataType
+import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.Companion.isSimpleType
+import com.artemis.utils.BitVector
+import java.util.*
+
+/**
+ * Values of an object as they were sent last time, kept in the same shape
+ * as [ValueTree] which the other side deserializes. It's used to find leaves
+ * which changed since then.
+ *
+ * Leaves are addressed by tree paths: indices of [ValueTree.values] from root down to the leaf.
+ */
+class ValueTreeSnapshot(
+    val model: ObjectModelNode,
+    private val inspector: ObjectTypeInspector
+) {
+    private var _tree: ValueTree? = null
+    private var _isSupported = true
+    private val _visited = IdentityHashMap<Any, ValueTree>()
+    private val _visitedTrees = IdentityHashMap<ValueTree, Any>()
+    private var _path = IntArray(8)
+
+    val changedPaths = ArrayList<IntArray>()
+    val changedValues = ArrayList<Any?>()
+
+
+    /**
+     * Compares object to the snapshot and remembers it's current values.
+     *
+     * @return `false` when the whole object has to be sent: first time,
+     *         or when structure has changed (like length of array or null object).
+     *         Otherwise changed leaves are listed in [changedPaths] and [changedValues].
+     */
+    fun update(obj: Any): Boolean {
+        changedPaths.clear()
+        changedValues.clear()
+
+        val tree = _tree
+        var isDiffed = false
+
+        if (tree != null) {
+            isDiffed = diffObject(model, obj, tree, 0)
+            _visited.clear()
+            _visitedTrees.clear()
+        }
+
+        if (!isDiffed) {
+            changedPaths.clear()
+            changedValues.clear()
+
+            _isSupported = true
+            val newTree = snapshotObject(model, obj)
+            _tree = if (_isSupported) newTree else null
+            _visited.clear()
+        }
+
+        return isDiffed
+    }
+
+    private fun snapshotObject(model: ObjectModelNode, obj: Any): ValueTree {
+        val visitedTree = _visited[obj]
+        if (visitedTree != null) {
+            return visitedTree
+        }
+
+        val plan = SerializationPlan.of(model)
+        val tree = ValueTree(plan.opcodes.size)
+        tree.model = model
+        _visited.put(obj, tree)
+
+        for (i in plan.opcodes.indices) {
+            val value = plan.accessor(i, obj).get(obj)
+
+            tree.values[i] = when (plan.opcodes[i]) {
+                SerializationPlan.OP_OBJECT ->
+                    if (value == null)
+                        null
+                    else if (value.javaClass.isArray)
+                        unsupported()
+                    else
+                        snapshotObject(plan.childModels[i], value)
+                SerializationPlan.OP_ARRAY -> snapshotArray(plan.childModels[i], value)
+                else -> leafValue(value)
+            }
+        }
+
+        return tree
+    }
+
+    private fun snapshotArray(model: ObjectModelNode, array: Any?): ValueTree? {
+        if (array == null) {
+            return null
+        }
+
+        if (model.isSubTypePrimitive) {
+            val n = java.lang.reflect.Array.getLength(array)
+            return ValueTree(Array<Any?>(n, { java.lang.reflect.Array.get(array, it) }))
+        }
+
+        array as Array<*>
+        val arrayType = model.arrayType()
+        val tree = ValueTree(array.size)
+        tree.model = model
+
+        for (i in array.indices) {
+            val el = array[i]
+
+            tree.values[i] =
+                if (el == null)
+                    null
+                else if (arrayType == DataType.Object || arrayType == DataType.Unknown) {
+                    if (el.javaClass.isArray || !SerializationPlan.isObjectType(el.javaClass))
+                        unsupported()
+                    else
+                        snapshotObject(inspector.inspect(el.javaClass), el)
+                }
+                else if (arrayType == DataType.Array)
+                    snapshotArray(model.arrayElTypeModel(), el)
+                else if (isSimpleType(arrayType) || arrayType == DataType.Enum)
+                    leafValue(el)
+                else
+                    unsupported()
+        }
+
+        return tree
+    }
+
+    private fun diffObject(model: ObjectModelNode, obj: Any, tree: ValueTree, depth: Int): Boolean {
+        val visitedTree = _visited[obj]
+        if (visitedTree != null) {
+            return visitedTree === tree
+        }
+
+        // tree shared by other object, like when one of two references
+        // to the same object is replaced, it's no longer shared on the other side
+        if (tree.model !== model || _visitedTrees.containsKey(tree)) {
+            return false
+        }
+
+        _visited.put(obj, tree)
+        _visitedTrees.put(tree, obj)
+        val plan = SerializationPlan.of(model)
+        val values = tree.values
+
+        for (i in plan.opcodes.indices) {
+            val value = plan.accessor(i, obj).get(obj)
+            setPath(depth, i)
+
+            when (plan.opcodes[i]) {
+                SerializationPlan.OP_OBJECT -> {
+                    val prev = values[i]
+
+                    if (value == null || prev == null) {
+                        if (value !== prev) {
+                            return false
+                        }
+                    }
+                    else if (value.javaClass.isArray || prev !is ValueTree) {
+                        return false
+                    }
+                    else if (!diffObject(plan.childModels[i], value, prev, depth + 1)) {
+                        return false
+                    }
+                }
+                SerializationPlan.OP_ARRAY ->
+                    if (!diffArray(plan.childModels[i], value, values[i], depth + 1)) {
+                        return false
+                    }
+                else -> diffLeaf(values, i, value, depth)
+            }
+        }
+
+        return true
+    }
+
+    private fun diffArray(model: ObjectModelNode, array: Any?, prev: Any?, depth: Int): Boolean {
+        if (array == null || prev == null) {
+            return array === prev
+        }
+
+        if (prev !is ValueTree) {
+            return false
+        }
+
+        val values = prev.values
+
+        if (model.isSubTypePrimitive) {
+            val n = java.lang.reflect.Array.getLength(array)
+
+            if (n != values.size) {
+                return false
+            }
+
+            for (i in 0..n - 1) {
+                setPath(depth, i)
+                diffLeaf(values, i, java.lang.reflect.Array.get(array, i), depth)
+            }
+
+            return true
+        }
+
+        array as Array<*>
+        val arrayType = model.arrayType()
+
+        if (array.size != values.size) {
+            return false
+        }
+
+        for (i in array.indices) {
+            val el = array[i]
+            setPath(depth, i)
+
+            if (arrayType == DataType.Object || arrayType == DataType.Unknown) {
+                val elTree = values[i]
+
+                if (el == null || elTree == null) {
+                    if (el !== elTree) {
+                        return false
+                    }
+                }
+                else if (elTree !is ValueTree || el.javaClass.isArray || !SerializationPlan.isObjectType(el.javaClass)) {
+                    return false
+                }
+                else if (!diffObject(inspector.inspect(el.javaClass), el, elTree, depth + 1)) {
+                    return false
+                }
+            }
+            else if (arrayType == DataType.Array) {
+                if (!diffArray(model.arrayElTypeModel(), el, values[i], depth + 1)) {
+                    return false
+                }
+            }
+            else {
+                diffLeaf(values, i, el, depth)
+            }
+        }
+
+        return true
+    }
+
+    private fun diffLeaf(values: Array<Any?>, index: Int, value: Any?, depth: Int) {
+        val prev = values[index]
+        val isSame = if (value is Enum<*>) prev == value.ordinal else prev == value
+
+        if (!isSame) {
+            val leaf = leafValue(value)
+            values[index] = leaf
+            changedPaths.add(Arrays.copyOf(_path, depth + 1))
+            changedValues.add(leaf)
+        }
+    }
+
+    /**
+     * Enums are represented by ordinals and bit vectors are copied because they're mutable.
+     */
+    private fun leafValue(value: Any?): Any? {
+        return when (value) {
+            is Enum<*> -> value.ordinal
+            is BitVector -> BitVector(value)
+            else -> value
+        }
+    }
+
+    private fun unsupported(): Any? {
+        _isSupported = false
+        return null
+    }
+
+    private fun setPath(depth: Int, index: Int) {
+        if (depth >= _path.size) {
+            _path = Arrays.copyOf(_path, depth * 2)
+        }
+
+        _path[depth] = index
+    }
+}
@@ -0,0 +1,236 @@
+package net.namekdev.entity_tracker
+
+import com.artemis.BaseSystem
+import com.artemis.Component
+import com.artemis.World
+import com.artemis.WorldConfigurationBuilder
+import com.artemis.utils.BitVector
+import com.artemis.utils.IntBag
+import net.namekdev.entity_tracker.connectors.DummyWorldUpdateListener
+import net.namekdev.entity_tracker.connectors.WorldUpdateBatchListener
+import net.namekdev.entity_tracker.connectors.WorldUpdateListener
+import net.namekdev.entity_tracker.utils.ReflectionUtils
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+
+class EntityTrackerTest {
+    lateinit var listener: BatchRecordingListener
+    lateinit var world: World
+    lateinit var killer: KillerSystem
+
+
+    @Before
+    fun setup() {
+        listener = BatchRecordingListener()
+        killer = KillerSystem()
+        world = World(
+            WorldConfigurationBuilder()
+                .with(killer, EntityTracker(listener))
+                .build()
+        )
+    }
+
+    @Test
+    fun entities_of_a_tick_are_batched() {
+        val bullets = IntArray(100, { world.create() })
+        world.edit(bullets[0]).create(Position::class.java)
+        val player = world.create()
+        world.edit(player).create(Position::class.java)
+        world.edit(player).create(Health::class.java)
+        world.process()
+
+        assertEquals(1, listener.batches.size)
+        val batch = listener.batches[0]
+        assertTrue(batch.deleted.isEmpty())
+        assertEquals(101, batch.added.size)
+
+        // grouped by composition, ids sorted in groups
+        val compositions = batch.compositions.distinct()
+        assertEquals(3, compositions.size)
+        assertEquals(batch.compositions.sorted(), batch.compositions)
+        assertEquals(3, listener.compositions.size)
+
+        world.delete(bullets[1])
+        world.delete(bullets[2])
+        world.process()
+        world.process()
+
+        assertEquals(2, listener.batches.size)
+        assertEquals(listOf(bullets[1], bullets[2]), listener.batches[1].deleted)
+    }
+
+    @Test
+    fun entity_added_and_deleted_in_the_same_tick_is_not_sent() {
+        val kept = world.create()
+        killer.victim = world.create()
+        world.process()
+
+        assertEquals(listOf(kept), listener.batches.single().added)
+        assertTrue(listener.batches.single().deleted.isEmpty())
+    }
+
+
+    @Test
+    fun timings_of_systems_are_published() {
+        val timingsListener = TimingsRecordingListener()
+        val profiledWorld = World(
+            WorldConfigurationBuilder()
+                .with(KillerSystem(), EntityTracker(timingsListener))
+                .register(ProfilingInvocationStrategy(0))
+                .build()
+        )
+
+        profiledWorld.process()
+        profiledWorld.process()
+
+        // timings of first tick are published on the second one
+        val timings = timingsListener.timings.last()
+        assertEquals(timingsListener.systemNames.size, timings.size)
+        assertTrue(timings[timingsListener.systemNames.indexOf("KillerSystem")] > 0)
+    }
+
+
+    @Test
+    fun watched_component_is_sent_only_when_changed() {
+        val statesListener = ComponentStateRecordingListener()
+        val tracker = EntityTracker(statesListener)
+        val world = World(WorldConfigurationBuilder().with(tracker).build())
+
+        val entityId = world.create()
+        val position = world.edit(entityId).create(Position::class.java)
+        world.process()
+        val componentIndex = world.componentManager.typeFactory.getIndexFor(Position::class.java)
+
+        tracker.watchComponent(entityId, componentIndex, 0)
+        world.process()
+        world.process()
+        assertEquals(1, statesListener.states.size)
+
+        position.x = 5f
+        world.process()
+        world.process()
+        assertEquals(2, statesListener.states.size)
+        assertSame(position, statesListener.states.last())
+
+        tracker.unwatchComponent(entityId, componentIndex)
+        position.x = 6f
+        world.process()
+        assertEquals(2, statesListener.states.size)
+    }
+
+    @Test
+    fun watched_component_is_not_sent_more_often_than_interval() {
+        val statesListener = ComponentStateRecordingListener()
+        val tracker = EntityTracker(statesListener)
+        val world = World(WorldConfigurationBuilder().with(tracker).build())
+
+        val entityId = world.create()
+        val health = world.edit(entityId).create(Health::class.java)
+        world.process()
+        val componentIndex = world.componentManager.typeFactory.getIndexFor(Health::class.java)
+
+        tracker.watchComponent(entityId, componentIndex, 60000)
+        world.process()
+        health.value = 50
+        world.process()
+        assertEquals(1, statesListener.states.size)
+
+        // watch ends with the entity
+        health.value = 40
+        world.delete(entityId)
+        world.process()
+        world.process()
+        assertEquals(1, statesListener.states.size)
+        assertTrue(watchesOf(tracker).isEmpty())
+
+        // deleted entity can't be watched again
+        assertFalse(tracker.watchComponent(entityId, componentIndex, 0))
+        world.process()
+        assertEquals(1, statesListener.states.size)
+        assertTrue(watchesOf(tracker).isEmpty())
+    }
+
+    private fun watchesOf(tracker: EntityTracker): Map<*, *> {
+        return ReflectionUtils.getHiddenFieldValue(EntityTracker::class.java, "_watches", tracker) as Map<*, *>
+    }
+
+
+    class KillerSystem : BaseSystem() {
+        var victim = -1
+
+        override fun processSystem() {
+            if (victim >= 0) {
+                world.delete(victim)
+                victim = -1
+            }
+        }
+    }
+
+    class Position : Component() {
+        @JvmField var x = 0f
+        @JvmField var y = 0f
+    }
+
+    class Health : Component() {
+        @JvmField var value = 100
+    }
+
+    class TimingsRecordingListener : DummyWorldUpdateListener() {
+        val systemNames = ArrayList<String>()
+        val timings = ArrayList<LongArray>()
+
+        override val listeningBitset: Int
+            get() = WorldUpdateListener.SYSTEM_TIMINGS
+
+        override fun addedSystem(index: Int, name: String, allTypes: BitVector?, oneTypes: BitVector?, notTypes: BitVector?) {
+            systemNames.add(name)
+        }
+
+        override fun updatedSystemTimings(p50: LongArray, p99: LongArray, max: LongArray) {
+            timings.add(max.copyOf())
+        }
+    }
+
+    class ComponentStateRecordingListener : DummyWorldUpdateListener() {
+        val states = ArrayList<Any>()
+
+        override val listeningBitset: Int
+            get() = WorldUpdateListener.ENTITY_ADDED
+
+        override fun updatedComponentState(entityId: Int, componentIndex: Int, valueTree: Any) {
+            states.add(valueTree)
+        }
+    }
+
+    class Batch(val deleted: List<Int>, val added: List<Int>, val compositions: List<Int>)
+
+    class BatchRecordingListener : DummyWorldUpdateListener(), WorldUpdateBatchListener {
+        val batches = ArrayList<Batch>()
+        val compositions = HashMap<Int, BitVector>()
+
+        override val listeningBitset: Int
+            get() = WorldUpdateListener.ENTITY_ADDED or WorldUpdateListener.ENTITY_DELETED
+
+        override fun addedComposition(compositionId: Int, components: BitVector) {
+            compositions.put(compositionId, components)
+        }
+
+        override fun addedEntity(entityId: Int, compositionId: Int) {
+            fail("entities should be batched")
+        }
+
+        override fun deletedEntity(entityId: Int) {
+            fail("entities should be batched")
+        }
+
+        override fun updatedEntities(deletedEntityIds: IntBag, addedEntityIds: IntBag, addedCompositionIds: IntBag) {
+            batches.add(Batch(toList(deletedEntityIds), toList(addedEntityIds), toList(addedCompositionIds)))
+        }
+
+        private fun toList(bag: IntBag): List<Int> {
+            return (0..bag.size() - 1).map { bag.get(it) }
+        }
+    }
+}
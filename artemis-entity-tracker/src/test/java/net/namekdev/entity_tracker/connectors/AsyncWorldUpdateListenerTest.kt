@@ -0,0 +1,217 @@
+package net.namekdev.entity_tracker.connectors
+
+import com.artemis.World
+import com.artemis.WorldConfigurationBuilder
+import com.artemis.utils.BitVector
+import com.artemis.utils.IntBag
+import net.namekdev.entity_tracker.EntityTracker
+import net.namekdev.entity_tracker.EntityTrackerTest.BatchRecordingListener
+import net.namekdev.entity_tracker.EntityTrackerTest.ComponentStateRecordingListener
+import net.namekdev.entity_tracker.EntityTrackerTest.Position
+import net.namekdev.entity_tracker.model.ComponentTypeInfo
+import net.namekdev.entity_tracker.utils.serialization.ObjectTypeInspector
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.util.*
+import java.util.concurrent.CountDownLatch
+
+class AsyncWorldUpdateListenerTest {
+    var async: AsyncWorldUpdateListener? = null
+
+
+    @After
+    fun teardown() {
+        async?.stop()
+    }
+
+    @Test
+    fun events_are_delivered_in_order_by_tracker_thread() {
+        val target = EventRecordingListener()
+        async = AsyncWorldUpdateListener(target, 4).start()
+        val async = async!!
+
+        val components = BitVector()
+        components.set(2)
+        async.addedComposition(0, components)
+        for (i in 0..99) {
+            async.addedEntity(i, 0)
+        }
+        async.deletedEntity(50)
+        async.flush()
+
+        assertEquals(4, async.capacity)
+        assertEquals(102, target.events.size)
+        assertEquals("composition 0 $components", target.events[0])
+        assertEquals((0..99).map { "added $it 0" }, target.events.subList(1, 101))
+        assertEquals("deleted 50", target.events[101])
+        assertEquals(setOf("entity-tracker"), target.threadNames)
+    }
+
+    @Test
+    fun batch_is_delivered_after_caller_reuses_bags() {
+        val target = BatchRecordingListener()
+        async = AsyncWorldUpdateListener(target, 8).start()
+        val async = async!!
+
+        val deleted = bagOf(1, 2)
+        val added = bagOf(10, 11, 12)
+        val compositions = bagOf(0, 0, 1)
+        async.updatedEntities(deleted, added, compositions)
+        deleted.clear()
+        added.clear()
+        compositions.clear()
+        async.updatedEntities(deleted, bagOf(3), bagOf(2))
+        async.flush()
+
+        assertEquals(2, target.batches.size)
+        assertEquals(listOf(1, 2), target.batches[0].deleted)
+        assertEquals(listOf(10, 11, 12), target.batches[0].added)
+        assertEquals(listOf(0, 0, 1), target.batches[0].compositions)
+        assertEquals(listOf(3), target.batches[1].added)
+        assertTrue(target.batches[1].deleted.isEmpty())
+    }
+
+    @Test
+    fun batch_is_split_for_listener_without_batches() {
+        val target = EventRecordingListener()
+        async = AsyncWorldUpdateListener(target).start()
+
+        async!!.updatedEntities(bagOf(5), bagOf(6), bagOf(1))
+        async!!.flush()
+
+        assertEquals(listOf("deleted 5", "added 6 1"), target.events)
+    }
+
+    @Test
+    fun component_state_is_copied_by_game_thread() {
+        val target = ComponentStateRecordingListener()
+        async = AsyncWorldUpdateListener(target).start()
+        val info = ComponentTypeInfo(Position::class.java)
+        info.model = ObjectTypeInspector.shared.inspect(Position::class.java)
+
+        val position = Position()
+        position.x = 5f
+        async!!.addedComponentType(0, info)
+        async!!.updatedComponentState(1, 0, position)
+        position.x = 6f
+        async!!.flush()
+
+        val state = target.states.single() as Position
+        assertNotSame(position, state)
+        assertEquals(5f, state.x, 0f)
+    }
+
+    @Test
+    fun events_are_delivered_after_listener_fails() {
+        val target = object : EventRecordingListener() {
+            override fun addedEntity(entityId: Int, compositionId: Int) {
+                if (entityId == 1) {
+                    throw RuntimeException("Listener failed.")
+                }
+                super.addedEntity(entityId, compositionId)
+            }
+        }
+        async = AsyncWorldUpdateListener(target, 4).start()
+
+        val err = System.err
+        System.setErr(PrintStream(ByteArrayOutputStream()))
+        try {
+            for (i in 0..9) {
+                async!!.addedEntity(i, 0)
+            }
+            async!!.flush()
+        }
+        finally {
+            System.setErr(err)
+        }
+
+        assertEquals((0..9).filter { it != 1 }.map { "added $it 0" }, target.events)
+    }
+
+    @Test
+    fun game_thread_does_not_wait_for_blocked_listener() {
+        val isBlocked = CountDownLatch(1)
+        val target = object : EventRecordingListener() {
+            override fun deletedEntity(entityId: Int) {
+                isBlocked.await()
+                super.deletedEntity(entityId)
+            }
+        }
+        async = AsyncWorldUpdateListener(target, 4).start()
+
+        for (i in 0..99) {
+            async!!.deletedEntity(i)
+        }
+        assertTrue(async!!.overflowCount > 0)
+
+        isBlocked.countDown()
+        async!!.flush()
+        assertEquals((0..99).map { "deleted $it" }, target.events)
+    }
+
+    @Test
+    fun remaining_events_are_delivered_on_stop() {
+        val target = EventRecordingListener()
+        val async = AsyncWorldUpdateListener(target).start()
+
+        for (i in 0..999) {
+            async.deletedEntity(i)
+        }
+        async.stop()
+
+        assertEquals(1000, target.events.size)
+    }
+
+    @Test
+    fun tracker_events_are_delivered() {
+        val target = BatchRecordingListener()
+        async = AsyncWorldUpdateListener(target).start()
+        val world = World(WorldConfigurationBuilder().with(EntityTracker(async!!)).build())
+
+        for (i in 0..9) {
+            world.edit(world.create()).create(Position::class.java)
+        }
+        world.process()
+        async!!.flush()
+
+        assertEquals(1, target.compositions.size)
+        assertEquals((0..9).toList(), target.batches.single().added)
+    }
+
+
+    private fun bagOf(vararg values: Int): IntBag {
+        val bag = IntBag()
+        for (value in values) {
+            bag.add(value)
+        }
+        return bag
+    }
+
+    open class EventRecordingListener : DummyWorldUpdateListener() {
+        val events = ArrayList<String>()
+        val threadNames = HashSet<String>()
+
+        override val listeningBitset: Int
+            get() = WorldUpdateListener.ENTITY_ADDED or WorldUpdateListener.ENTITY_DELETED
+
+        override fun addedComposition(compositionId: Int, components: BitVector) {
+            record("composition $compositionId $components")
+        }
+
+        override fun addedEntity(entityId: Int, compositionId: Int) {
+            record("added $entityId $compositionId")
+        }
+
+        override fun deletedEntity(entityId: Int) {
+            record("deleted $entityId")
+        }
+
+        private fun record(event: String) {
+            events.add(event)
+            threadNames.add(Thread.currentThread().name)
+        }
+    }
+}
@@ -0,0 +1,681 @@
+package net.namekdev.entity_tracker.network
+
+import com.artemis.Component
+import com.artemis.utils.BitVector
+import com.artemis.utils.IntBag
+import net.namekdev.entity_tracker.connectors.DummyWorldUpdateListener
+import net.namekdev.entity_tracker.connectors.WorldController
+import net.namekdev.entity_tracker.connectors.WorldUpdateInterfaceListener
+import net.namekdev.entity_tracker.model.ComponentTypeInfo
+import net.namekdev.entity_tracker.network.base.RawConnectionCommunicator
+import net.namekdev.entity_tracker.network.base.RawConnectionCommunicatorProvider
+import net.namekdev.entity_tracker.network.base.RawConnectionOutputListener
+import net.namekdev.entity_tracker.network.base.Server
+import net.namekdev.entity_tracker.network.communicator.Communicator
+import net.namekdev.entity_tracker.network.communicator.ExternalInterfaceCommunicator
+import net.namekdev.entity_tracker.utils.ReflectionUtils
+import net.namekdev.entity_tracker.utils.sample.GameObject
+import net.namekdev.entity_tracker.utils.serialization.DiskModelCache
+import net.namekdev.entity_tracker.utils.serialization.ModelCache
+import net.namekdev.entity_tracker.utils.serialization.ObjectTypeInspector
+import net.namekdev.entity_tracker.utils.serialization.ValueTree
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayOutputStream
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * Connects server's communicator with UI's communicator without any sockets.
+ */
+class ProtocolTest {
+    lateinit var server: EntityTrackerServer
+    lateinit var ui: RecordingListener
+    lateinit var toServer: LoopbackConnection
+    lateinit var toClient: LoopbackConnection
+    lateinit var worldController: DummyWorldController
+    lateinit var serverCommunicator: RawConnectionCommunicator
+    lateinit var client: ExternalInterfaceCommunicator
+
+
+    @Before
+    fun setup() {
+        server = EntityTrackerServer()
+        worldController = DummyWorldController()
+        server.injectWorldController(worldController)
+        ui = RecordingListener()
+    }
+
+    @Rule @JvmField
+    val tempFolder = TemporaryFolder()
+
+
+    private fun connect(modelCache: ModelCache? = null, listener: RecordingListener = ui) {
+        val provider = ReflectionUtils.getHiddenFieldValue(Server::class.java, "clientListenerProvider", server) as RawConnectionCommunicatorProvider
+        serverCommunicator = provider.getListener("test")
+        client = ExternalInterfaceCommunicator(listener, modelCache)
+        val clientCommunicator = client
+        val address = InetSocketAddress(0)
+
+        toServer = LoopbackConnection(serverCommunicator)
+        toClient = LoopbackConnection(clientCommunicator)
+
+        serverCommunicator.connected(address, toClient)
+        clientCommunicator.connected(address, toServer)
+    }
+
+    @Test
+    fun world_state_is_sent_after_handshake() {
+        val components = BitVector()
+        components.set(3)
+        server.addedComposition(0, components)
+        server.addedEntity(5, 0)
+        server.addedEntity(1000000, 0)
+
+        connect()
+
+        assertEquals(listOf(5, 1000000), ui.addedEntities.sorted())
+        assertEquals(components, ui.entityComponents[5])
+    }
+
+    @Test
+    fun composition_is_sent_once_for_all_its_entities() {
+        val first = BitVector()
+        first.set(1)
+        val second = BitVector()
+        second.set(0)
+        second.set(70)
+
+        server.addedComposition(1, first)
+        for (entityId in 0..99) {
+            server.addedEntity(entityId, 1)
+        }
+        server.deletedEntity(50)
+        connect()
+
+        server.addedComposition(2, second)
+        server.addedEntity(100, 2)
+        server.addedEntity(101, 1)
+
+        assertEquals(listOf(1, 2), ui.compositions.keys.sorted())
+        assertEquals(101, ui.addedEntities.size)
+        assertFalse(ui.addedEntities.contains(50))
+        assertEquals(first, ui.entityComponents[99])
+        assertEquals(second, ui.entityComponents[100])
+        assertEquals(first, ui.entityComponents[101])
+    }
+
+    @Test
+    fun events_are_sent_after_handshake() {
+        connect()
+
+        server.updatedEntitySystem(2, 7, 100)
+        server.deletedEntity(-1)
+
+        assertEquals(Triple(2, 7, 100), ui.systemStats.last())
+        assertEquals(listOf(-1), ui.deletedEntities)
+    }
+
+    @Test
+    fun system_timings_are_sent() {
+        connect()
+
+        server.updatedSystemTimings(longArrayOf(10, 20), longArrayOf(30, 40), longArrayOf(50, 60000000000))
+
+        val timings = ui.systemTimings.single()
+        assertEquals(listOf(10L, 20L), timings.first.toList())
+        assertEquals(listOf(30L, 40L), timings.second.toList())
+        assertEquals(listOf(50L, 60000000000L), timings.third.toList())
+    }
+
+    @Test
+    fun entities_of_a_tick_are_sent_in_single_packet() {
+        val first = BitVector()
+        first.set(0)
+        val second = BitVector()
+        second.set(1)
+        server.addedComposition(0, first)
+        server.addedComposition(1, second)
+        server.preferredCompression = 0
+        connect()
+
+        var sentBeforeEvents = toClient.sentBytes
+        server.updatedEntities(IntBag(), bagOf(1, 2, 3, 7, 5), bagOf(0, 0, 0, 0, 1))
+        val batchSize = toClient.sentBytes - sentBeforeEvents
+
+        assertEquals(listOf(1, 2, 3, 7, 5), ui.addedEntities)
+        assertEquals(first, ui.entityComponents[7])
+        assertEquals(second, ui.entityComponents[5])
+
+        server.updatedEntities(bagOf(2, 3), IntBag(), IntBag())
+        assertEquals(listOf(2, 3), ui.deletedEntities)
+
+        // the same entities sent one by one
+        sentBeforeEvents = toClient.sentBytes
+        for (entityId in intArrayOf(1, 2, 3, 7)) {
+            server.addedEntity(entityId, 0)
+        }
+        server.addedEntity(5, 1)
+        assertTrue(batchSize < toClient.sentBytes - sentBeforeEvents)
+
+        // new client gets all entities in a batch too
+        ui = RecordingListener()
+        server.updatedEntities(bagOf(2, 3), IntBag(), IntBag())
+        connect()
+        assertEquals(listOf(1, 5, 7), ui.addedEntities.sorted())
+        assertEquals(second, ui.entityComponents[5])
+
+        // ids are written as ranges, so they have to be sorted
+        try {
+            server.updatedEntities(bagOf(9, 8), IntBag(), IntBag())
+            fail()
+        }
+        catch (e: IllegalArgumentException) {
+        }
+    }
+
+    private fun bagOf(vararg values: Int): IntBag {
+        val bag = IntBag()
+        for (value in values) {
+            bag.add(value)
+        }
+        return bag
+    }
+
+    @Test
+    fun component_watches_are_released_on_disconnect() {
+        connect()
+
+        client.watchComponent(3, 1, 100)
+        client.watchComponent(3, 1, 100)
+        client.watchComponent(4, 2, 0)
+        client.unwatchComponent(4, 2)
+        assertEquals(setOf(Triple(3, 1, 100)), worldController.watches)
+
+        serverCommunicator.disconnected()
+        assertTrue(worldController.watches.isEmpty())
+    }
+
+    @Test
+    fun events_are_sent_to_all_clients() {
+        val secondUi = RecordingListener()
+        connect()
+        connect(listener = secondUi)
+
+        val components = BitVector()
+        components.set(1)
+        server.addedComposition(0, components)
+        server.addedEntity(3, 0)
+        server.updatedEntitySystem(0, 1, 1)
+        server.deletedEntity(3)
+
+        for (listener in listOf(ui, secondUi)) {
+            assertEquals(listOf(3), listener.addedEntities)
+            assertEquals(components, listener.entityComponents[3])
+            assertEquals(listOf(Triple(0, 1, 1)), listener.systemStats)
+            assertEquals(listOf(3), listener.deletedEntities)
+        }
+    }
+
+    @Test
+    fun state_of_deleted_entity_is_sent_whole_again() {
+        val info = ComponentTypeInfo(Scene::class.java)
+        info.model = ObjectTypeInspector().inspect(Scene::class.java)
+        server.addedComponentType(0, info)
+        connect()
+        client.watchComponent(5, 0, 0)
+
+        val state = Scene()
+        server.updatedComponentState(5, 0, state)
+        val tree = ui.componentStates.last()
+
+        server.deletedEntity(5)
+        server.updatedComponentState(5, 0, state)
+        assertEquals(1, ui.componentStates.size)
+
+        // tracker forgets watches of deleted entity by itself
+        worldController.watches.clear()
+        client.watchComponent(5, 0, 0)
+        server.updatedComponentState(5, 0, state)
+        assertNotSame(tree, ui.componentStates.last())
+    }
+
+    @Test
+    fun component_state_is_sent_only_to_clients_which_want_it() {
+        val info = ComponentTypeInfo(Scene::class.java)
+        info.model = ObjectTypeInspector().inspect(Scene::class.java)
+        server.addedComponentType(0, info)
+        val secondUi = RecordingListener()
+        connect()
+        val firstClient = client
+        connect(listener = secondUi)
+
+        firstClient.watchComponent(5, 0, 0)
+        server.updatedComponentState(5, 0, Scene())
+        assertEquals(1, ui.componentStates.size)
+        assertTrue(secondUi.componentStates.isEmpty())
+
+        // requested state is sent once
+        client.requestComponentState(6, 0)
+        server.updatedComponentState(6, 0, Scene())
+        server.updatedComponentState(6, 0, Scene())
+        assertEquals(1, ui.componentStates.size)
+        assertEquals(1, secondUi.componentStates.size)
+    }
+
+    @Test
+    fun compact_encoding_takes_less_bytes() {
+        // measure encoding itself, without compression frames
+        server.preferredCompression = 0
+        connect()
+
+        val sentBeforeEvents = toClient.sentBytes
+        server.updatedEntitySystem(2, 7, 100)
+        val compactSize = toClient.sentBytes - sentBeforeEvents
+
+        // packet type + 3x(tag + varint), 100 is zigzag encoded as 200 which needs two bytes
+        assertEquals(1 + (1 + 1) + (1 + 1) + (1 + 2), compactSize)
+    }
+
+    @Test
+    fun repeated_component_state_is_sent_as_delta() {
+        val info = ComponentTypeInfo(Scene::class.java)
+        info.model = ObjectTypeInspector().inspect(Scene::class.java)
+        server.addedComponentType(0, info)
+        connect()
+        client.watchComponent(5, 0, 0)
+
+        val state = Scene()
+
+        var sentBeforeEvent = toClient.sentBytes
+        server.updatedComponentState(5, 0, state)
+        val fullSize = toClient.sentBytes - sentBeforeEvent
+        val tree = ui.componentStates.last()
+
+        state.obj.pos.y = 7f
+        state.ids[2] = 8
+        sentBeforeEvent = toClient.sentBytes
+        server.updatedComponentState(5, 0, state)
+        val deltaSize = toClient.sentBytes - sentBeforeEvent
+
+        assertTrue(deltaSize < fullSize)
+        assertSame(tree, ui.componentStates.last())
+
+        // obj -> pos -> y
+        val pos = (tree.values[0] as ValueTree).values[0] as ValueTree
+        assertEquals(7f, pos.values[1])
+        assertEquals(8, (tree.values[1] as ValueTree).values[2])
+
+        // structure changed so whole state is sent again
+        state.ids = intArrayOf(1)
+        server.updatedComponentState(5, 0, state)
+        assertNotSame(tree, ui.componentStates.last())
+        assertEquals(1, (ui.componentStates.last().values[1] as ValueTree).values.size)
+    }
+
+    @Test
+    fun unchanged_component_state_is_not_sent_again() {
+        val info = ComponentTypeInfo(Scene::class.java)
+        info.model = ObjectTypeInspector().inspect(Scene::class.java)
+        server.addedComponentType(0, info)
+        connect()
+        client.watchComponent(5, 0, 0)
+
+        val state = Scene()
+        server.updatedComponentState(5, 0, state)
+
+        val sentBeforeEvent = toClient.sentBytes
+        server.updatedComponentState(5, 0, state)
+
+        assertEquals(sentBeforeEvent, toClient.sentBytes)
+        assertEquals(1, ui.componentStates.size)
+    }
+
+    @Test
+    fun replaced_shared_object_is_not_shared_on_client() {
+        val info = ComponentTypeInfo(Group::class.java)
+        info.model = ObjectTypeInspector().inspect(Group::class.java)
+        server.addedComponentType(0, info)
+        connect()
+        client.watchComponent(5, 0, 0)
+
+        val state = Group()
+        state.objects[1] = state.objects[0]
+        server.updatedComponentState(5, 0, state)
+
+        // equal copy, but a different object
+        state.objects[1] = GameObject()
+        server.updatedComponentState(5, 0, state)
+        state.objects[0].pos.y = 7f
+        server.updatedComponentState(5, 0, state)
+
+        val objects = ui.componentStates.last().values[0] as ValueTree
+        val firstPos = (objects.values[0] as ValueTree).values[0] as ValueTree
+        val secondPos = (objects.values[1] as ValueTree).values[0] as ValueTree
+        assertEquals(7f, firstPos.values[1])
+        assertEquals(2f, secondPos.values[1])
+    }
+
+    @Test
+    fun delta_without_base_state_is_skipped_and_state_is_requested() {
+        val info = ComponentTypeInfo(Scene::class.java)
+        info.model = ObjectTypeInspector().inspect(Scene::class.java)
+        server.addedComponentType(0, info)
+        connect()
+        client.watchComponent(5, 0, 0)
+
+        val state = Scene()
+        server.updatedComponentState(5, 0, state)
+        (ReflectionUtils.getHiddenFieldValue(ExternalInterfaceCommunicator::class.java, "_componentStates", client) as MutableMap<*, *>).clear()
+
+        state.ids[0] = 10
+        server.updatedComponentState(5, 0, state)
+        assertEquals(1, ui.componentStates.size)
+        assertEquals(listOf(5 to 0), worldController.requestedStates)
+
+        // requested state is sent whole
+        server.updatedComponentState(5, 0, state)
+        assertEquals(2, ui.componentStates.size)
+        assertEquals(10, (ui.componentStates.last().values[1] as ValueTree).values[0])
+    }
+
+    @Test
+    fun big_component_state_is_sent_in_parts() {
+        val info = ComponentTypeInfo(Scene::class.java)
+        info.model = ObjectTypeInspector().inspect(Scene::class.java)
+        server.addedComponentType(0, info)
+        connect()
+        client.watchComponent(5, 0, 0)
+
+        val state = Scene()
+        state.ids = IntArray(100000, { it * 1000 })
+        server.updatedComponentState(5, 0, state)
+
+        assertTrue(toClient.sentParts > 1)
+        val ids = ui.componentStates.last().values[1] as ValueTree
+        assertEquals(state.ids.size, ids.size)
+        assertEquals(99999 * 1000, ids.getInt(99999))
+    }
+
+    @Test
+    fun parts_of_failed_packet_are_dropped() {
+        val info = ComponentTypeInfo(Scene::class.java)
+        info.model = ObjectTypeInspector().inspect(Scene::class.java)
+        server.addedComponentType(0, info)
+        connect()
+        client.watchComponent(5, 0, 0)
+
+        val state = Scene()
+        state.ids = IntArray(100000, { it * 1000 })
+        toClient.failingPart = 2
+
+        try {
+            server.updatedComponentState(5, 0, state)
+            fail()
+        }
+        catch (e: RuntimeException) {
+        }
+
+        state.ids = intArrayOf(1, 2)
+        server.updatedComponentState(5, 0, state)
+
+        assertEquals(1, toClient.abortedParts)
+        assertEquals(1, ui.componentStates.size)
+        val ids = ui.componentStates.last().values[1] as ValueTree
+        assertEquals(2, ids.size)
+        assertEquals(2, ids.getInt(1))
+    }
+
+    @Test
+    fun component_state_is_compressed() {
+        val sizes = listOf(0, Communicator.FEATURE_FAST_COMPRESSION, Communicator.FEATURE_DEFLATE_COMPRESSION).map { compression ->
+            setup()
+            server.preferredCompression = compression
+            val info = ComponentTypeInfo(Scene::class.java)
+            info.model = ObjectTypeInspector().inspect(Scene::class.java)
+            server.addedComponentType(0, info)
+            connect()
+            client.watchComponent(5, 0, 0)
+
+            val state = Scene()
+            state.ids = IntArray(2000, { it % 10 })
+            val sentBeforeEvent = toClient.sentBytes
+            server.updatedComponentState(5, 0, state)
+
+            val ids = ui.componentStates.last().values[1] as ValueTree
+            assertEquals(9, ids.getInt(1999))
+
+            toClient.sentBytes - sentBeforeEvent
+        }
+
+        assertTrue(sizes[1] < sizes[0] / 4)
+        assertTrue(sizes[2] < sizes[0] / 4)
+    }
+
+    @Test
+    fun cached_component_types_are_not_described_again() {
+        val info = ComponentTypeInfo(Scene::class.java)
+        info.model = ObjectTypeInspector().inspect(Scene::class.java)
+        server.addedComponentType(0, info)
+
+        connect(DiskModelCache(tempFolder.root))
+        val describedSize = toClient.sentBytes
+        assertEquals(listOf("Scene"), ui.componentTypes.map { it.name })
+
+        // another run of the UI reads models from disk
+        ui = RecordingListener()
+        connect(DiskModelCache(tempFolder.root))
+        client.watchComponent(5, 0, 0)
+        assertTrue(toClient.sentBytes < describedSize)
+        assertEquals(info.model.fingerprint(), ui.componentTypes[0].model.fingerprint())
+
+        server.updatedComponentState(5, 0, Scene())
+        assertEquals(3, (ui.componentStates.last().values[1] as ValueTree).size)
+    }
+
+    @Test
+    fun packets_wait_for_description_of_requested_component_type() {
+        val sceneInfo = ComponentTypeInfo(Scene::class.java)
+        sceneInfo.model = ObjectTypeInspector().inspect(Scene::class.java)
+        val groupInfo = ComponentTypeInfo(Group::class.java)
+        groupInfo.model = ObjectTypeInspector().inspect(Group::class.java)
+
+        // only the second type is known from previous connections
+        val cache = DiskModelCache(tempFolder.root)
+        cache.put(groupInfo.model.fingerprint(), groupInfo.model)
+        connect(cache)
+        client.watchComponent(5, 0, 0)
+
+        toServer.isHeld = true
+        server.addedComponentType(0, sceneInfo)
+        server.addedComponentType(1, groupInfo)
+        server.updatedComponentState(5, 0, Scene())
+        assertTrue(ui.componentTypes.isEmpty())
+        assertTrue(ui.componentStates.isEmpty())
+
+        toServer.release()
+        assertEquals(listOf("Scene", "Group"), ui.componentTypes.map { it.name })
+        assertEquals(1, ui.componentStates.size)
+        assertEquals(3, (ui.componentStates[0].values[1] as ValueTree).size)
+        assertNotNull(cache.get(sceneInfo.model.fingerprint()))
+    }
+
+    @Test
+    fun disk_model_cache_deletes_models_over_the_limit() {
+        val model = ObjectTypeInspector().inspect(Scene::class.java)
+        val cache = DiskModelCache(tempFolder.root, 2)
+
+        for (fingerprint in 1L..3L) {
+            cache.put(fingerprint, model)
+        }
+
+        assertEquals(2, tempFolder.root.list().size)
+        assertNotNull(DiskModelCache(tempFolder.root, 2).get(3L))
+    }
+
+    @Test
+    fun component_with_array_of_objects_is_received() {
+        val info = ComponentTypeInfo(Group::class.java)
+        info.model = ObjectTypeInspector().inspect(Group::class.java)
+        server.addedComponentType(0, info)
+        connect()
+        client.watchComponent(5, 0, 0)
+        client.watchComponent(6, 0, 0)
+
+        val state = Group()
+        state.objects[1].size.y = 9f
+        server.updatedComponentState(5, 0, state)
+        server.updatedComponentState(6, 0, state)
+
+        for (tree in ui.componentStates) {
+            val objects = tree.values[0] as ValueTree
+            val size = (objects.values[1] as ValueTree).values[1] as ValueTree
+            assertEquals(9f, size.values[1])
+        }
+    }
+
+
+    class Scene : Component() {
+        @JvmField var obj = GameObject()
+        @JvmField var ids = intArrayOf(1, 2, 3)
+    }
+
+    class Group : Component() {
+        @JvmField var objects = arrayOf(GameObject(), GameObject())
+    }
+
+    class LoopbackConnection(private val receiver: RawConnectionCommunicator) : RawConnectionOutputListener {
+        var sentBytes = 0
+        var sentParts = 0
+        var abortedParts = 0
+        var failingPart = -1
+        private val parts = ByteArrayOutputStream()
+
+        // held packets are received on release, like they're still on the way
+        var isHeld = false
+        private val heldPackets = ArrayList<ByteArray>()
+
+        override fun send(buffer: ByteArray, offset: Int, length: Int) {
+            sentBytes += length
+            parts.write(buffer, offset, length)
+            val bytes = parts.toByteArray()
+            parts.reset()
+
+            if (isHeld) {
+                heldPackets.add(bytes)
+            }
+            else {
+                receiver.bytesReceived(bytes, 0, bytes.size)
+            }
+        }
+
+        fun release() {
+            isHeld = false
+            for (bytes in heldPackets) {
+                receiver.bytesReceived(bytes, 0, bytes.size)
+            }
+            heldPackets.clear()
+        }
+
+        override fun send(buffers: Array<ByteBuffer>, count: Int, length: Int) {
+            val bytes = join(buffers, count, length)
+            send(bytes, 0, length)
+        }
+
+        override fun sendPart(buffers: Array<ByteBuffer>, count: Int, length: Int) {
+            if (sentParts + 1 == failingPart) {
+                throw RuntimeException("Connection failed.")
+            }
+
+            sentBytes += length
+            sentParts++
+            parts.write(join(buffers, count, length))
+        }
+
+        override fun abortParts() {
+            abortedParts++
+            parts.reset()
+        }
+
+        private fun join(buffers: Array<ByteBuffer>, count: Int, length: Int): ByteArray {
+            val bytes = ByteArray(length)
+            var pos = 0
+
+            for (i in 0..count - 1) {
+                val n = buffers[i].remaining()
+                buffers[i].get(bytes, pos, n)
+                pos += n
+            }
+
+            return bytes
+        }
+    }
+
+    class RecordingListener : DummyWorldUpdateListener(), WorldUpdateInterfaceListener {
+        val addedEntities = ArrayList<Int>()
+        val compositions = HashMap<Int, BitVector>()
+        val entityComponents = HashMap<Int, BitVector>()
+        val deletedEntities = ArrayList<Int>()
+        val systemStats = ArrayList<Triple<Int, Int, Int>>()
+        val componentStates = ArrayList<ValueTree>()
+        val componentTypes = ArrayList<ComponentTypeInfo>()
+        val systemTimings = ArrayList<Triple<LongArray, LongArray, LongArray>>()
+
+        override fun addedComponentType(index: Int, info: ComponentTypeInfo) {
+            componentTypes.add(info)
+        }
+
+        override fun addedComposition(compositionId: Int, components: BitVector) {
+            compositions.put(compositionId, components)
+        }
+
+        override fun addedEntity(entityId: Int, compositionId: Int) {
+            addedEntities.add(entityId)
+            entityComponents.put(entityId, compositions[compositionId]!!)
+        }
+
+        override fun deletedEntity(entityId: Int) {
+            deletedEntities.add(entityId)
+        }
+
+        override fun updatedEntitySystem(index: Int, entitiesCount: Int, maxEntitiesCount: Int) {
+            systemStats.add(Triple(index, entitiesCount, maxEntitiesCount))
+        }
+
+        override fun updatedSystemTimings(p50: LongArray, p99: LongArray, max: LongArray) {
+            systemTimings.add(Triple(p50, p99, max))
+        }
+
+        override fun updatedComponentState(entityId: Int, componentIndex: Int, valueTree: Any) {
+            componentStates.add(valueTree as ValueTree)
+        }
+
+        override fun disconnected() {}
+    }
+
+    class DummyWorldController : WorldController {
+        override fun setSystemState(name: String, isOn: Boolean) {}
+        override fun setManagerState(name: String, isOn: Boolean) {}
+        val requestedStates = ArrayList<Pair<Int, Int>>()
+
+        override fun requestComponentState(entityId: Int, componentIndex: Int) {
+            requestedStates.add(entityId to componentIndex)
+        }
+
+        val watches = HashSet<Triple<Int, Int, Int>>()
+
+        override fun watchComponent(entityId: Int, componentIndex: Int, interval: Int): Boolean {
+            assertTrue(watches.add(Triple(entityId, componentIndex, interval)))
+            return true
+        }
+
+        override fun unwatchComponent(entityId: Int, componentIndex: Int) {
+            assertTrue(watches.removeIf { it.first == entityId && it.second == componentIndex })
+        }
+        override fun setComponentFieldValue(entityId: Int, componentIndex: Int, treePath: IntArray, value: Any) {}
+    }
+}
@@ -0,0 +1,61 @@
+package net.namekdev.entity_tracker.network.base
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+
+class QueuedOutputStreamTest {
+    lateinit var serverSocket: ServerSocket
+    lateinit var receiver: Socket
+    lateinit var sender: Socket
+
+
+    @Before
+    fun setup() {
+        serverSocket = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+        receiver = Socket(serverSocket.inetAddress, serverSocket.localPort)
+        sender = serverSocket.accept()
+    }
+
+    @After
+    fun teardown() {
+        receiver.close()
+        sender.close()
+        serverSocket.close()
+    }
+
+    @Test
+    fun flushed_bytes_are_received() {
+        val output = QueuedOutputStream(sender, 1024)
+        output.write(byteArrayOf(1, 2, 3), 0, 3)
+        output.write(4)
+        output.flush()
+
+        val bytes = ByteArray(4)
+        var n = 0
+        while (n < bytes.size) {
+            n += receiver.inputStream.read(bytes, n, bytes.size - n)
+        }
+        assertArrayEquals(byteArrayOf(1, 2, 3, 4), bytes)
+    }
+
+    @Test
+    fun connection_is_closed_when_too_much_is_queued() {
+        val output = QueuedOutputStream(sender, 1024)
+
+        // bytes which are not flushed stay in the queue
+        output.write(ByteArray(1000), 0, 1000)
+        assertFalse(sender.isClosed)
+
+        output.write(ByteArray(100), 0, 100)
+        assertTrue(sender.isClosed)
+
+        // the rest is dropped without blocking the caller
+        output.write(ByteArray(100), 0, 100)
+        output.flush()
+    }
+}
@@ -0,0 +1,95 @@
+package net.namekdev.entity_tracker.network.compression
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.*
+
+class FrameCompressionTest {
+    @Test
+    fun fast_lz_round_trip() {
+        val codec = FastLzCodec()
+        val random = Random(1)
+
+        for (sample in listOf(ByteArray(0), repetitiveBytes(100000), randomBytes(random, 5000), "abcabcabcabc".toByteArray())) {
+            val compressed = ByteArray(FastLzCodec.maxCompressedLength(sample.size))
+            val compressedLength = codec.compress(sample, 0, sample.size, compressed, 0, compressed.size)
+            assertTrue(compressedLength >= 0)
+
+            val decompressed = ByteArray(sample.size)
+            assertEquals(sample.size, codec.decompress(compressed, 0, compressedLength, decompressed, 0))
+            assertArrayEquals(sample, decompressed)
+        }
+    }
+
+    @Test
+    fun fast_lz_gives_up_when_data_is_not_compressible() {
+        val codec = FastLzCodec()
+        val bytes = randomBytes(Random(2), 1000)
+        val compressed = ByteArray(FastLzCodec.maxCompressedLength(bytes.size))
+
+        assertEquals(-1, codec.compress(bytes, 0, bytes.size, compressed, 0, bytes.size - 1))
+    }
+
+    @Test
+    fun frames_are_compressed_above_threshold() {
+        for (codec in listOf(FrameCompression.CODEC_FAST_LZ, FrameCompression.CODEC_DEFLATE)) {
+            val sender = FrameCompression(codec)
+            val receiver = FrameCompression(codec)
+            sender.addDictionaryWord("position")
+            receiver.addDictionaryWord("position")
+
+            val small = "position".toByteArray()
+            val smallFrame = copy(sender.compress(arrayOf(ByteBuffer.wrap(small)), 1, small.size))
+            assertEquals(FrameCompression.CODEC_NONE, smallFrame[0])
+            assertDecompressed(small, receiver, smallFrame)
+
+            val big = repetitiveBytes(10000)
+            val bigFrame = copy(sender.compress(arrayOf(ByteBuffer.wrap(big, 0, 4000), ByteBuffer.wrap(big, 4000, 6000)), 2, big.size))
+            assertEquals(codec, bigFrame[0])
+            assertTrue(bigFrame.size < big.size / 10)
+            assertDecompressed(big, receiver, bigFrame)
+
+            // parts of a packet are received together
+            assertDecompressed(small + big, receiver, smallFrame + bigFrame)
+        }
+    }
+
+    @Test
+    fun not_compressible_frames_are_sent_as_they_are() {
+        val sender = FrameCompression(FrameCompression.CODEC_DEFLATE)
+        val bytes = randomBytes(Random(3), 1000)
+        val frame = copy(sender.compress(arrayOf(ByteBuffer.wrap(bytes)), 1, bytes.size))
+
+        assertEquals(FrameCompression.CODEC_NONE, frame[0])
+        assertDecompressed(bytes, FrameCompression(FrameCompression.CODEC_DEFLATE), frame)
+    }
+
+
+    private fun assertDecompressed(expected: ByteArray, receiver: FrameCompression, frame: ByteArray) {
+        val result = receiver.decompress(frame, 0, frame.size)
+        assertEquals(expected.size, result.size)
+        assertArrayEquals(expected, Arrays.copyOf(result.buffer, result.size))
+    }
+
+    private fun copy(buffer: ByteBuffer): ByteArray {
+        val bytes = ByteArray(buffer.remaining())
+        buffer.get(bytes)
+        return bytes
+    }
+
+    private fun repetitiveBytes(size: Int): ByteArray {
+        val text = StringBuilder()
+        var i = 0
+        while (text.length < size) {
+            text.append("position ").append(i++ % 100).append(';')
+        }
+        return Arrays.copyOf(text.toString().toByteArray(), size)
+    }
+
+    private fun randomBytes(random: Random, size: Int): ByteArray {
+        val bytes = ByteArray(size)
+        random.nextBytes(bytes)
+        return bytes
+    }
+}
@@ -0,0 +1,41 @@
+package net.namekdev.entity_tracker.utils;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import net.namekdev.entity_tracker.utils.sample.GameObject;
+import net.namekdev.entity_tracker.utils.sample.Vector3;
+
+public class FieldAccessorTest {
+
+	@Test
+	public void reads_primitive_fields() {
+		Vector3 v = new Vector3(1, 2, 3);
+		FieldAccessor y = FieldAccessor.find(Vector3.class, "y");
+
+		assertEquals(2f, y.getFloat(v), 0f);
+		assertEquals(2f, (Float) y.get(v), 0f);
+	}
+
+	@Test
+	public void reads_object_fields() {
+		GameObject go = new GameObject();
+		FieldAccessor pos = FieldAccessor.find(GameObject.class, "pos");
+
+		assertTrue(go.pos == pos.get(go));
+	}
+
+	@Test
+	public void finds_field_in_superclass() {
+		Vector3 v = new Vector3(1, 2, 3) {};
+		FieldAccessor z = FieldAccessor.find(v.getClass(), "z");
+
+		assertEquals(3f, z.getFloat(v), 0f);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void fails_on_unknown_field() {
+		FieldAccessor.find(Vector3.class, "w");
+	}
+}
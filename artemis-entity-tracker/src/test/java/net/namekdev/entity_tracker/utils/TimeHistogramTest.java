@@ -0,0 +1,50 @@
+package net.namekdev.entity_tracker.utils;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TimeHistogramTest {
+
+	@Test
+	public void small_values_are_exact() {
+		TimeHistogram histogram = new TimeHistogram();
+
+		for (int i = 1; i <= 10; ++i) {
+			histogram.record(i);
+		}
+
+		assertEquals(10, histogram.getCount());
+		assertEquals(10, histogram.getMax());
+		assertEquals(5, histogram.valueAtPercentile(50.0));
+		assertEquals(10, histogram.valueAtPercentile(99.0));
+	}
+
+	@Test
+	public void percentiles_are_within_relative_error() {
+		TimeHistogram histogram = new TimeHistogram();
+
+		for (int i = 1; i <= 1000; ++i) {
+			histogram.record(i * 1000L);
+		}
+
+		assertEquals(500000, histogram.valueAtPercentile(50.0), 500000 * 0.04);
+		assertEquals(990000, histogram.valueAtPercentile(99.0), 990000 * 0.04);
+		assertEquals(1000000, histogram.valueAtPercentile(100.0));
+		assertTrue(histogram.valueAtPercentile(50.0) >= 500000);
+	}
+
+	@Test
+	public void reset_forgets_values() {
+		TimeHistogram histogram = new TimeHistogram();
+		histogram.record(123456);
+		histogram.record(TimeHistogram.MAX_VALUE + 1);
+		assertEquals(TimeHistogram.MAX_VALUE, histogram.getMax());
+
+		histogram.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.valueAtPercentile(50.0));
+	}
+}
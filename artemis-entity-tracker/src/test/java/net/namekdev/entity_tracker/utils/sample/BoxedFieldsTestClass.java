@@ -0,0 +1,9 @@
+package net.namekdev.entity_tracker.utils.sample;
+
+public class BoxedFieldsTestClass {
+	// the highest byte is equal to the ordinal of DataType.Null
+	public int primitive = 0x14000001;
+	public Integer boxedNull = null;
+	public Long boxed = 0x1400000000000002L;
+	public String text = "text";
+}
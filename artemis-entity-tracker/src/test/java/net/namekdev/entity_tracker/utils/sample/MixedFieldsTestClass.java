@@ -0,0 +1,19 @@
+package net.namekdev.entity_tracker.utils.sample;
+
+import com.artemis.utils.BitVector;
+
+public class MixedFieldsTestClass {
+	public short small = -3;
+	public long big = 1L << 40;
+	public double precise = 0.25;
+	public boolean flag = true;
+	public int[] ints = { 1, -2, 300000 };
+	public float[] floats = { 0.5f, 1.5f };
+	public boolean[] flags = { true, false, true };
+	public String text = "text";
+	public Long boxed = 5L;
+	public BitVector bits = new BitVector();
+	public TestEnum choice = TestEnum.Third;
+	public Vector2 pos = new Vector2(3, 4);
+	public MixedFieldsTestClass self = this;
+}
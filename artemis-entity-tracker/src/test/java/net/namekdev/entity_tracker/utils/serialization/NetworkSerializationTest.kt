@@ -3,6 +3,8 @@ package net.namekdev.entity_tracker.utils.serialization
 import com.artemis.utils.BitVector
 import org.junit.Assert.*
 
+import net.namekdev.entity_tracker.utils.ByteBufferPool
+
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerializer.SerializationResult
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.Companion.determineType
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.Companion.isSimpleType
@@ -102,6 +104,184 @@ class NetworkSerializationTest {
         assertEquals(result.size.toLong(), deserializer.consumedBytesCount.toLong())
     }
 
+    @Test
+    fun serialize_sparse_and_dense_bitvectors() {
+        val serializer = NetworkSerializer().reset()
+        serializer.isCompactEncoding = true
+        deserializer.isCompactEncoding = true
+
+        val sparse = BitVector()
+        sparse.set(3)
+        sparse.set(10000)
+
+        val dense = BitVector()
+        for (i in 0..200 step 2) {
+            dense.set(i)
+        }
+
+        serializer.addBitVector(sparse)
+        // tag, mode, count and two indices
+        assertEquals(1 + 1 + 1 + (1 + 2), serializer.size)
+
+        serializer.addBitVector(dense)
+        serializer.addBitVector(BitVector())
+
+        val result = serializer.result
+        deserializer.setSource(result.buffer, 0, result.size)
+        assertEquals(sparse, deserializer.readBitVector())
+        assertEquals(dense, deserializer.readBitVector())
+        assertTrue(deserializer.readBitVector()!!.isEmpty)
+        assertEquals(result.size.toLong(), deserializer.consumedBytesCount.toLong())
+    }
+
+    @Test
+    fun serialize_data_bigger_than_chunk() {
+        val serializer = NetworkSerializer(ObjectTypeInspector(), ByteBufferPool(64)).reset()
+        val text = "0123456789".repeat(20)
+        val numbers = IntArray(100, { it * 1000 })
+
+        serializer.addString(text)
+        serializer.addArray(numbers)
+        serializer.addLong(Long.MAX_VALUE)
+
+        assertTrue(serializer.chunkCount > 1)
+
+        val chunks = serializer.flipChunks()
+        var chunksSize = 0
+        for (i in 0..serializer.chunkCount - 1) {
+            chunksSize += chunks[i].remaining()
+        }
+        assertEquals(serializer.size, chunksSize)
+
+        val result = serializer.result
+        assertEquals(serializer.size, result.size)
+
+        deserializer.setSource(result.buffer, 0, result.size)
+        assertEquals(text, deserializer.readString())
+        assertArrayEquals(numbers, deserializer.readPrimitiveIntArray())
+        assertEquals(Long.MAX_VALUE, deserializer.readLong())
+        assertEquals(result.size.toLong(), deserializer.consumedBytesCount.toLong())
+
+        // chunks go back to pool
+        serializer.reset()
+        assertEquals(1, serializer.chunkCount)
+        assertEquals(0, serializer.size)
+    }
+
+    @Test
+    fun deserialize_primitive_arrays() {
+        val serializer = NetworkSerializer(ObjectTypeInspector(), ByteBufferPool(64)).reset()
+        val bools = BooleanArray(13, { it % 3 == 0 })
+        val bytes = ByteArray(70, { it.toByte() })
+        val shorts = ShortArray(40, { (it * -300).toShort() })
+        val longs = LongArray(20, { it * Long.MAX_VALUE / 20 })
+        val floats = FloatArray(50, { it * 0.5f })
+        val doubles = DoubleArray(30, { -it / 3.0 })
+
+        serializer.addByte(1)
+        serializer.addArray(bools)
+
+        // header of array and 13 booleans packed into 2 bytes
+        assertEquals(2 + (3 + 4) + 2, serializer.size)
+
+        serializer.addArray(bytes)
+        serializer.addArray(shorts)
+        serializer.addArray(longs)
+        serializer.addArray(floats)
+        serializer.addArray(doubles)
+
+        val result = serializer.result
+        deserializer.setSource(result.buffer, 0, result.size)
+
+        assertEquals(1.toByte(), deserializer.readByte())
+        assertEquals(bools.toList(), deserializer.readPrimitiveBooleanArray().toList())
+        assertArrayEquals(bytes, deserializer.readPrimitiveByteArray())
+        assertArrayEquals(shorts, deserializer.readPrimitiveShortArray())
+        assertArrayEquals(longs, deserializer.readPrimitiveLongArray())
+        assertArrayEquals(floats, deserializer.readPrimitiveFloatArray(), 0f)
+        assertArrayEquals(doubles, deserializer.readPrimitiveDoubleArray(), 0.0)
+        assertEquals(result.size.toLong(), deserializer.consumedBytesCount.toLong())
+    }
+
+    @Test
+    fun deserialize_compact_encoding() {
+        val serializer = NetworkSerializer().reset()
+        serializer.isCompactEncoding = true
+        deserializer.isCompactEncoding = true
+
+        val ints = intArrayOf(0, 1, -1, 63, -64, 64, Int.MAX_VALUE, Int.MIN_VALUE)
+        serializer.addArray(ints)
+        serializer.addRawSize(0)
+        serializer.addRawSize(300)
+        serializer.addRawSize(Int.MAX_VALUE)
+        serializer.addLong(Long.MIN_VALUE)
+        serializer.addLong(-2)
+        serializer.addShort(Short.MIN_VALUE)
+        serializer.addFloat(-1.5f)
+        serializer.addDouble(Math.PI)
+        serializer.addString("compact")
+
+        val result = serializer.result
+        deserializer.setSource(result.buffer, 0, result.size)
+
+        assertArrayEquals(ints, deserializer.readPrimitiveIntArray())
+        assertEquals(0, deserializer.readRawSize())
+        assertEquals(300, deserializer.readRawSize())
+        assertEquals(Int.MAX_VALUE, deserializer.readRawSize())
+        assertEquals(Long.MIN_VALUE, deserializer.readLong())
+        assertEquals(-2L, deserializer.readLong())
+        assertEquals(Short.MIN_VALUE, deserializer.readShort())
+        assertEquals(-1.5f, deserializer.readFloat(), 0f)
+        assertEquals(Math.PI, deserializer.readDouble(), 0.0)
+        assertEquals("compact", deserializer.readString())
+        assertEquals(result.size.toLong(), deserializer.consumedBytesCount.toLong())
+    }
+
+    @Test
+    fun deserialize_utf8_strings() {
+        val serializer = NetworkSerializer(ObjectTypeInspector(), ByteBufferPool(16)).reset()
+        val texts = arrayOf("", "ascii", "zażółć gęślą jaźń", "€ 😀", "x".repeat(40))
+
+        for (text in texts) {
+            serializer.addString(text)
+        }
+        serializer.addString("unpaired \uD83D")
+
+        val result = serializer.result
+        deserializer.setSource(result.buffer, 0, result.size)
+
+        for (text in texts) {
+            assertEquals(text, deserializer.readString())
+        }
+        assertEquals("unpaired ?", deserializer.readString())
+        assertEquals(result.size.toLong(), deserializer.consumedBytesCount.toLong())
+    }
+
+    @Test
+    fun repeated_strings_are_sent_once() {
+        val serializer = NetworkSerializer().reset()
+        serializer.isStringDictionaryEnabled = true
+        deserializer.isStringDictionaryEnabled = true
+
+        serializer.addString("PositionComponent")
+        val firstSize = serializer.size
+        var result = serializer.result
+        deserializer.setSource(result.buffer, 0, result.size)
+        assertEquals("PositionComponent", deserializer.readString())
+
+        // dictionary survives between packets
+        serializer.reset()
+        serializer.addString("PositionComponent")
+        serializer.addString(null)
+        assertTrue(serializer.size < firstSize)
+
+        result = serializer.result
+        deserializer.setSource(result.buffer, 0, result.size)
+        assertEquals("PositionComponent", deserializer.readString())
+        assertNull(deserializer.readString())
+        assertEquals(result.size.toLong(), deserializer.consumedBytesCount.toLong())
+    }
+
     @Test
     fun determine_simple_types() {
         assertEquals(DataType.Byte, determineType(2.toByte().javaClass).first)
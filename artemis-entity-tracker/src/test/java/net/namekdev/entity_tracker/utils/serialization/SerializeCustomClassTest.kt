@@ -7,6 +7,7 @@ import org.junit.Test
 
 import net.namekdev.entity_tracker.utils.ReflectionUtils
 import net.namekdev.entity_tracker.utils.sample.ArrayTestClass
+import net.namekdev.entity_tracker.utils.sample.BoxedFieldsTestClass
 import net.namekdev.entity_tracker.utils.sample.CyclicClass
 import net.namekdev.entity_tracker.utils.sample.CyclicClassIndirectly
 import net.namekdev.entity_tracker.utils.sample.EnumArrayTestClass
@@ -14,10 +15,12 @@ import net.namekdev.entity_tracker.utils.sample.EnumFullTestClass
 import net.namekdev.entity_tracker.utils.sample.EnumFieldTestClass
 import net.namekdev.entity_tracker.utils.sample.GameObject
 import net.namekdev.entity_tracker.utils.sample.GameState
+import net.namekdev.entity_tracker.utils.sample.MixedFieldsTestClass
 import net.namekdev.entity_tracker.utils.sample.TestEnum
 import net.namekdev.entity_tracker.utils.sample.Vector2
 import net.namekdev.entity_tracker.utils.sample.Vector3
 import net.namekdev.entity_tracker.utils.serialization.NetworkSerialization.DataType
+import java.util.*
 
 class SerializeCustomClassTest {
     lateinit var serializer: NetworkSerializer
@@ -55,6 +58,18 @@ class SerializeCustomClassTest {
         assertEquals("y", model.children!![1].name)
     }
 
+    @Test
+    fun find_inspected_models() {
+        val model = inspector.inspect(GameState::class.java)
+        val count = inspector.registeredModelsCount
+
+        assertSame(model, inspector.inspect(GameState::class.java))
+        assertEquals(count, inspector.registeredModelsCount)
+        assertSame(model, inspector.getModelById(model.id))
+        assertNull(inspector.getModelById(-1))
+        assertNull(inspector.getModelById(1000))
+    }
+
     @Test
     fun inspect_gamestate() {
         val gameState = GameState()
@@ -366,6 +381,240 @@ class SerializeCustomClassTest {
         assertEquals(serializer.inspector.registeredModelsCount, deserializedModelCount)
     }
 
+    @Test
+    fun descriptions_are_sent_once_per_connection() {
+        val obj = GameObject()
+
+        // models inspected during serialization are described in a different order,
+        // so they're inspected before to have the same descriptions every time
+        serializer = NetworkSerializer(ObjectTypeInspector())
+        serializer.inspector.inspect(obj.javaClass)
+
+        serializeAndDeserialize(obj)
+        val describedSize = serializer.size
+
+        serializer.reset()
+        val value = serializeAndDeserialize(obj)
+        val referencedSize = serializer.size
+        assertTrue(referencedSize < describedSize)
+        assertEquals(obj.pos.z, (value.values[0] as ValueTree).values[2])
+
+        serializer.forgetDescriptions()
+        deserializer.forgetDescriptions()
+        serializer.reset()
+        val describedAgainValue = serializeAndDeserialize(obj)
+        assertEquals(describedSize, serializer.size)
+        assertEquals(obj.pos.z, (describedAgainValue.values[0] as ValueTree).values[2])
+    }
+
+    @Test
+    fun models_of_different_inspectors_dont_collide() {
+        val otherModel = ObjectTypeInspector().inspect(Vector2::class.java)
+        serializer.reset()
+        serializer.addDataDescriptionOrRef(otherModel)
+        serializer.addObject(GameObject())
+        val res = serializer.result
+
+        deserializer.setSource(res.buffer, 0, res.size)
+        val receivedOtherModel = deserializer.readDataDescription()
+        val value = deserializer.readObject()!!
+
+        assertEquals(otherModel.children!!.size, receivedOtherModel.children!!.size)
+        assertEquals(3, (value.values[0] as ValueTree).size)
+        assertNotEquals(receivedOtherModel.id, value.model!!.id)
+    }
+
+    @Test
+    fun fingerprint_depends_on_structure_only() {
+        val otherInspector = ObjectTypeInspector()
+        otherInspector.inspect(Vector2::class.java)
+
+        val model = inspector.inspect(GameState::class.java)
+        val otherModel = otherInspector.inspect(GameState::class.java)
+        assertNotEquals(model.id, otherModel.id)
+        assertEquals(model.fingerprint(), otherModel.fingerprint())
+        assertNotEquals(model.fingerprint(), inspector.inspect(GameObject::class.java).fingerprint())
+        assertEquals(inspector.inspect(CyclicClass::class.java).fingerprint(), otherInspector.inspect(CyclicClass::class.java).fingerprint())
+    }
+
+    @Test
+    fun inspector_can_be_shared_between_threads() {
+        val types = listOf(GameState::class.java, GameObject::class.java, CyclicClass::class.java,
+            EnumFullTestClass::class.java, ArrayTestClass::class.java, MixedFieldsTestClass::class.java)
+        val sharedInspector = ObjectTypeInspector()
+        val models = Collections.synchronizedList(ArrayList<ObjectModelNode>())
+
+        val threads = (0..7).map { i ->
+            Thread {
+                for (j in types.indices) {
+                    models.add(sharedInspector.inspect(types[(i + j) % types.size]))
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+
+        for (type in types) {
+            val model = sharedInspector.inspect(type)
+            assertEquals(8, models.count { it === model })
+            assertSame(model, sharedInspector.getModelById(model.id))
+        }
+    }
+
+    @Test
+    fun serialize_primitive_and_boxed_fields() {
+        val obj = BoxedFieldsTestClass()
+        val value = serializeAndDeserialize(obj)
+
+        assertEquals(obj.primitive, value.values[0])
+        assertNull(value.values[1])
+        assertEquals(obj.boxed, value.values[2])
+        assertEquals(obj.text, value.values[3])
+    }
+
+    private fun serializeAndDeserializeKnownModel(model: ObjectModelNode, obj: Any): ValueTree {
+        serializer.reset()
+        serializer.addObject(model, obj)
+        val res = serializer.result
+        deserializer.setSource(res.buffer, 0, res.size)
+        val value = deserializer.readObject(model, true)
+        assertEquals(res.size, deserializer.consumedBytesCount)
+
+        return value
+    }
+
+    @Test
+    fun serialize_known_model_with_trusted_schema() {
+        val obj = BoxedFieldsTestClass()
+        val model = inspector.inspect(obj.javaClass)
+        serializeAndDeserializeKnownModel(model, obj)
+        val taggedSize = serializer.size
+
+        serializer.isTrustedSchema = true
+        deserializer.isTrustedSchema = true
+        val value = serializeAndDeserializeKnownModel(model, obj)
+
+        assertEquals(obj.primitive, value.values[0])
+        assertNull(value.values[1])
+        assertEquals(obj.boxed, value.values[2])
+        assertEquals(obj.text, value.values[3])
+        assertTrue(serializer.size < taggedSize)
+    }
+
+    @Test
+    fun serialize_cyclic_reference_and_enum_array_with_trusted_schema() {
+        serializer.isTrustedSchema = true
+        deserializer.isTrustedSchema = true
+
+        val obj = CyclicClass()
+        obj.other = CyclicClass()
+        obj.other.other = obj
+
+        val value = serializeAndDeserializeKnownModel(inspector.inspect(obj.javaClass), obj)
+        val other = value.values[0] as ValueTree
+        assertSame(value, other.values[0])
+        assertNull(value.values[1])
+        assertNull(other.values[1])
+
+        val enums = EnumArrayTestClass()
+        val enumsValue = serializeAndDeserializeKnownModel(inspector.inspect(enums.javaClass), enums)
+        val enumsArray = enumsValue.values[0] as ValueTree
+        assertEquals(listOf(0, 1, 2, null), enumsArray.values.toList())
+    }
+
+    @Test
+    fun read_known_model_lazily() {
+        val obj = MixedFieldsTestClass()
+        obj.bits.set(70)
+        val model = inspector.inspect(obj.javaClass)
+
+        for (isCompact in booleanArrayOf(false, true)) {
+            serializer.isTrustedSchema = true
+            deserializer.isTrustedSchema = true
+            serializer.isCompactEncoding = isCompact
+            deserializer.isCompactEncoding = isCompact
+            val expected = serializeAndDeserializeKnownModel(model, obj)
+
+            deserializer.setSource(serializer.result.buffer, 0, serializer.size)
+            val value = deserializer.readObjectLazily(model)
+            assertEquals(serializer.size, deserializer.consumedBytesCount)
+
+            assertEquals(-3, value.getInt(0))
+            assertEquals(1L shl 40, value.getLong(1))
+            assertEquals(0.25, value.getDouble(2), 0.0)
+            assertTrue(value.getBoolean(3))
+            assertEquals(300000, (value[4] as ValueTree).getInt(2))
+            assertEquals(1.5f, (value[5] as ValueTree).getFloat(1))
+            assertEquals(5L, value.getLong(8))
+            assertSame(value, value[12])
+
+            assertEquals(expected.values.size, value.size)
+            for (i in 0..value.size - 1) {
+                val expectedValue = expected.values[i]
+                val actualValue = value[i]
+
+                if (expectedValue is ValueTree && i != 12) {
+                    assertEquals(expectedValue.values.toList(), (actualValue as ValueTree).values.toList())
+                }
+                else if (expectedValue !is ValueTree) {
+                    assertEquals(expectedValue, actualValue)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun flat_objects_in_array_are_stored_in_columns() {
+        serializer.isTrustedSchema = true
+        deserializer.isTrustedSchema = true
+
+        val obj = ArrayTestClass()
+        val vec = Vector2(1f, 2f)
+        obj.array = arrayOf(vec, Vector2(3f, 4f), null, vec, Vector3(5f, 6f, 7f))
+
+        val value = serializeAndDeserializeKnownModel(inspector.inspect(obj.javaClass), obj)
+        val array = value[0] as ValueTree
+        val first = array[0] as ValueTree
+        val second = array[1] as ValueTree
+
+        assertEquals(1f, first.getFloat(0))
+        assertEquals(2.0, first.getDouble(1), 0.0)
+        assertEquals(listOf<Any?>(3f, 4f), second.values.toList())
+        assertNull(array[2])
+        assertSame(first, array[3])
+        assertSame(array, first.parent)
+        assertEquals(listOf<Any?>(5f, 6f, 7f), (array[4] as ValueTree).values.toList())
+    }
+
+    @Test
+    fun equal_objects_are_not_aliased() {
+        val obj = ArrayTestClass()
+        val vec = Vector2(1f, 2f)
+        obj.array = arrayOf(vec, Vector2(1f, 2f), vec)
+
+        val array = serializeAndDeserialize(obj).values[0] as ValueTree
+        assertNotSame(array.values[0], array.values[1])
+        assertSame(array.values[0], array.values[2])
+    }
+
+    @Test
+    fun serialize_big_object_graph() {
+        val shared = CyclicClass()
+        val obj = ArrayTestClass()
+        obj.array = Array<Any>(100000, {
+            val el = CyclicClass()
+            el.other = shared
+            el
+        })
+
+        val array = serializeAndDeserialize(obj).values[0] as ValueTree
+        val first = array.values[0] as ValueTree
+        val last = array.values[99999] as ValueTree
+        assertNotSame(first, last)
+        assertSame(first.values[0], last.values[0])
+        assertTrue(last.id > Short.MAX_VALUE)
+    }
+
     @Test
     fun inspect_cyclic_reference() {
         val obj = CyclicClass()
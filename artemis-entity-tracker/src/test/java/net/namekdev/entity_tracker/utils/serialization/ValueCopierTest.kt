@@ -0,0 +1,58 @@
+package net.namekdev.entity_tracker.utils.serialization
+
+import net.namekdev.entity_tracker.utils.sample.ArrayTestClass
+import net.namekdev.entity_tracker.utils.sample.CyclicClass
+import net.namekdev.entity_tracker.utils.sample.GameObject
+import net.namekdev.entity_tracker.utils.sample.Vector3
+import org.junit.Assert.*
+import org.junit.Test
+
+class ValueCopierTest {
+    val inspector = ObjectTypeInspector()
+    val copier = ValueCopier(inspector)
+
+
+    @Test
+    fun copy_does_not_change_with_original() {
+        val model = inspector.inspect(GameObject::class.java)
+        val obj = GameObject()
+        obj.pos.y = 7f
+        val copy = copier.copy(model, obj) as GameObject
+
+        assertEquals(obj, copy)
+        assertNotSame(obj.pos, copy.pos)
+
+        obj.pos.y = 8f
+        obj.size = null
+        assertEquals(7f, copy.pos.y, 0f)
+        assertNotNull(copy.size)
+    }
+
+    @Test
+    fun array_elements_are_copied() {
+        val model = inspector.inspect(ArrayTestClass::class.java)
+        val obj = ArrayTestClass()
+        val vector = Vector3(1f, 2f, 3f)
+        obj.array = arrayOf(vector, 5, "text", vector)
+        val copy = copier.copy(model, obj) as ArrayTestClass
+
+        assertNotSame(obj.array, copy.array)
+        assertNotSame(vector, copy.array[0])
+        assertEquals(vector, copy.array[0])
+        assertSame(copy.array[0], copy.array[3])
+
+        val hasher = ValueHasher(inspector)
+        assertEquals(hasher.hash(model, obj), hasher.hash(model, copy))
+    }
+
+    @Test
+    fun cyclic_object_is_copied() {
+        val model = inspector.inspect(CyclicClass::class.java)
+        val obj = CyclicClass()
+        obj.other = obj
+        val copy = copier.copy(model, obj) as CyclicClass
+
+        assertNotSame(obj, copy)
+        assertSame(copy, copy.other)
+    }
+}
@@ -0,0 +1,57 @@
+package net.namekdev.entity_tracker.utils.serialization
+
+import net.namekdev.entity_tracker.utils.sample.ArrayTestClass
+import net.namekdev.entity_tracker.utils.sample.CyclicClass
+import net.namekdev.entity_tracker.utils.sample.GameObject
+import net.namekdev.entity_tracker.utils.sample.Vector3
+import org.junit.Assert.*
+import org.junit.Test
+
+class ValueHasherTest {
+    val inspector = ObjectTypeInspector()
+    val hasher = ValueHasher(inspector)
+
+
+    @Test
+    fun hash_changes_with_nested_field() {
+        val model = inspector.inspect(GameObject::class.java)
+        val obj = GameObject()
+        val hash = hasher.hash(model, obj)
+
+        assertEquals(hash, hasher.hash(model, GameObject()))
+
+        obj.pos.y = 2.5f
+        assertNotEquals(hash, hasher.hash(model, obj))
+
+        obj.pos.y = 2f
+        assertEquals(hash, hasher.hash(model, obj))
+
+        obj.size = null
+        assertNotEquals(hash, hasher.hash(model, obj))
+    }
+
+    @Test
+    fun hash_changes_with_array_element() {
+        val model = inspector.inspect(ArrayTestClass::class.java)
+        val obj = ArrayTestClass()
+        val vector = Vector3(1f, 2f, 3f)
+        obj.array = arrayOf(vector, 5, "text")
+        val hash = hasher.hash(model, obj)
+
+        vector.z = 4f
+        assertNotEquals(hash, hasher.hash(model, obj))
+
+        vector.z = 3f
+        obj.array[1] = 6
+        assertNotEquals(hash, hasher.hash(model, obj))
+    }
+
+    @Test
+    fun cyclic_object_is_hashed() {
+        val model = inspector.inspect(CyclicClass::class.java)
+        val obj = CyclicClass()
+        obj.other = obj
+
+        assertEquals(hasher.hash(model, obj), hasher.hash(model, obj))
+    }
+}